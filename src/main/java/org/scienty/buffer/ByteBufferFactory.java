@@ -1,20 +1,264 @@
 package org.scienty.buffer;
 
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Pool of fixed size buffers.
+ * Threads take and return buffers through small magazines, threads are striped over a fixed set of
+ * magazines so most operations only touch an uncontended magazine. Full magazines are exchanged
+ * through a shared depot, which moves buffers from the threads that release them (write completion)
+ * to the threads that acquire them (readers). Total pooled bytes are capped, buffers released
+ * beyond the cap are left to the garbage collector.
+ */
 public class ByteBufferFactory {
-	private int bufferSize;
-	
+	public final static int DEFAULT_MAGAZINE_SIZE = 4;
+	public final static int DEFAULT_POOLED_BUFFERS = 64;
+	//ByteBuffer.alignedSlice, Java 9 and later
+	private final static Method ALIGNED_SLICE;
+
+	static {
+		Method alignedSlice = null;
+		try {
+			alignedSlice = ByteBuffer.class.getMethod("alignedSlice", int.class);
+		} catch (Exception e) {
+			alignedSlice = null;
+		}
+		ALIGNED_SLICE = alignedSlice;
+	}
+
+	private final int bufferSize;
+	private final boolean direct;
+	private final int alignment;
+	private final long maxPooledBytes;
+	private final int magazineSize;
+	private final Magazine[] magazines;
+	//full and empty magazines, locks instead of monitors so virtual threads do not pin their carrier
+	private final ReentrantLock depotLock = new ReentrantLock();
+	private final ArrayDeque<ByteBuffer[]> depot = new ArrayDeque<ByteBuffer[]>();
+	private final ArrayDeque<ByteBuffer[]> emptyMagazines = new ArrayDeque<ByteBuffer[]>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong pooledBytes = new AtomicLong();
+	private final AtomicLong outstandingBytes = new AtomicLong();
+
+	@SuppressWarnings("serial")
+	private static class Magazine extends ReentrantLock {
+		ByteBuffer[] items;
+		int count;
+		Magazine(int size) {
+			items = new ByteBuffer[size];
+		}
+	}
+
 	public ByteBufferFactory(int bufferSize) {
+		this(bufferSize, false, (long)bufferSize * DEFAULT_POOLED_BUFFERS);
+	}
+
+	/**
+	 * @param bufferSize size of every buffer
+	 * @param direct allocate direct buffers
+	 * @param maxPooledBytes cap on the bytes held by the pool
+	 */
+	public ByteBufferFactory(int bufferSize, boolean direct, long maxPooledBytes) {
+		this(bufferSize, direct, maxPooledBytes, DEFAULT_MAGAZINE_SIZE);
+	}
+
+	public ByteBufferFactory(int bufferSize, boolean direct, long maxPooledBytes, int magazineSize) {
+		this(bufferSize, direct, 0, maxPooledBytes, magazineSize);
+	}
+
+	private ByteBufferFactory(int bufferSize, boolean direct, int alignment, long maxPooledBytes, int magazineSize) {
+		if ( bufferSize <= 0 ) throw new IllegalArgumentException("Invalid buffer size " + bufferSize);
+		if ( magazineSize <= 0 ) throw new IllegalArgumentException("Invalid magazine size " + magazineSize);
 		this.bufferSize = bufferSize;
+		this.direct = direct;
+		this.alignment = alignment;
+		this.maxPooledBytes = maxPooledBytes;
+		this.magazineSize = magazineSize;
+		int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+		magazines = new Magazine[stripes];
+		for (int i = 0; i < stripes; i++) {
+			magazines[i] = new Magazine(magazineSize);
+		}
 	}
-	
+
+	/**
+	 * Pool of direct buffers whose address is a multiple of alignment, as direct I/O requires.
+	 * Buffers are aligned on Java 9 and later, on older runtimes they are plain direct buffers.
+	 * @param bufferSize size of every buffer, a multiple of alignment for direct I/O
+	 * @param alignment power of two, such as the block size of the file system
+	 * @param maxPooledBytes cap on the bytes held by the pool
+	 */
+	public static ByteBufferFactory aligned(int bufferSize, int alignment, long maxPooledBytes) {
+		if ( alignment <= 0 || Integer.bitCount(alignment) != 1 ) {
+			throw new IllegalArgumentException("Invalid alignment " + alignment);
+		}
+		return new ByteBufferFactory(bufferSize, true, alignment, maxPooledBytes, DEFAULT_MAGAZINE_SIZE);
+	}
+
 	public ByteBuffer acquire() {
-		return ByteBuffer.allocate(bufferSize);
+		ByteBuffer buff = null;
+		Magazine mag = magazine();
+		mag.lock();
+		try {
+			if ( mag.count == 0 ) {
+				refill(mag);
+			}
+			if ( mag.count > 0 ) {
+				buff = mag.items[--mag.count];
+				mag.items[mag.count] = null;
+			}
+		} finally {
+			mag.unlock();
+		}
+
+		if ( buff != null ) {
+			hits.incrementAndGet();
+			pooledBytes.addAndGet(-bufferSize);
+			buff.clear();
+		} else {
+			misses.incrementAndGet();
+			buff = allocate();
+		}
+		outstandingBytes.addAndGet(bufferSize);
+		return buff;
 	}
-	
+
+	/**
+	 * Return a buffer acquired from this factory, the buffer must not be used after release
+	 * @param buff
+	 */
 	public void release(ByteBuffer buff) {
-		//TODO: implement pooling 
+		if ( buff.capacity() != bufferSize || buff.isDirect() != direct ) {
+			throw new IllegalArgumentException("Buffer is not from this factory");
+		}
+		outstandingBytes.addAndGet(-bufferSize);
+		if ( pooledBytes.addAndGet(bufferSize) > maxPooledBytes ) {
+			pooledBytes.addAndGet(-bufferSize);
+			return;
+		}
+
+		Magazine mag = magazine();
+		mag.lock();
+		try {
+			if ( mag.count == mag.items.length ) {
+				depotLock.lock();
+				try {
+					depot.push(mag.items);
+					ByteBuffer[] empty = emptyMagazines.poll();
+					mag.items = (empty != null) ? empty : new ByteBuffer[magazineSize];
+				} finally {
+					depotLock.unlock();
+				}
+				mag.count = 0;
+			}
+			mag.items[mag.count++] = buff;
+		} finally {
+			mag.unlock();
+		}
+	}
+
+	/**
+	 * Drop all the pooled buffers
+	 */
+	public void clear() {
+		for (Magazine mag : magazines) {
+			mag.lock();
+			try {
+				for (int i = 0; i < mag.count; i++) {
+					mag.items[i] = null;
+				}
+				pooledBytes.addAndGet(-(long)mag.count * bufferSize);
+				mag.count = 0;
+			} finally {
+				mag.unlock();
+			}
+		}
+		depotLock.lock();
+		try {
+			ByteBuffer[] full;
+			while ( (full = depot.poll()) != null ) {
+				pooledBytes.addAndGet(-(long)full.length * bufferSize);
+				Arrays.fill(full, null);
+				emptyMagazines.push(full);
+			}
+		} finally {
+			depotLock.unlock();
+		}
 	}
 
+	private ByteBuffer allocate() {
+		if ( direct == false ) return ByteBuffer.allocate(bufferSize);
+		if ( alignment == 0 || ALIGNED_SLICE == null ) return ByteBuffer.allocateDirect(bufferSize);
+		//over allocate by alignment and slice at the first aligned address
+		ByteBuffer raw = ByteBuffer.allocateDirect(bufferSize + alignment - 1);
+		try {
+			ByteBuffer aligned = (ByteBuffer)ALIGNED_SLICE.invoke(raw, alignment);
+			aligned.limit(bufferSize);
+			return aligned.slice();
+		} catch (Exception e) {
+			throw new IllegalStateException("Failed to align buffer", e);
+		}
+	}
+
+	private void refill(Magazine mag) {
+		depotLock.lock();
+		try {
+			ByteBuffer[] full = depot.poll();
+			if ( full != null ) {
+				emptyMagazines.push(mag.items);
+				mag.items = full;
+				mag.count = full.length;
+			}
+		} finally {
+			depotLock.unlock();
+		}
+	}
+
+	private Magazine magazine() {
+		return magazines[(int)(Thread.currentThread().getId() & (magazines.length - 1))];
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * @return alignment of the buffer addresses, 0 if not aligned
+	 */
+	public int getAlignment() {
+		return alignment;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	public long getOutstandingBytes() {
+		return outstandingBytes.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ByteBufferFactory [bufferSize=" + bufferSize + ", hits=" + hits + ", misses=" + misses
+				+ ", pooledBytes=" + pooledBytes + ", outstandingBytes=" + outstandingBytes + "]";
+	}
 }
@@ -1,38 +1,183 @@
 package org.scienty.buffer;
 
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.scienty.java.util.concurrent.VirtualThreads;
 
+/**
+ * Pool of direct buffers in power of two size classes, safe for concurrent use.
+ * Each size class is a lock free stack, each thread also keeps a few small buffers of its own
+ * so a thread releasing and acquiring the same size does not touch the shared stacks.
+ * Small buffers are sliced out of slabs, a slab is sliced completely when it is allocated and
+ * the spare slices go to the stack. Buffers idle in the stacks are dropped by trim(), so the
+ * direct memory of a burst is given back to the garbage collector. With a trim interval the pool
+ * is also trimmed by a shared daemon thread, so the memory is given back after a burst even when
+ * the pool is no longer used.
+ */
 public class SimpleByteBufferPool {
 	private final static Logger logger = LogManager.getLogger();
 	public final static int BUFFER_LIST_ARRAY_SIZE = 32;
-	final List<ByteBuffer>[] potBuffers;
+	public final static long DEFAULT_TRIM_INTERVAL_MS = 10000;
+
+	private final static int SLAB_SIZE = 1024 * 1024;
+	private final static int SLAB_SLICES = 16;
+	//largest class kept by the thread caches and sliced out of slabs
+	private final static int SMALL_INDEX = 16;
+	private final static int THREAD_CACHE_SIZE = 4;
+	private final static ByteBuffer ZEROS = ByteBuffer.allocateDirect(4096);
+	//trims the idle pools, one daemon thread for all the pools
+	private final static ScheduledExecutorService TRIMMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "buffer-pool-trimmer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final SizeClass[] classes;
+	private final boolean zeroFill;
+	private final long trimIntervalNanos;
+	private final AtomicLong lastTrim = new AtomicLong(System.nanoTime());
+	private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+		@Override
+		protected ThreadCache initialValue() {
+			return new ThreadCache();
+		}
+	};
+
+	private static class Node {
+		final ByteBuffer buffer;
+		Node next;
+		Node(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+
+	private static class SizeClass {
+		final AtomicReference<Node> top = new AtomicReference<Node>();
+		final AtomicInteger free = new AtomicInteger();
+		//lowest free count since the last trim, these buffers were not needed in the interval
+		final AtomicInteger minFree = new AtomicInteger();
+
+		void push(ByteBuffer buffer) {
+			Node node = new Node(buffer);
+			Node current;
+			do {
+				current = top.get();
+				node.next = current;
+			} while ( top.compareAndSet(current, node) == false );
+			free.incrementAndGet();
+		}
+
+		ByteBuffer pop() {
+			Node current;
+			do {
+				current = top.get();
+				if ( current == null ) return null;
+			} while ( top.compareAndSet(current, current.next) == false );
+			int count = free.decrementAndGet();
+			int min;
+			while ( count < (min = minFree.get()) && minFree.compareAndSet(min, count) == false );
+			return current.buffer;
+		}
+	}
+
+	/**
+	 * Scheduled trim of a pool, holds the pool weakly so an unused pool is still collected
+	 */
+	private static class Trim implements Runnable {
+		private final WeakReference<SimpleByteBufferPool> pool;
+		volatile ScheduledFuture<?> future;
+
+		Trim(SimpleByteBufferPool pool) {
+			this.pool = new WeakReference<SimpleByteBufferPool>(pool);
+		}
+
+		@Override
+		public void run() {
+			SimpleByteBufferPool current = pool.get();
+			if ( current == null ) {
+				ScheduledFuture<?> scheduled = future;
+				if ( scheduled != null ) scheduled.cancel(false);
+				return;
+			}
+			current.maybeTrim();
+		}
+	}
+
+	private static class ThreadCache {
+		final ByteBuffer[][] items = new ByteBuffer[SMALL_INDEX + 1][THREAD_CACHE_SIZE];
+		final int[] counts = new int[SMALL_INDEX + 1];
+	}
 
 	public SimpleByteBufferPool() {
-		potBuffers= (List<ByteBuffer>[]) new List[32];
-		for (int i = 0; i < potBuffers.length; i++) {
-			potBuffers[i] = new ArrayList<ByteBuffer>();
+		this(true, DEFAULT_TRIM_INTERVAL_MS);
+	}
+
+	/**
+	 * @param zeroFill clear the acquired bytes
+	 * @param trimIntervalMs interval of the automatic trim, 0 to trim only on request
+	 */
+	public SimpleByteBufferPool(boolean zeroFill, long trimIntervalMs) {
+		this.zeroFill = zeroFill;
+		this.trimIntervalNanos = trimIntervalMs * 1000000L;
+		classes = new SizeClass[BUFFER_LIST_ARRAY_SIZE];
+		for (int i = 0; i < classes.length; i++) {
+			classes[i] = new SizeClass();
+		}
+		if ( trimIntervalMs > 0 ) {
+			Trim trim = new Trim(this);
+			trim.future = TRIMMER.scheduleWithFixedDelay(trim, trimIntervalMs, trimIntervalMs, TimeUnit.MILLISECONDS);
 		}
 	}
 
+	/**
+	 * Virtual threads are short lived and many, their caches would strand buffers
+	 */
+	private static boolean cached() {
+		return !VirtualThreads.isVirtual(Thread.currentThread());
+	}
+
 	public ByteBuffer aquire(int bytes) {
 		int alloc = allocSize(bytes);
 		int index = Integer.numberOfTrailingZeros(alloc);
-		List<ByteBuffer> list = potBuffers[index];
 
-		ByteBuffer bb = list.isEmpty() ? create(alloc) : list.remove(list.size() - 1);
+		ByteBuffer bb = null;
+		if ( index <= SMALL_INDEX && cached() ) {
+			ThreadCache cache = threadCache.get();
+			if ( cache.counts[index] > 0 ) {
+				int count = --cache.counts[index];
+				bb = cache.items[index][count];
+				cache.items[index][count] = null;
+			}
+		}
+		if ( bb == null ) {
+			bb = classes[index].pop();
+		}
+		if ( bb == null ) {
+			bb = create(index, alloc);
+		}
+		maybeTrim();
+		bb.order(ByteOrder.nativeOrder());
 		bb.position(0).limit(bytes);
 
-		// fill with zeroes to ensure deterministic behavior upon handling 'uninitialized' data
-		for (int i = 0, n = bb.remaining(); i < n; i++) {
-			bb.put(i, (byte) 0);
+		if ( zeroFill ) {
+			// fill with zeroes to ensure deterministic behavior upon handling 'uninitialized' data
+			zero(bb);
 		}
-
 		return bb;
 	}
 
@@ -41,32 +186,111 @@ public class SimpleByteBufferPool {
 		if (buffer.capacity() != alloc) {
 			throw new IllegalArgumentException("buffer capacity not a power of two");
 		}
-		
+
 		int index = Integer.numberOfTrailingZeros(alloc);
-		potBuffers[index].add(buffer);
+		if ( index <= SMALL_INDEX && cached() ) {
+			ThreadCache cache = threadCache.get();
+			if ( cache.counts[index] < THREAD_CACHE_SIZE ) {
+				cache.items[index][cache.counts[index]++] = buffer;
+				return;
+			}
+		}
+		classes[index].push(buffer);
+		maybeTrim();
+	}
+
+	/**
+	 * Trim if the interval has passed since the last trim, by the pool users and the trimmer thread
+	 */
+	private void maybeTrim() {
+		if ( trimIntervalNanos > 0 ) {
+			long last = lastTrim.get();
+			long now = System.nanoTime();
+			if ( now - last >= trimIntervalNanos && lastTrim.compareAndSet(last, now) ) {
+				trimIdle();
+			}
+		}
+	}
+
+	/**
+	 * Drop the buffers of the shared stacks which were not used since the previous trim
+	 */
+	public void trim() {
+		lastTrim.set(System.nanoTime());
+		trimIdle();
+	}
+
+	private void trimIdle() {
+		long dropped = 0;
+		for (int i = 0; i < classes.length; i++) {
+			SizeClass sizeClass = classes[i];
+			int idle = sizeClass.minFree.get();
+			for (int j = 0; j < idle && sizeClass.pop() != null; j++) {
+				dropped += 1L << i;
+			}
+			sizeClass.minFree.set(sizeClass.free.get());
+		}
+		if ( dropped > 0 ) {
+			logger.debug("Trimmed " + dropped + " idle bytes");
+		}
 	}
 
+	/**
+	 * Drop the buffers of the shared stacks and of the calling thread
+	 */
 	public void flush() {
-		for (int i = 0; i < potBuffers.length; i++) {
-			potBuffers[i].clear();
+		ThreadCache cache = threadCache.get();
+		for (int i = 0; i < cache.items.length; i++) {
+			for (int j = 0; j < cache.counts[i]; j++) {
+				cache.items[i][j] = null;
+			}
+			cache.counts[i] = 0;
+		}
+		for (int i = 0; i < classes.length; i++) {
+			while ( classes[i].pop() != null );
+			classes[i].minFree.set(0);
 		}
 	}
 
-	private static int LARGE_SIZE  = 1024 * 1024;
-	private ByteBuffer largeBuffer = malloc(LARGE_SIZE);
+	/**
+	 * @return bytes held by the shared stacks, thread caches are not included
+	 */
+	public long getPooledBytes() {
+		long bytes = 0;
+		for (int i = 0; i < classes.length; i++) {
+			bytes += (long)classes[i].free.get() << i;
+		}
+		return bytes;
+	}
 
-	private ByteBuffer create(int bytes) {
-		if (bytes > LARGE_SIZE)
+	private ByteBuffer create(int index, int bytes) {
+		if ( index > SMALL_INDEX || bytes > SLAB_SIZE / SLAB_SLICES ) {
 			return malloc(bytes);
+		}
 
-		if (bytes > largeBuffer.remaining()) {
-			largeBuffer = malloc(LARGE_SIZE);
+		//slabs hold a single size class, so trimming a class releases whole slabs
+		ByteBuffer slab = malloc(Math.max(bytes, Math.min(SLAB_SIZE, bytes * SLAB_SLICES)));
+		ByteBuffer first = null;
+		for (int offset = 0; offset + bytes <= slab.capacity(); offset += bytes) {
+			slab.limit(offset + bytes).position(offset);
+			ByteBuffer slice = slab.slice();
+			if ( first == null ) {
+				first = slice;
+			} else {
+				classes[index].push(slice);
+			}
 		}
+		return first;
+	}
 
-		largeBuffer.limit(largeBuffer.position() + bytes);
-		ByteBuffer bb = largeBuffer.slice();
-		largeBuffer.position(largeBuffer.limit());      
-		return bb;
+	private static void zero(ByteBuffer bb) {
+		int limit = bb.limit();
+		while ( bb.hasRemaining() ) {
+			ByteBuffer zeros = ZEROS.duplicate();
+			zeros.limit(Math.min(zeros.capacity(), bb.remaining()));
+			bb.put(zeros);
+		}
+		bb.position(0).limit(limit);
 	}
 
 	private static ByteBuffer malloc(int bytes) {
@@ -80,43 +304,25 @@ public class SimpleByteBufferPool {
 		}
 		return (bytes > 1) ? Integer.highestOneBit(bytes - 1) << 1 : 1;
 	}
-	
+
+	/**
+	 * The pool is safe for concurrent use, the mutex is not needed
+	 * @deprecated use the constructor
+	 */
+	@Deprecated
 	public static SimpleByteBufferPool synced(final Object mutex) {
-		
-	      if (mutex == null) {
-	         throw new NullPointerException();
-	      }
-
-	      return new SimpleByteBufferPool() {
-	         @Override
-	         public ByteBuffer aquire(int bytes) {
-	            synchronized (mutex) {
-	               return super.aquire(bytes);
-	            }
-	         }
-	         
-	         @Override
-	         public void release(ByteBuffer buffer) {
-	            synchronized (mutex) {
-	               super.release(buffer);
-	            }
-	         }
-	         
-	         @Override
-	         public void flush() {
-	            synchronized (mutex) {
-	               super.flush();
-	            }
-	         }
-	      };
-	   }
-	
+		if (mutex == null) {
+			throw new NullPointerException();
+		}
+		return new SimpleByteBufferPool();
+	}
+
 	public static void main(String args[]) {
 		SimpleByteBufferPool pool = new SimpleByteBufferPool();
 		ByteBuffer buff1 = pool.aquire(1024);
 		pool.aquire(1024*1024-1024);
 		pool.release(buff1);
 		buff1 = pool.aquire(1024);
-		
+
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,204 @@
+package org.scienty.file.patch;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Chunk size of one transfer adapted to the link, additive increase and multiplicative decrease.
+ * Every chunk that arrives in time and keeps the throughput grows the size by a fixed step, a chunk
+ * that fails or arrives later than the target latency shrinks it by a factor. Large chunks cut the
+ * per chunk overhead on good links, small chunks lose less on lossy links.
+ * The sending side takes the size of its next chunk from {@link #chunkSize()}.
+ *
+ * @author prakasid
+ *
+ */
+public class AdaptiveChunkSizer {
+	private final static Logger logger = LogManager.getLogger();
+	public final static long DEFAULT_MIN_SIZE = 64*1024;
+	public final static long DEFAULT_MAX_SIZE = 16*1024*1024;
+	public final static long DEFAULT_ALIGNMENT = 4096;
+	public final static double DEFAULT_DECREASE = 0.5;
+	public final static long DEFAULT_TARGET_LATENCY_MS = 2000;
+	//weight of the last chunk in the averages
+	private final static double WEIGHT = 0.2;
+	//throughput drop tolerated before the size stops growing
+	private final static double TOLERANCE = 0.1;
+
+	private final long minSize;
+	private final long maxSize;
+	private long increment;
+	private double decrease = DEFAULT_DECREASE;
+	private long targetLatencyNanos = DEFAULT_TARGET_LATENCY_MS * 1000000L;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private long chunkSize;
+	//bytes per second, 0 until the first chunk
+	private double throughput = 0;
+	private double errorRate = 0;
+	private long successes = 0;
+	private long failures = 0;
+
+	public AdaptiveChunkSizer() {
+		this(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Starts at the smallest size and grows by the smallest size per chunk
+	 * @param minSize
+	 * @param maxSize
+	 */
+	public AdaptiveChunkSizer(long minSize, long maxSize) {
+		if ( minSize <= 0 || maxSize < minSize ) {
+			throw new IllegalArgumentException("Invalid bounds " + minSize + "-" + maxSize);
+		}
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.increment = minSize;
+		this.chunkSize = minSize;
+	}
+
+	/**
+	 * @param increment bytes added after a good chunk
+	 */
+	public void setIncrement(long increment) {
+		if ( increment <= 0 ) throw new IllegalArgumentException("Invalid increment " + increment);
+		this.increment = increment;
+	}
+
+	/**
+	 * @param decrease factor applied after a bad chunk, between 0 and 1
+	 */
+	public void setDecrease(double decrease) {
+		if ( decrease <= 0 || decrease >= 1 ) throw new IllegalArgumentException("Invalid decrease " + decrease);
+		this.decrease = decrease;
+	}
+
+	/**
+	 * @param millis chunks slower than this shrink the size
+	 */
+	public void setTargetLatency(long millis) {
+		if ( millis <= 0 ) throw new IllegalArgumentException("Invalid latency " + millis);
+		this.targetLatencyNanos = millis * 1000000L;
+	}
+
+	/**
+	 * @return size of the next chunk
+	 */
+	public long chunkSize() {
+		lock.lock();
+		try {
+			return chunkSize;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * A chunk arrived complete
+	 * @param bytes size of the chunk
+	 * @param nanos time from request to the last byte
+	 */
+	public void success(long bytes, long nanos) {
+		if ( bytes <= 0 ) return;
+		nanos = Math.max(1, nanos);
+		double rate = bytes * 1e9 / nanos;
+		lock.lock();
+		try {
+			successes++;
+			errorRate = (1 - WEIGHT) * errorRate;
+			if ( nanos > targetLatencyNanos ) {
+				shrink();
+			} else if ( throughput == 0 || rate >= throughput * (1 - TOLERANCE) ) {
+				resize(chunkSize + increment);
+			}
+			throughput = (throughput == 0) ? rate : (1 - WEIGHT) * throughput + WEIGHT * rate;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * A chunk failed or ended early
+	 */
+	public void failure() {
+		lock.lock();
+		try {
+			failures++;
+			errorRate = (1 - WEIGHT) * errorRate + WEIGHT;
+			shrink();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void shrink() {
+		resize((long)(chunkSize * decrease));
+	}
+
+	private void resize(long size) {
+		size = Math.max(minSize, Math.min(maxSize, size));
+		if ( size > DEFAULT_ALIGNMENT ) {
+			size = Math.max(minSize, size - size % DEFAULT_ALIGNMENT);
+		}
+		if ( size != chunkSize ) {
+			logger.trace("Chunk size " + chunkSize + " -> " + size);
+			chunkSize = size;
+		}
+	}
+
+	/**
+	 * @return average throughput in bytes per second
+	 */
+	public double getThroughput() {
+		lock.lock();
+		try {
+			return throughput;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return average share of chunks that failed, between 0 and 1
+	 */
+	public double getErrorRate() {
+		lock.lock();
+		try {
+			return errorRate;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getSuccesses() {
+		lock.lock();
+		try {
+			return successes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getFailures() {
+		lock.lock();
+		try {
+			return failures;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		lock.lock();
+		try {
+			return "AdaptiveChunkSizer [chunkSize=" + chunkSize + ", throughput=" + (long)throughput
+					+ ", errorRate=" + errorRate + ", successes=" + successes + ", failures=" + failures + "]";
+		} finally {
+			lock.unlock();
+		}
+	}
+}
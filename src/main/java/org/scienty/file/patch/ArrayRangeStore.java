@@ -0,0 +1,403 @@
+package org.scienty.file.patch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * RangeStore keeping the ranges in sorted primitive arrays.
+ * Ranges are disjoint and non adjacent, so both lows and highs are sorted. They are kept in
+ * fixed size blocks (the leaf level of a B+ tree), add/sub find the affected slots with binary
+ * search over the blocks and inside the block, and merge or split by shifting within one block.
+ * Memory is allocated only when a block is split, there is no boxing or per operation garbage.
+ * Uses the same stream format as {@link SlottedRangeStore}.
+ *
+ * @author prakasid
+ *
+ */
+public class ArrayRangeStore implements RangeStore {
+	private final static int BLOCK_SIZE = 256;
+	private final static int INITIAL_BLOCKS = 4;
+	private final static int IO_BUFFER_SIZE = 1024;
+
+	private long[][] lows;
+	private long[][] highs;
+	private int[] counts;
+	private int blocks;
+	private int size;
+
+	//position of the last search, block and offset inside block
+	private int posBlock;
+	private int posOffset;
+
+	public ArrayRangeStore() {
+		init();
+	}
+
+	private void init() {
+		lows = new long[INITIAL_BLOCKS][];
+		highs = new long[INITIAL_BLOCKS][];
+		counts = new int[INITIAL_BLOCKS];
+		blocks = 0;
+		size = 0;
+	}
+
+	@Override
+	public String getRanges() {
+		StringBuilder buff = new StringBuilder();
+		for (int b = 0; b < blocks; b++) {
+			for (int i = 0; i < counts[b]; i++) {
+				if ( buff.length() > 0 ) buff.append(',');
+				buff.append(lows[b][i]).append('-').append(highs[b][i]);
+			}
+		}
+		return buff.toString();
+	}
+
+	@Override
+	public List<Range> ranges() {
+		List<Range> list = new ArrayList<Range>(size);
+		for (int b = 0; b < blocks; b++) {
+			for (int i = 0; i < counts[b]; i++) {
+				list.add(new Range(lows[b][i], highs[b][i]));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void add(long low, long high) {
+		if ( low > high ) {
+			throw new IllegalArgumentException("low is greater than high");
+		}
+		//first range touching or after low
+		firstHighFrom(low == Long.MIN_VALUE ? low : low - 1);
+		int fromBlock = posBlock, fromOffset = posOffset;
+		//first range beyond high
+		firstLowAfter(high == Long.MAX_VALUE ? high : high + 1);
+		int toBlock = posBlock, toOffset = posOffset;
+
+		if ( fromBlock == toBlock && fromOffset == toOffset ) {
+			insert(fromBlock, fromOffset, low, high);
+			return;
+		}
+
+		prev(toBlock, toOffset);
+		long newLow = Math.min(low, lows[fromBlock][fromOffset]);
+		long newHigh = Math.max(high, highs[posBlock][posOffset]);
+		lows[fromBlock][fromOffset] = newLow;
+		highs[fromBlock][fromOffset] = newHigh;
+		next(fromBlock, fromOffset);
+		remove(posBlock, posOffset, toBlock, toOffset);
+	}
+
+	@Override
+	public void sub(long low, long high) {
+		if ( low > high ) {
+			throw new IllegalArgumentException("low is greater than high");
+		}
+		//first range overlapping low
+		firstHighFrom(low);
+		int fromBlock = posBlock, fromOffset = posOffset;
+		//first range after high
+		firstLowAfter(high);
+		int toBlock = posBlock, toOffset = posOffset;
+		if ( fromBlock == toBlock && fromOffset == toOffset ) return;
+
+		prev(toBlock, toOffset);
+		int lastBlock = posBlock, lastOffset = posOffset;
+		boolean keepLeft = lows[fromBlock][fromOffset] < low;
+		boolean keepRight = highs[lastBlock][lastOffset] > high;
+
+		if ( keepLeft && keepRight && fromBlock == lastBlock && fromOffset == lastOffset ) {
+			//split one range in two
+			long rightHigh = highs[fromBlock][fromOffset];
+			highs[fromBlock][fromOffset] = low - 1;
+			insert(fromBlock, fromOffset + 1, high + 1, rightHigh);
+			return;
+		}
+
+		if ( keepLeft ) {
+			highs[fromBlock][fromOffset] = low - 1;
+			next(fromBlock, fromOffset);
+			fromBlock = posBlock;
+			fromOffset = posOffset;
+		}
+		if ( keepRight ) {
+			lows[lastBlock][lastOffset] = high + 1;
+			toBlock = lastBlock;
+			toOffset = lastOffset;
+		}
+		if ( fromBlock != toBlock || fromOffset != toOffset ) {
+			remove(fromBlock, fromOffset, toBlock, toOffset);
+		}
+	}
+
+	/**
+	 * Set position to first range with high >= value, end position if there is none
+	 */
+	private void firstHighFrom(long value) {
+		int lo = 0, hi = blocks;
+		while ( lo < hi ) {
+			int mid = (lo + hi) >>> 1;
+			if ( highs[mid][counts[mid]-1] < value ) lo = mid + 1;
+			else hi = mid;
+		}
+		if ( lo == blocks ) {
+			end();
+			return;
+		}
+		long[] block = highs[lo];
+		int from = 0, to = counts[lo];
+		while ( from < to ) {
+			int mid = (from + to) >>> 1;
+			if ( block[mid] < value ) from = mid + 1;
+			else to = mid;
+		}
+		posBlock = lo;
+		posOffset = from;
+	}
+
+	/**
+	 * Set position to first range with low > value, end position if there is none
+	 */
+	private void firstLowAfter(long value) {
+		int lo = 0, hi = blocks;
+		while ( lo < hi ) {
+			int mid = (lo + hi) >>> 1;
+			if ( lows[mid][counts[mid]-1] <= value ) lo = mid + 1;
+			else hi = mid;
+		}
+		if ( lo == blocks ) {
+			end();
+			return;
+		}
+		long[] block = lows[lo];
+		int from = 0, to = counts[lo];
+		while ( from < to ) {
+			int mid = (from + to) >>> 1;
+			if ( block[mid] <= value ) from = mid + 1;
+			else to = mid;
+		}
+		posBlock = lo;
+		posOffset = from;
+	}
+
+	private void end() {
+		posBlock = (blocks > 0) ? blocks - 1 : 0;
+		posOffset = (blocks > 0) ? counts[posBlock] : 0;
+	}
+
+	private void next(int block, int offset) {
+		if ( offset + 1 < counts[block] || block + 1 >= blocks ) {
+			posBlock = block;
+			posOffset = offset + 1;
+		} else {
+			posBlock = block + 1;
+			posOffset = 0;
+		}
+	}
+
+	private void prev(int block, int offset) {
+		if ( offset > 0 ) {
+			posBlock = block;
+			posOffset = offset - 1;
+		} else {
+			posBlock = block - 1;
+			posOffset = counts[block - 1] - 1;
+		}
+	}
+
+	private void insert(int block, int offset, long low, long high) {
+		if ( blocks == 0 ) {
+			insertBlock(0);
+		} else if ( counts[block] == BLOCK_SIZE ) {
+			//split the full block in halves
+			int half = BLOCK_SIZE / 2;
+			insertBlock(block + 1);
+			System.arraycopy(lows[block], half, lows[block + 1], 0, BLOCK_SIZE - half);
+			System.arraycopy(highs[block], half, highs[block + 1], 0, BLOCK_SIZE - half);
+			counts[block + 1] = BLOCK_SIZE - half;
+			counts[block] = half;
+			if ( offset > half ) {
+				block++;
+				offset -= half;
+			}
+		}
+		int count = counts[block];
+		System.arraycopy(lows[block], offset, lows[block], offset + 1, count - offset);
+		System.arraycopy(highs[block], offset, highs[block], offset + 1, count - offset);
+		lows[block][offset] = low;
+		highs[block][offset] = high;
+		counts[block]++;
+		size++;
+	}
+
+	/**
+	 * Remove ranges from the start position (inclusive) to the end position (exclusive)
+	 */
+	private void remove(int fromBlock, int fromOffset, int toBlock, int toOffset) {
+		if ( fromBlock == toBlock ) {
+			int count = counts[fromBlock];
+			System.arraycopy(lows[fromBlock], toOffset, lows[fromBlock], fromOffset, count - toOffset);
+			System.arraycopy(highs[fromBlock], toOffset, highs[fromBlock], fromOffset, count - toOffset);
+			counts[fromBlock] = count - (toOffset - fromOffset);
+			size -= toOffset - fromOffset;
+		} else {
+			//head of the last block, whole blocks in between and tail of the first block
+			int count = counts[toBlock];
+			System.arraycopy(lows[toBlock], toOffset, lows[toBlock], 0, count - toOffset);
+			System.arraycopy(highs[toBlock], toOffset, highs[toBlock], 0, count - toOffset);
+			counts[toBlock] = count - toOffset;
+			size -= toOffset;
+			for (int b = fromBlock + 1; b < toBlock; b++) {
+				size -= counts[b];
+			}
+			removeBlocks(fromBlock + 1, toBlock);
+			size -= counts[fromBlock] - fromOffset;
+			counts[fromBlock] = fromOffset;
+			if ( counts[fromBlock + 1] == 0 ) removeBlocks(fromBlock + 1, fromBlock + 2);
+		}
+		if ( counts[fromBlock] == 0 ) {
+			removeBlocks(fromBlock, fromBlock + 1);
+		}
+		merge(fromBlock);
+		merge(fromBlock - 1);
+	}
+
+	/**
+	 * Merge the block with the next one if both fit in half a block
+	 */
+	private void merge(int block) {
+		if ( block < 0 || block + 1 >= blocks || counts[block] + counts[block + 1] > BLOCK_SIZE / 2 ) return;
+		int count = counts[block];
+		System.arraycopy(lows[block + 1], 0, lows[block], count, counts[block + 1]);
+		System.arraycopy(highs[block + 1], 0, highs[block], count, counts[block + 1]);
+		counts[block] += counts[block + 1];
+		removeBlocks(block + 1, block + 2);
+	}
+
+	private void insertBlock(int block) {
+		if ( blocks == counts.length ) {
+			int capacity = blocks * 2;
+			lows = Arrays.copyOf(lows, capacity);
+			highs = Arrays.copyOf(highs, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+		}
+		System.arraycopy(lows, block, lows, block + 1, blocks - block);
+		System.arraycopy(highs, block, highs, block + 1, blocks - block);
+		System.arraycopy(counts, block, counts, block + 1, blocks - block);
+		lows[block] = new long[BLOCK_SIZE];
+		highs[block] = new long[BLOCK_SIZE];
+		counts[block] = 0;
+		blocks++;
+	}
+
+	private void removeBlocks(int from, int to) {
+		if ( from >= to ) return;
+		System.arraycopy(lows, to, lows, from, blocks - to);
+		System.arraycopy(highs, to, highs, from, blocks - to);
+		System.arraycopy(counts, to, counts, from, blocks - to);
+		for (int b = blocks - (to - from); b < blocks; b++) {
+			lows[b] = null;
+			highs[b] = null;
+			counts[b] = 0;
+		}
+		blocks -= to - from;
+	}
+
+	@Override
+	public void load(FileChannel channel) throws IOException {
+		ByteBuffer inBuff = ByteBuffer.allocate(Long.BYTES);
+		while ( inBuff.hasRemaining() && channel.read(inBuff) > 0 );
+		if ( inBuff.position() == 0 ) return;
+
+		inBuff.flip();
+		long remaining = (inBuff.remaining() == Long.BYTES) ? inBuff.getLong() : -1;
+		if ( remaining < 0 || remaining % (2 * Long.BYTES) != 0 ) {
+			init();
+			throw new IllegalStateException("Channel does not hold expected data");
+		}
+
+		inBuff = ByteBuffer.allocate((int)Math.min(remaining, IO_BUFFER_SIZE));
+		while ( remaining > 0 ) {
+			inBuff.clear();
+			if ( remaining < inBuff.capacity() ) inBuff.limit((int)remaining);
+			while ( inBuff.hasRemaining() && channel.read(inBuff) > 0 );
+			if ( inBuff.hasRemaining() ) {
+				init();
+				throw new IllegalStateException("Channel does not hold expected data");
+			}
+			inBuff.flip();
+			remaining -= inBuff.remaining();
+			while ( inBuff.hasRemaining() ) {
+				add(inBuff.getLong(), inBuff.getLong());
+			}
+		}
+	}
+
+	@Override
+	public long store(FileChannel channel) throws IOException {
+		long rangeLen = size * 2L * Long.BYTES;
+		ByteBuffer outBuff = ByteBuffer.allocate((int)Math.min(rangeLen + Long.BYTES, IO_BUFFER_SIZE));
+		outBuff.putLong(rangeLen);
+		for (int b = 0; b < blocks; b++) {
+			for (int i = 0; i < counts[b]; i++) {
+				if ( outBuff.remaining() < 2 * Long.BYTES ) {
+					write(channel, outBuff);
+				}
+				outBuff.putLong(lows[b][i]);
+				outBuff.putLong(highs[b][i]);
+			}
+		}
+		write(channel, outBuff);
+		return rangeLen;
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buff) throws IOException {
+		buff.flip();
+		while ( buff.hasRemaining() ) {
+			channel.write(buff);
+		}
+		buff.clear();
+	}
+
+	@Override
+	public Range span() {
+		if ( size > 0 )
+			return new Range(lows[0][0], highs[blocks-1][counts[blocks-1]-1]);
+		return null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean intersects(long low, long high) {
+		if ( size == 0 ) return false;
+		firstHighFrom(low);
+		if ( posOffset >= counts[posBlock] ) return false;
+		return lows[posBlock][posOffset] <= high;
+	}
+
+	@Override
+	public RangeStore copy() {
+		ArrayRangeStore rs = new ArrayRangeStore();
+		rs.lows = new long[Math.max(INITIAL_BLOCKS, blocks)][];
+		rs.highs = new long[rs.lows.length][];
+		rs.counts = new int[rs.lows.length];
+		for (int b = 0; b < blocks; b++) {
+			rs.lows[b] = lows[b].clone();
+			rs.highs[b] = highs[b].clone();
+			rs.counts[b] = counts[b];
+		}
+		rs.blocks = blocks;
+		rs.size = size;
+		return rs;
+	}
+}
@@ -1,24 +1,146 @@
 package org.scienty.file.patch;
 
 import java.io.File;
+import java.io.Flushable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.Checksum;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.scienty.java.util.zip.CRC32C;
 
 public class AssemblyLog {
+	private final static Logger logger = LogManager.getLogger();
 	//low (long), high (long), blank
 	private static final int ENTRY_SIZE = 2*Long.BYTES;
+	//low (long), high (long), checksum (long) of version 2 logs
+	private static final int CHECKSUM_ENTRY_SIZE = 3*Long.BYTES;
+	//range of a checkpoint
+	private static final int RANGE_SIZE = 2*Long.BYTES;
+	private static final int REPLAY_BUFFER_SIZE = 4096*CHECKSUM_ENTRY_SIZE;
+	//first entry of a checkpoint, followed by the checkpoint size and, in version 2 logs, the number of
+	//checksums. The entry is followed by the remaining ranges and the checksums of the completed ranges
+	private static final long CHECKPOINT_MARK = -1L;
+	public static final long DEFAULT_COMPACT_THRESHOLD = 64*1024;
+	//checksum of an entry appended without one
+	public static final long NO_CHECKSUM = -1L;
 	
 	private AssemblyLogHeader header;
 	private File file;
-	private FileChannel wrChannel;
-	private FileChannel rdChannel;
-	//private ReentrantLock wrLock = null;
+	private LogBackend backend;
+	//read lock for writes to the log, write lock to swap the log file
+	private final ReentrantReadWriteLock wrLock = new ReentrantReadWriteLock();
+	//guards the remaining ranges and the group commit buffers
+	private final ReentrantLock stateLock = new ReentrantLock();
+	private RangeStore remaining;
+	private CommitPolicy commitPolicy;
+	private Flushable dataSync;
+	private GroupCommitter committer;
+	//entries written after the last checkpoint
+	private final AtomicLong tailEntries = new AtomicLong();
+	private volatile long compactThreshold = DEFAULT_COMPACT_THRESHOLD;
+	//tail size at which compaction shrinks the log
+	private volatile long compactAt = 0;
+	//create new logs with checksummed entries
+	private boolean checksums = false;
+	private int entrySize = ENTRY_SIZE;
+	//checksums of the completed ranges, carried by the checkpoints of version 2 logs
+	private ChecksumTable checksumTable = new ChecksumTable();
+	//checksums in the last checkpoint
+	private long checkpointChecksums = 0;
+
 	public AssemblyLog(File logfile) {
+		this(logfile, null);
+	}
+
+	/**
+	 * @param logfile
+	 * @param commitPolicy group commit policy, null to write every append directly to the log
+	 */
+	public AssemblyLog(File logfile, CommitPolicy commitPolicy) {
+		this(logfile, commitPolicy, null);
+	}
+
+	/**
+	 * @param logfile
+	 * @param commitPolicy group commit policy, null to write every append directly to the log
+	 * @param backend storage of the log file, null for {@link FileLogBackend}
+	 */
+	public AssemblyLog(File logfile, CommitPolicy commitPolicy, LogBackend backend) {
 		this.file = logfile;
-		//wrLock = new ReentrantLock();
 		header = new AssemblyLogHeader();
+		this.commitPolicy = commitPolicy;
+		this.backend = (backend != null) ? backend : new FileLogBackend();
+	}
+
+	/**
+	 * Set the hook that forces the data file covered by this log.
+	 * In group commit mode it is called before every batch is written to the log.
+	 * @param dataSync
+	 */
+	public void setDataSync(Flushable dataSync) {
+		this.dataSync = dataSync;
+	}
+
+	public CommitPolicy commitPolicy() {
+		return commitPolicy;
+	}
+	
+	/**
+	 * Set the number of entries after the last checkpoint that trigger an automatic compaction
+	 * @param compactThreshold 0 to disable automatic compaction
+	 */
+	public void setCompactThreshold(long compactThreshold) {
+		if ( compactThreshold < 0 ) throw new IllegalArgumentException("Invalid threshold " + compactThreshold);
+		this.compactThreshold = compactThreshold;
+	}
+	
+	public long getCompactThreshold() {
+		return compactThreshold;
+	}
+	
+	/**
+	 * Record the checksum of every range, applies to the log created by {@link #initFile(Long, Long, String)}.
+	 * Existing log keeps its own format.
+	 * @param checksums
+	 */
+	public void setChecksums(boolean checksums) {
+		this.checksums = checksums;
+	}
+	
+	/**
+	 * @return true if the entries of this log carry the checksum of the range
+	 */
+	public boolean hasChecksums() {
+		return header.version() == AssemblyLogHeader.VERSION_2;
+	}
+	
+	/**
+	 * Return the checksums of the completed ranges, those carried by the last checkpoint followed by
+	 * the checksummed entries after it. Ranges returned by {@link #reopen(Collection)} are dropped.
+	 * @return
+	 */
+	public List<ChunkChecksum> replayedChecksums() {
+		stateLock.lock();
+		try {
+			return Collections.unmodifiableList(checksumTable.list());
+		} finally {
+			stateLock.unlock();
+		}
 	}
 	
 	/**
@@ -33,7 +155,7 @@ public class AssemblyLog {
 	 */
 	public boolean initFile(Long low, Long high, String tag) throws IOException {
 		if ( file.exists() == false  ) {
-			header.init(low, high, tag);
+			header.init(low, high, tag, checksums ? AssemblyLogHeader.VERSION_2 : AssemblyLogHeader.VERSION_1);
 			init(false);
 			return true;
 		}
@@ -45,90 +167,423 @@ public class AssemblyLog {
 	public void init(boolean readOnly) throws IOException {
 		boolean refreshHeader = true;
 		
-		if ( readOnly == false && wrChannel == null ) {
-			wrChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-			if ( wrChannel.size() == 0) {
+		if ( readOnly == false && (backend.isOpen() == false || backend.isReadOnly()) ) {
+			backend.close();
+			backend.open(file, false);
+			if ( backend.size() == 0) {
 				//new file
-				header.write(wrChannel);
+				header.write(backend);
 				refreshHeader = false;
-			} else if (wrChannel.size() < header.size()) {
+			} else if (backend.size() < header.size()) {
 				throw new IllegalStateException("Invalid file size");
 			}
-		} 
+		} else if ( backend.isOpen() == false ) {
+			backend.open(file, true);
+		}
 		
-		if ( rdChannel == null ) {
-			rdChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		if ( remaining == null ) {
+			//replay the log once, appends keep the store up to date afterwards
 			if ( refreshHeader ) {
-				header.read(rdChannel);
+				header.read(backend.read(0, ByteBuffer.allocate(header.size())));
+			}
+			entrySize = hasChecksums() ? CHECKSUM_ENTRY_SIZE : ENTRY_SIZE;
+			RangeStore rangeStore = new ArrayRangeStore();
+			ChecksumTable table = new ChecksumTable();
+			long end = replay(rangeStore, table);
+			if ( backend.isReadOnly() == false && end < backend.size() ) {
+				logger.warn("Dropping " + (backend.size() - end) + " trailing bytes of " + file);
+				backend.truncate(end);
+			}
+			stateLock.lock();
+			try {
+				remaining = rangeStore;
+				checksumTable = table;
+			} finally {
+				stateLock.unlock();
 			}
 		}
 		
+		if ( readOnly == false && commitPolicy != null && committer == null ) {
+			committer = new GroupCommitter(commitPolicy);
+			committer.start();
+		}
 	}
 	
 	public void append(long low, long high) throws IOException {
+		append(low, high, NO_CHECKSUM);
+	}
+	
+	/**
+	 * Record the range as complete
+	 * @param low
+	 * @param high
+	 * @param checksum CRC32C of the range bytes, or {@link #NO_CHECKSUM}. Ignored if the log has no checksums
+	 * @throws IOException
+	 */
+	public void append(long low, long high, long checksum) throws IOException {
+		if ( committer != null ) {
+			committer.append(low, high, checksum);
+			return;
+		}
+		
 		//TODO: use buffer pool
 		//This is mostly thread safe as each write to the channel is safe
-		ByteBuffer writeBuff = ByteBuffer.allocate(ENTRY_SIZE);
+		ByteBuffer writeBuff = ByteBuffer.allocate(entrySize);
 		writeBuff.clear();
 		writeBuff.putLong(low);
 		writeBuff.putLong(high);
+		if ( entrySize == CHECKSUM_ENTRY_SIZE ) {
+			writeBuff.putLong(checksum);
+		}
 		writeBuff.flip();
-		while (writeBuff.hasRemaining()) {
-			wrChannel.write(writeBuff);
+		wrLock.readLock().lock();
+		try {
+			backend.write(writeBuff);
+			
+			stateLock.lock();
+			try {
+				remaining.sub(low, high);
+				if ( entrySize == CHECKSUM_ENTRY_SIZE && checksum != NO_CHECKSUM ) {
+					checksumTable.add(low, high, checksum);
+				}
+			} finally {
+				stateLock.unlock();
+			}
+		} finally {
+			wrLock.readLock().unlock();
+		}
+		
+		if ( compactDue(tailEntries.incrementAndGet()) ) {
+			autoCompact();
 		}
 	}
 	
 	/**
-	 * Return the range store with remaining ranges of a file to complete
+	 * @return CRC32C of the bytes between the chunk position and limit, the chunk is not modified
+	 */
+	static long checksum(ByteBuffer chunk) {
+		Checksum checksum = CRC32C.create();
+		CRC32C.update(checksum, chunk.duplicate());
+		return checksum.getValue();
+	}
+	
+	/**
+	 * Return a snapshot of the range store with remaining ranges of a file to complete.
+	 * The store is maintained by append, the log file is replayed only once on init
 	 * @return
 	 * @throws IOException
 	 */
 	public RangeStore read() throws IOException {
-		//TODO: use buffer pool
-		ByteBuffer readBuff = ByteBuffer.allocate(ENTRY_SIZE);
-		SlottedRangeStore rangeStore = new SlottedRangeStore();
-		Range fullRange = header.span();
-		rangeStore.add(fullRange.low, fullRange.high);
-		rdChannel.position(header.size());
+		stateLock.lock();
+		try {
+			if ( remaining == null ) throw new IllegalStateException("Not initialized");
+			return remaining.copy();
+		} finally {
+			stateLock.unlock();
+		}
+	}
+	
+	/**
+	 * @return true if no range is remaining to complete
+	 */
+	public boolean isComplete() {
+		stateLock.lock();
+		try {
+			if ( remaining == null ) throw new IllegalStateException("Not initialized");
+			return remaining.size() == 0;
+		} finally {
+			stateLock.unlock();
+		}
+	}
+	
+	/**
+	 * @return true if no byte of the range, both inclusive, is remaining to complete
+	 */
+	public boolean isComplete(long low, long high) {
+		stateLock.lock();
+		try {
+			if ( remaining == null ) throw new IllegalStateException("Not initialized");
+			return remaining.intersects(low, high) == false;
+		} finally {
+			stateLock.unlock();
+		}
+	}
+	
+	/**
+	 * Load the checkpoint, if any, and apply the entries written after it.
+	 * Zero entries are slots claimed by an append that did not reach the disk, they are skipped.
+	 * This skips a genuine 0-0 entry as well, which only costs a refetch of the first byte.
+	 * Checksums of the checkpoint and of the entries are collected for {@link #replayedChecksums()}.
+	 * @return end position of the last entry
+	 */
+	private long replay(RangeStore rangeStore, ChecksumTable checksums) throws IOException {
+		ByteBuffer readBuff = ByteBuffer.allocate(REPLAY_BUFFER_SIZE);
+		long position = header.size();
+		long end = position;
+		long count = 0;
+		//ranges of the checkpoint yet to load
+		long checkpointRanges = 0;
+		checkpointChecksums = 0;
+		//checksums of the checkpoint yet to load
+		long checkpointSums = 0;
+		boolean first = true;
+		
+		while ( true ) {
+			ByteBuffer buff = backend.read(position, readBuff);
+			int start = buff.position();
+			if ( first ) {
+				first = false;
+				if ( buff.remaining() >= entrySize + Long.BYTES && buff.getLong(start) == CHECKPOINT_MARK ) {
+					//mark entry with the checkpoint size, followed by remaining ranges at the time of checkpoint
+					if ( entrySize == CHECKSUM_ENTRY_SIZE ) {
+						//checkpoints written before the checksums were carried have none
+						checkpointSums = buff.getLong(start + 2*Long.BYTES);
+						checkpointChecksums = checkpointSums;
+					}
+					buff.position(start + entrySize);
+					checkpointRanges = buff.getLong() / RANGE_SIZE;
+					//a checkpoint without ranges, the file was complete, ends here
+					end = position + buff.position() - start;
+				} else {
+					Range fullRange = header.span();
+					rangeStore.add(fullRange.low, fullRange.high);
+				}
+			}
+			
+			while ( checkpointRanges > 0 && buff.remaining() >= RANGE_SIZE ) {
+				rangeStore.add(buff.getLong(), buff.getLong());
+				checkpointRanges--;
+				end = position + buff.position() - start;
+			}
+			
+			while ( checkpointRanges == 0 && checkpointSums > 0 && buff.remaining() >= CHECKSUM_ENTRY_SIZE ) {
+				checksums.add(buff.getLong(), buff.getLong(), buff.getLong());
+				checkpointSums--;
+				end = position + buff.position() - start;
+			}
+			
+			while ( checkpointRanges == 0 && checkpointSums == 0 && buff.remaining() >= entrySize ) {
+				long low = buff.getLong();
+				long high = buff.getLong();
+				long checksum = (entrySize == CHECKSUM_ENTRY_SIZE) ? buff.getLong() : NO_CHECKSUM;
+				if ( low == 0 && high == 0 ) continue;
+				rangeStore.sub(low, high);
+				if ( checksum != NO_CHECKSUM ) {
+					checksums.add(low, high, checksum);
+				}
+				count++;
+				end = position + buff.position() - start;
+			}
+			
+			int consumed = buff.position() - start;
+			if ( consumed == 0 ) break;
+			position += consumed;
+		}
 		
-		while ( rdChannel.read(readBuff) == readBuff.capacity() ) {
-			readBuff.rewind();
-			rangeStore.sub(readBuff.getLong(), readBuff.getLong());
-			readBuff.rewind();
+		if ( checkpointRanges > 0 || checkpointSums > 0 ) {
+			throw new IllegalStateException("Incomplete checkpoint in " + file);
 		}
-		return rangeStore;
+		tailEntries.set(count);
+		return end;
 	}
 	
 	public AssemblyLogHeader header() {
 		return this.header;
 	}
 	
+	/**
+	 * Write all the appended entries to the log and force it to the disk
+	 * @throws IOException
+	 */
 	public void flush() throws IOException {
-		wrChannel.force(false);
+		if ( committer != null ) {
+			committer.sync();
+		}
+		wrLock.readLock().lock();
+		try {
+			backend.force();
+		} finally {
+			wrLock.readLock().unlock();
+		}
 	}
 	
 	public void close() throws IOException {
-		if ( wrChannel != null ) {
-			wrChannel.close();
-			wrChannel = null;
+		if ( committer != null ) {
+			try {
+				committer.shutdown();
+			} finally {
+				committer = null;
+			}
+		}
+		
+		wrLock.writeLock().lock();
+		try {
+			backend.close();
+		} finally {
+			wrLock.writeLock().unlock();
 		}
 		
-		if ( rdChannel != null ) {
-			rdChannel.close();
-			rdChannel = null;
+		stateLock.lock();
+		try {
+			//reload from the file on next init
+			remaining = null;
+			checksumTable = new ChecksumTable();
+		} finally {
+			stateLock.unlock();
 		}
 	}
 	
 	/**
-	 * This is not a thread safe operation
+	 * Replace the log with a checkpoint of the remaining ranges, and in a checksummed log the
+	 * checksums of the completed ranges so they can be verified on resume.
+	 * The checkpoint is written to a temporary file which is moved over the log, so either
+	 * the old log or the checkpoint survives a crash. Appends are blocked while the file is swapped,
+	 * entries staged for group commit are written after the checkpoint.
 	 * @throws IOException
 	 */
 	public void compact() throws IOException {
-		throw new IOException ("Not implemented");
-		//RangeStore ranges = read();
-		//wrChannel.position(header.size());
-		//iterate ranges and write to file
-		//wrChannel.truncate(wrChannel.position());
+		wrLock.writeLock().lock();
+		try {
+			if ( writable() == false ) throw new IllegalStateException("Not initialized for write");
+			compactLocked(false);
+		} finally {
+			wrLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Return the ranges to the remaining set, used when the written bytes turn out to be corrupt.
+	 * The log has no entry to add a range, the ranges are persisted by writing a checkpoint.
+	 * Checksums of the entries overlapping the ranges are dropped.
+	 * @param ranges inclusive ranges
+	 * @throws IOException
+	 */
+	public void reopen(Collection<Range> ranges) throws IOException {
+		if ( ranges.isEmpty() ) return;
+		
+		wrLock.writeLock().lock();
+		try {
+			if ( writable() == false ) throw new IllegalStateException("Not initialized for write");
+			stateLock.lock();
+			try {
+				for (Range range : ranges) {
+					remaining.add(range.low, range.high);
+				}
+				checksumTable.remove(ranges);
+			} finally {
+				stateLock.unlock();
+			}
+			compactLocked(true);
+		} finally {
+			wrLock.writeLock().unlock();
+		}
+	}
+	
+	private boolean writable() {
+		return backend.isOpen() && backend.isReadOnly() == false;
+	}
+	
+	private boolean compactDue(long tail) {
+		long threshold = compactThreshold;
+		return threshold > 0 && tail >= threshold && tail >= compactAt;
+	}
+	
+	private void autoCompact() throws IOException {
+		//one compaction at a time, others continue to append
+		if ( wrLock.writeLock().tryLock() ) {
+			try {
+				if ( writable() && compactDue(tailEntries.get()) ) {
+					compactLocked(false);
+				}
+			} finally {
+				wrLock.writeLock().unlock();
+			}
+		}
+	}
+	
+	/**
+	 * @param force write the checkpoint even if it is larger than the entries it replaces
+	 */
+	private void compactLocked(boolean force) throws IOException {
+		RangeStore checkpoint;
+		ChecksumTable checkpointSums = null;
+		stateLock.lock();
+		try {
+			checkpoint = remaining.copy();
+			if ( entrySize == CHECKSUM_ENTRY_SIZE ) {
+				checkpointSums = checksumTable.copy();
+			}
+		} finally {
+			stateLock.unlock();
+		}
+		
+		long tail = tailEntries.get();
+		//checksums are carried from checkpoint to checkpoint, waiting for the tail to outgrow them
+		//as well bounds the rewrites of the checksums to twice their size
+		long carried = checkpoint.size() + checkpointChecksums;
+		if ( force == false && tail < carried ) {
+			//checkpoint is not going to be smaller than the log, try when the tail outgrows it
+			compactAt = carried;
+			return;
+		}
+		
+		//data of the completed ranges must be on the disk before the checkpoint claims it
+		if ( dataSync != null ) {
+			dataSync.flush();
+		}
+		
+		File tmpFile = new File(file.getPath() + ".tmp");
+		FileChannel tmpChannel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE, 
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			header.write(tmpChannel);
+			//mark takes a whole entry slot
+			ByteBuffer markBuff = ByteBuffer.allocate(entrySize);
+			markBuff.putLong(CHECKPOINT_MARK);
+			long sums = (checkpointSums != null) ? checkpointSums.size() : 0;
+			markBuff.putLong(Long.BYTES + checkpoint.size() * (long)RANGE_SIZE + sums * CHECKSUM_ENTRY_SIZE);
+			if ( checkpointSums != null ) {
+				markBuff.putLong(sums);
+			}
+			markBuff.clear();
+			while ( markBuff.hasRemaining() ) {
+				tmpChannel.write(markBuff);
+			}
+			checkpoint.store(tmpChannel);
+			if ( checkpointSums != null ) {
+				checkpointSums.store(tmpChannel);
+			}
+			tmpChannel.force(true);
+		} finally {
+			tmpChannel.close();
+		}
+		
+		backend.close();
+		try {
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			syncDirectory();
+			tailEntries.set(0);
+			compactAt = 0;
+			checkpointChecksums = (checkpointSums != null) ? checkpointSums.size() : 0;
+			logger.debug("Compacted " + tail + " entries of " + file + " to " + checkpoint.size() + " ranges");
+		} finally {
+			backend.open(file, false);
+		}
+	}
+	
+	private void syncDirectory() {
+		File folder = file.getAbsoluteFile().getParentFile();
+		try {
+			FileChannel dirChannel = FileChannel.open(folder.toPath(), StandardOpenOption.READ);
+			try {
+				dirChannel.force(true);
+			} finally {
+				dirChannel.close();
+			}
+		} catch (IOException e) {
+			//not supported on all the platforms
+			logger.trace("Failed to sync directory " + folder);
+		}
 	}
 	
 	public boolean delete() {
@@ -136,6 +591,214 @@ public class AssemblyLog {
 		return false;
 	}
 	
+	/**
+	 * Single writer that drains the staged entries in batches.
+	 * Appenders only copy the entry into the pending buffer, the writer swaps the pending buffer
+	 * with the one it has written, forces the data file, writes the whole batch in one call and
+	 * forces the log according to the commit policy.
+	 */
+	private class GroupCommitter implements Runnable {
+		private final CommitPolicy policy;
+		private final ReentrantLock lock = stateLock;
+		//signalled when the writer has a batch to drain
+		private final Condition pendingCond = lock.newCondition();
+		//signalled when the pending buffer has room
+		private final Condition spaceCond = lock.newCondition();
+		//signalled when a batch is written
+		private final Condition commitCond = lock.newCondition();
+		private ByteBuffer pending;
+		private ByteBuffer writing;
+		private long appended = 0;
+		private long written = 0;
+		private long syncTarget = 0;
+		private long lastCommit;
+		private boolean closing = false;
+		private IOException writeEx = null;
+		private Thread thread;
+
+		GroupCommitter(CommitPolicy policy) {
+			this.policy = policy;
+			int capacity = Math.max(entrySize, policy.getBufferSize() - policy.getBufferSize() % entrySize);
+			pending = ByteBuffer.allocateDirect(capacity);
+			writing = ByteBuffer.allocateDirect(capacity);
+		}
+
+		void start() {
+			lastCommit = System.nanoTime();
+			thread = new Thread(this, "AssemblyLog-" + file.getName());
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void append(long low, long high, long checksum) throws IOException {
+			lock.lock();
+			try {
+				checkState();
+				while ( pending.remaining() < entrySize ) {
+					pendingCond.signal();
+					spaceCond.awaitUninterruptibly();
+					checkState();
+				}
+				pending.putLong(low);
+				pending.putLong(high);
+				if ( entrySize == CHECKSUM_ENTRY_SIZE ) {
+					pending.putLong(checksum);
+				}
+				appended++;
+				remaining.sub(low, high);
+				if ( entrySize == CHECKSUM_ENTRY_SIZE && checksum != NO_CHECKSUM ) {
+					checksumTable.add(low, high, checksum);
+				}
+				//wake up the writer for a ready batch or to start the interval timer
+				if ( pending.position() == entrySize || ready() ) {
+					pendingCond.signal();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Wait till all the entries appended so far are written to the log
+		 */
+		void sync() throws IOException {
+			lock.lock();
+			try {
+				long target = appended;
+				if ( target > syncTarget ) syncTarget = target;
+				pendingCond.signal();
+				while ( written < target && writeEx == null && thread.isAlive() ) {
+					commitCond.awaitUninterruptibly();
+				}
+				if ( writeEx != null ) {
+					throw new WriteException("Failed to write assembly log", writeEx);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void shutdown() throws IOException {
+			lock.lock();
+			try {
+				closing = true;
+				pendingCond.signal();
+				spaceCond.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while closing assembly log");
+			}
+			
+			if ( writeEx != null ) {
+				throw new WriteException("Failed to write assembly log", writeEx);
+			}
+		}
+
+		private void checkState() throws IOException {
+			if ( writeEx != null ) {
+				throw new WriteException("Failed to write assembly log", writeEx);
+			}
+			if ( closing ) {
+				throw new WriteException("Assembly log is closed");
+			}
+		}
+
+		private boolean ready() {
+			if ( pending.position() == 0 ) return false;
+			if ( closing || syncTarget > written || pending.remaining() < entrySize ) return true;
+			
+			switch (policy.getMode()) {
+			case PER_BATCH:
+				return true;
+			case BYTES:
+				return pending.position() >= policy.getBytes();
+			case INTERVAL:
+				return System.nanoTime() - lastCommit >= TimeUnit.MILLISECONDS.toNanos(policy.getInterval());
+			default:
+				return false;
+			}
+		}
+
+		@Override
+		public void run() {
+			while ( true ) {
+				long batchEnd;
+				lock.lock();
+				try {
+					while ( ready() == false ) {
+						if ( closing ) return;
+						
+						if ( policy.getMode() == CommitPolicy.Mode.INTERVAL && pending.position() > 0 ) {
+							long wait = TimeUnit.MILLISECONDS.toNanos(policy.getInterval()) - (System.nanoTime() - lastCommit);
+							pendingCond.awaitNanos(wait);
+						} else {
+							pendingCond.await();
+						}
+					}
+					ByteBuffer swap = writing;
+					writing = pending;
+					pending = swap;
+					batchEnd = appended;
+					spaceCond.signalAll();
+				} catch (InterruptedException e) {
+					closing = true;
+					continue;
+				} finally {
+					lock.unlock();
+				}
+				
+				IOException ex = null;
+				try {
+					wrLock.readLock().lock();
+					try {
+						commit(writing);
+					} finally {
+						wrLock.readLock().unlock();
+					}
+					if ( compactDue(tailEntries.addAndGet(batchEnd - written)) ) {
+						autoCompact();
+					}
+				} catch (IOException e) {
+					logger.error("Failed to write assembly log " + file, e);
+					ex = e;
+				}
+				
+				lock.lock();
+				try {
+					if ( ex != null && writeEx == null ) writeEx = ex;
+					written = batchEnd;
+					lastCommit = System.nanoTime();
+					commitCond.signalAll();
+					spaceCond.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+
+		private void commit(ByteBuffer batch) throws IOException {
+			batch.flip();
+			try {
+				//data must be on the disk before the log claims it
+				if ( dataSync != null ) {
+					dataSync.flush();
+				}
+				backend.write(batch);
+				if ( policy.getMode() != CommitPolicy.Mode.ON_FLUSH ) {
+					backend.force();
+				}
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+	
 	public static void main(String args[]) throws IOException {
 		AssemblyLog logFile = new AssemblyLog(new File("c:/temp1/testlog.bin"));
 		logFile.initFile(0L,1000L, "Taggg");
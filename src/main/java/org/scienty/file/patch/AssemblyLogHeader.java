@@ -13,7 +13,12 @@ public class AssemblyLogHeader {
 	private final static int TAG_SLOT_BYTES = Integer.BYTES + TAG_MAX_BYTES; // actualSize (int)  + md5 is 16bytes
 	private final static int RANGE_BYTES = 2*Long.BYTES;
 	
+	public final static int VERSION_1 = 1;
+	//entries carry the checksum of the range
+	public final static int VERSION_2 = 2;
+	
 	private static byte[] magic = "CFS".getBytes(charset);
+	private static byte[] magicV2 = "CFC".getBytes(charset);
 	private ByteBuffer spanBuff = null; //expected range 2*8
 	private ByteBuffer tagBuff = null;
 	private ByteBuffer byteBuff = null;
@@ -32,6 +37,11 @@ public class AssemblyLogHeader {
 	}
 	
 	public void init(Long low, Long high, String tag) {
+		init(low, high, tag, VERSION_1);
+	}
+	
+	public void init(Long low, Long high, String tag, int version) {
+		if ( version != VERSION_1 && version != VERSION_2 ) throw new IllegalArgumentException("Unknown version " + version);
 		if ( low > high ) throw new IllegalArgumentException("Low > high");
 		if ( tag.length() > 16) throw new IllegalArgumentException("Tag size limit exceeded");
 		spanBuff.clear();
@@ -41,6 +51,25 @@ public class AssemblyLogHeader {
 		byte[] tagBytes = tag.getBytes(charset);
 		tagBuff.putInt(tagBytes.length);
 		tagBuff.put(tagBytes);
+		byteBuff.clear();
+		byteBuff.put(version == VERSION_2 ? magicV2 : magic);
+	}
+	
+	public int version() {
+		return matches(magicV2) ? VERSION_2 : VERSION_1;
+	}
+	
+	private boolean matches(byte[] signature) {
+		for (int i=0; i < signature.length; i++) {
+			if ( signature[i] != byteBuff.get(i) ) return false;
+		}
+		return true;
+	}
+	
+	private void checkSignature() {
+		if ( matches(magic) == false && matches(magicV2) == false ) {
+			throw new IllegalArgumentException("Invalid file signature");
+		}
 	}
 
 	public int size() {
@@ -71,6 +100,35 @@ public class AssemblyLogHeader {
 		}
 	}
 	
+	public void write(LogBackend backend) throws IOException {
+		byteBuff.clear();
+		backend.write(byteBuff);
+	}
+	
+	/**
+	 * Put the header at the buffer position
+	 * @param buff
+	 */
+	public void write(ByteBuffer buff) {
+		byteBuff.clear();
+		buff.put(byteBuff);
+	}
+	
+	/**
+	 * Read the header from the buffer position
+	 * @param buff
+	 */
+	public void read(ByteBuffer buff) {
+		if ( buff.remaining() < size() ) {
+			throw new IllegalArgumentException("Buffer underflow");
+		}
+		byteBuff.clear();
+		ByteBuffer src = buff.duplicate();
+		src.limit(src.position() + size());
+		byteBuff.put(src);
+		checkSignature();
+	}
+	
 	public void read(FileChannel channel) throws IOException {
 		if ( (channel.size() - channel.position()) < size() ) {
 			throw new IllegalArgumentException("Channel underflow");
@@ -80,16 +138,13 @@ public class AssemblyLogHeader {
 		while (n < size() )
 		 n+= channel.read(byteBuff);
 		
-		for (int i=0; i < magic.length; i++) {
-			if ( magic[i] != byteBuff.get(i) )
-				throw new IllegalArgumentException("Invalid file signature");
-		}
+		checkSignature();
 	}
 	
 	@Override
 	public String toString() {
 		return "AssemblyLogHeader [getRange()=" + span() + ", getTag()="
-				+ tag() + "]";
+				+ tag() + ", version=" + version() + "]";
 	}
 	
 	public static void main (String args[]) throws IOException {
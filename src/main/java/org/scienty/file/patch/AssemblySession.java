@@ -0,0 +1,164 @@
+package org.scienty.file.patch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.scienty.buffer.ByteBufferFactory;
+
+/**
+ * Partial transfer of one file in an {@link AssemblySessionManager}.
+ * The session holds no file handles while idle, the manager opens its assembler on use and
+ * closes it again when the handles are needed by other sessions. Closing an assembler keeps the
+ * part and log files, so reopening resumes where the transfer was.
+ *
+ * @author prakasid
+ *
+ */
+public class AssemblySession {
+	private final AssemblySessionManager manager;
+	private final File file;
+	private final long size;
+	private final String tag;
+	//guards opening and closing of the assembler
+	final ReentrantLock handleLock = new ReentrantLock();
+	//users of the open assembler, the assembler is closed only when there are none
+	final AtomicInteger users = new AtomicInteger();
+	private volatile TrackingFileAssembler assembler = null;
+	private volatile boolean complete = false;
+	private volatile boolean closed = false;
+
+	AssemblySession(AssemblySessionManager manager, File file, long size, String tag) {
+		this.manager = manager;
+		this.file = file;
+		this.size = size;
+		this.tag = tag;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public String getTag() {
+		return tag;
+	}
+
+	/**
+	 * @return true if the assembler holds its file handles
+	 */
+	public boolean isOpen() {
+		return assembler != null;
+	}
+
+	/**
+	 * @return true once the file is complete and its handles closed
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return remaining ranges to complete
+	 * @throws IOException
+	 */
+	public RangeStore remaining() throws IOException {
+		TrackingFileAssembler current = manager.acquire(this);
+		try {
+			return current.assemblyLog().read();
+		} finally {
+			manager.release(this);
+		}
+	}
+
+	/**
+	 * @see TrackingFileAssembler#write(ByteBuffer, long, ByteBufferFactory)
+	 */
+	public boolean write(ByteBuffer buff, long startPos, ByteBufferFactory releaseTo) throws IOException {
+		TrackingFileAssembler current = manager.acquire(this);
+		try {
+			return current.write(buff, startPos, releaseTo);
+		} finally {
+			manager.release(this);
+		}
+	}
+
+	/**
+	 * @see TrackingFileAssembler#consume(InputStream, long, long)
+	 */
+	public long consume(InputStream input, long startPos, long endPos) throws IOException {
+		TrackingFileAssembler current = manager.acquire(this);
+		try {
+			return current.consume(input, startPos, endPos);
+		} finally {
+			manager.release(this);
+		}
+	}
+
+	/**
+	 * @see TrackingFileAssembler#consume(ReadableByteChannel, long, long)
+	 */
+	public long consume(ReadableByteChannel input, long startPos, long endPos) throws IOException {
+		TrackingFileAssembler current = manager.acquire(this);
+		try {
+			return current.consume(input, startPos, endPos);
+		} finally {
+			manager.release(this);
+		}
+	}
+
+	/**
+	 * Close the handles and remove the session from the manager, a complete file is moved to its target
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		manager.remove(this);
+	}
+
+	TrackingFileAssembler assembler() {
+		return assembler;
+	}
+
+	/**
+	 * Open the assembler, called with the handle lock held
+	 */
+	TrackingFileAssembler open(boolean async, ByteBufferFactory buffFactory, AssemblySessionManager config)
+			throws IOException, SignatureException {
+		if ( closed ) throw new IllegalStateException("Session is closed " + file);
+		if ( complete ) throw new IllegalStateException("Session is complete " + file);
+		TrackingFileAssembler opened = new TrackingFileAssembler(file, async);
+		opened.setBufferFactory(buffFactory);
+		config.configure(opened);
+		opened.init(size, tag);
+		assembler = opened;
+		return opened;
+	}
+
+	/**
+	 * Close the assembler and keep the session, called with the handle lock held and no users
+	 */
+	void suspend() throws IOException {
+		TrackingFileAssembler current = assembler;
+		if ( current == null ) return;
+		assembler = null;
+		boolean done = current.assemblyLog().isComplete();
+		current.close();
+		complete = done;
+	}
+
+	void markClosed() {
+		closed = true;
+	}
+
+	@Override
+	public String toString() {
+		return "AssemblySession [file=" + file + ", tag=" + tag + ", open=" + isOpen() + ", complete=" + complete + "]";
+	}
+}
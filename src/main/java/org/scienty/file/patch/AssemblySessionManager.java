@@ -0,0 +1,358 @@
+package org.scienty.file.patch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.scienty.buffer.ByteBufferFactory;
+import org.scienty.java.util.concurrent.TokenBucket;
+
+/**
+ * Many partial transfers sharing one buffer pool, one completion executor and a capped number of
+ * open files. Every session opens its assembler, a data channel and the log channels, only while
+ * it is used. Open sessions are kept in least recently used order and the idle one used longest ago
+ * is closed when another session needs its handles. Sessions are looked up by target path or tag.
+ *
+ * @author prakasid
+ *
+ */
+public class AssemblySessionManager implements Closeable {
+	private final static Logger logger = LogManager.getLogger();
+	public final static int DEFAULT_MAX_OPEN = 256;
+	public final static int DEFAULT_MAX_SESSIONS = 4096;
+
+	private final int maxOpen;
+	private final int maxSessions;
+	private final boolean async;
+	private final ByteBufferFactory buffFactory;
+	private final ExecutorService ioExecutor;
+	private volatile boolean checksums = false;
+	private volatile TokenBucket globalBytes = null;
+	private volatile TokenBucket globalWrites = null;
+	private volatile SharedJournal journal = null;
+
+	private final ConcurrentHashMap<String, AssemblySession> byPath = new ConcurrentHashMap<String, AssemblySession>();
+	private final ConcurrentHashMap<String, AssemblySession> byTag = new ConcurrentHashMap<String, AssemblySession>();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	//signalled when an open session has no users anymore
+	private final Condition idleCond = lock.newCondition();
+	//sessions holding handles, least recently used first
+	private final LinkedHashMap<AssemblySession, Boolean> open = new LinkedHashMap<AssemblySession, Boolean>(16, 0.75f, true);
+	private int sessions = 0;
+
+	public AssemblySessionManager(ByteBufferFactory buffFactory) {
+		this(DEFAULT_MAX_OPEN, DEFAULT_MAX_SESSIONS, false, buffFactory, null);
+	}
+
+	/**
+	 * @param maxOpen sessions holding file handles at the same time
+	 * @param maxSessions sessions in the manager
+	 * @param async assemble with {@link AsyncFileAssembler}
+	 * @param buffFactory buffer pool of all sessions, its cap bounds the buffer memory
+	 * @param ioExecutor completion executor of async assembly, null for the default JVM pool, not shut down by close
+	 */
+	public AssemblySessionManager(int maxOpen, int maxSessions, boolean async, ByteBufferFactory buffFactory,
+			ExecutorService ioExecutor) {
+		if ( maxOpen <= 0 || maxSessions <= 0 ) {
+			throw new IllegalArgumentException("Invalid limits " + maxOpen + "/" + maxSessions);
+		}
+		this.maxOpen = maxOpen;
+		this.maxSessions = maxSessions;
+		this.async = async;
+		this.buffFactory = buffFactory;
+		this.ioExecutor = ioExecutor;
+	}
+
+	/**
+	 * Checksums of sessions opened from now on
+	 * @param checksums
+	 */
+	public void setChecksums(boolean checksums) {
+		this.checksums = checksums;
+	}
+
+	/**
+	 * Budgets shared by all sessions, applies to sessions opened from now on
+	 * @param bytes null for no limit
+	 * @param writes null for no limit
+	 */
+	public void setGlobalThrottle(TokenBucket bytes, TokenBucket writes) {
+		this.globalBytes = bytes;
+		this.globalWrites = writes;
+	}
+
+	/**
+	 * Track sessions opened from now on in one journal instead of a log file each, the journal
+	 * stays open after the manager is closed
+	 * @param journal open journal, null for a log file per session
+	 */
+	public void setJournal(SharedJournal journal) {
+		this.journal = journal;
+	}
+
+	void configure(TrackingFileAssembler assembler) {
+		assembler.setJournal(journal);
+		assembler.setChecksums(checksums);
+		assembler.setGlobalThrottle(globalBytes, globalWrites);
+		if ( async ) assembler.setExecutor(ioExecutor);
+	}
+
+	/**
+	 * Start or resume the transfer of a file, returns the session of the file if there is one
+	 * @param file target file
+	 * @param size
+	 * @param tag
+	 * @return
+	 * @throws IOException
+	 * @throws SignatureException if the part file was started for another size or tag
+	 */
+	public AssemblySession open(File file, long size, String tag) throws IOException, SignatureException {
+		String path = key(file);
+		AssemblySession session;
+		lock.lock();
+		try {
+			session = byPath.get(path);
+			if ( session != null ) {
+				if ( session.getSize() != size || (tag != null && tag.equals(session.getTag()) == false) ) {
+					throw new SignatureException("Tag/Size missmatch for " + file);
+				}
+				return session;
+			}
+			if ( tag != null && byTag.containsKey(tag) ) {
+				throw new IllegalStateException("Tag already in use " + tag);
+			}
+			if ( sessions >= maxSessions ) {
+				throw new IllegalStateException("Too many sessions " + sessions);
+			}
+			session = new AssemblySession(this, file, size, tag);
+			byPath.put(path, session);
+			if ( tag != null ) byTag.put(tag, session);
+			sessions++;
+		} finally {
+			lock.unlock();
+		}
+
+		//validate the part file right away
+		try {
+			acquire(session);
+			release(session);
+		} catch (IOException e) {
+			forget(session);
+			if ( e.getCause() instanceof SignatureException ) throw (SignatureException)e.getCause();
+			throw e;
+		} catch (RuntimeException e) {
+			forget(session);
+			throw e;
+		}
+		return session;
+	}
+
+	public AssemblySession get(File file) {
+		return byPath.get(key(file));
+	}
+
+	public AssemblySession getByTag(String tag) {
+		return byTag.get(tag);
+	}
+
+	/**
+	 * @return number of sessions holding file handles
+	 */
+	public int openCount() {
+		lock.lock();
+		try {
+			return open.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int sessionCount() {
+		lock.lock();
+		try {
+			return sessions;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public ByteBufferFactory bufferFactory() {
+		return buffFactory;
+	}
+
+	/**
+	 * Open the assembler of the session, closing idle sessions over the limit, the caller must release
+	 */
+	TrackingFileAssembler acquire(AssemblySession session) throws IOException {
+		session.handleLock.lock();
+		try {
+			TrackingFileAssembler assembler = session.assembler();
+			if ( assembler != null ) {
+				session.users.incrementAndGet();
+				touch(session);
+				return assembler;
+			}
+
+			AssemblySession victim = reserve(session);
+			if ( victim != null ) {
+				try {
+					logger.debug("Closing idle " + victim);
+					victim.suspend();
+				} finally {
+					victim.handleLock.unlock();
+				}
+			}
+
+			try {
+				assembler = session.open(async, buffFactory, this);
+			} catch (SignatureException e) {
+				unreserve(session);
+				throw new IOException("Part file does not match " + session, e);
+			} catch (IOException e) {
+				unreserve(session);
+				throw e;
+			} catch (RuntimeException e) {
+				unreserve(session);
+				throw e;
+			}
+			session.users.incrementAndGet();
+			return assembler;
+		} finally {
+			session.handleLock.unlock();
+		}
+	}
+
+	void release(AssemblySession session) {
+		if ( session.users.decrementAndGet() == 0 ) {
+			lock.lock();
+			try {
+				idleCond.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void touch(AssemblySession session) {
+		lock.lock();
+		try {
+			open.get(session);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take a handle slot for the session, waits for a session to become idle if all are in use
+	 * @return idle session to close, its handle lock is held
+	 */
+	private AssemblySession reserve(AssemblySession session) throws InterruptedIOException {
+		AssemblySession victim = null;
+		lock.lock();
+		try {
+			while ( open.size() >= maxOpen ) {
+				for (AssemblySession candidate : open.keySet()) {
+					if ( candidate != session && candidate.users.get() == 0 && candidate.handleLock.tryLock() ) {
+						if ( candidate.users.get() == 0 ) {
+							victim = candidate;
+							break;
+						}
+						candidate.handleLock.unlock();
+					}
+				}
+				if ( victim != null ) {
+					open.remove(victim);
+					break;
+				}
+				idleCond.await();
+			}
+			open.put(session, Boolean.TRUE);
+			return victim;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a file handle");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void unreserve(AssemblySession session) {
+		lock.lock();
+		try {
+			open.remove(session);
+			idleCond.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void forget(AssemblySession session) {
+		lock.lock();
+		try {
+			session.markClosed();
+			if ( byPath.remove(key(session.getFile()), session) ) sessions--;
+			if ( session.getTag() != null ) byTag.remove(session.getTag(), session);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Close the handles of the session and drop it, waits for the current users
+	 */
+	void remove(AssemblySession session) throws IOException {
+		forget(session);
+		session.handleLock.lock();
+		try {
+			lock.lock();
+			try {
+				while ( session.users.get() > 0 ) {
+					idleCond.await();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for users of " + session);
+			} finally {
+				lock.unlock();
+			}
+			session.suspend();
+		} finally {
+			session.handleLock.unlock();
+			unreserve(session);
+		}
+	}
+
+	/**
+	 * Close all the sessions, complete files are moved to their targets
+	 */
+	@Override
+	public void close() throws IOException {
+		List<AssemblySession> all = new ArrayList<AssemblySession>(byPath.values());
+		IOException failure = null;
+		for (Iterator<AssemblySession> it = all.iterator(); it.hasNext(); ) {
+			try {
+				remove(it.next());
+			} catch (IOException e) {
+				logger.error("Failed to close session", e);
+				if ( failure == null ) failure = e;
+			}
+		}
+		if ( failure != null ) throw failure;
+	}
+
+	private static String key(File file) {
+		return file.getAbsoluteFile().toPath().normalize().toString();
+	}
+}
@@ -4,16 +4,30 @@
 package org.scienty.file.patch;
 
 import java.io.File;
+import java.io.Flushable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.OpenOption;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.scienty.buffer.ByteBufferFactory;
+import org.scienty.metrics.AssemblerMetrics;
 
 /**
  * Assemble list of chunks into a file
@@ -28,25 +42,85 @@ import org.apache.logging.log4j.Logger;
 public class AsyncFileAssembler implements FileAssembler {
 	private final static Logger logger = LogManager.getLogger();
 	private AsynchronousFileChannel fileChannel;
+	//for transfers, AsynchronousFileChannel has no transferFrom
+	private FileChannel transferChannel;
+	private final ReentrantLock transferLock = new ReentrantLock();
 	private File file = null;
 	protected AtomicInteger inCount = new AtomicInteger(0);
 	protected AtomicInteger outCount = new AtomicInteger(0);
+	//monitors pin virtual threads to their carrier, waits use a lock condition
+	private final ReentrantLock outLock = new ReentrantLock();
+	private final Condition outCond = outLock.newCondition();
 	protected AssemblyLog assemblyLog = null;
 	private ReentrantLock rangeLock = null;
 	private Exception lastEx;
+	private boolean checksums = false;
+	private TreeDigest digest = null;
+	private volatile InFlightLimit inFlightLimit = null;
+	private final ReentrantLock inFlightLock = new ReentrantLock();
+	//signalled when an in flight write completes
+	private final Condition capacityCond = inFlightLock.newCondition();
+	private long inFlightBytes = 0;
+	private int inFlightWrites = 0;
+	private ExecutorService executor = null;
+	private final AssemblerMetrics metrics = new AssemblerMetrics();
+	private Preallocation preallocation = Preallocation.NONE;
 
 	public AsyncFileAssembler(File file, AssemblyLog assemblyLog) {
+		this(file, assemblyLog, null);
+	}
+
+	/**
+	 * @param file
+	 * @param assemblyLog
+	 * @param inFlightLimit cap on the writes in flight, null for no cap
+	 */
+	public AsyncFileAssembler(File file, AssemblyLog assemblyLog, InFlightLimit inFlightLimit) {
+		this(file, assemblyLog, inFlightLimit, null);
+	}
+
+	/**
+	 * @param file
+	 * @param assemblyLog
+	 * @param inFlightLimit cap on the writes in flight, null for no cap
+	 * @param executor runs the I/O completions of this assembler, null for the default JVM pool.
+	 * It is not shut down by close.
+	 */
+	public AsyncFileAssembler(File file, AssemblyLog assemblyLog, InFlightLimit inFlightLimit, ExecutorService executor) {
 		this.file = file;
 		this.assemblyLog = assemblyLog;
+		this.inFlightLimit = inFlightLimit;
+		this.executor = executor;
 	}
 
 	public void init() throws IOException {
 		logger.debug("Initializing...");
-		fileChannel = AsynchronousFileChannel.open(this.file.toPath(), 
-				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		if ( executor != null ) {
+			fileChannel = AsynchronousFileChannel.open(this.file.toPath(), 
+					new HashSet<OpenOption>(Arrays.asList(StandardOpenOption.CREATE, StandardOpenOption.WRITE)), executor);
+		} else {
+			fileChannel = AsynchronousFileChannel.open(this.file.toPath(), 
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		}
 		completionHandler = new ChunkCompletionHandler();
 		rangeLock = new ReentrantLock();
+		assemblyLog.setDataSync(new Flushable() {
+			@Override
+			public void flush() throws IOException {
+				force();
+			}
+		});
 		assemblyLog.init(false);
+		checksums = assemblyLog.hasChecksums();
+		if ( preallocation != Preallocation.NONE ) {
+			//no size or positional write on the async channel without a completion wait
+			FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.WRITE);
+			try {
+				preallocation.apply(channel, assemblyLog.header().span().high + 1);
+			} finally {
+				channel.close();
+			}
+		}
 	}
 
 	/**
@@ -64,53 +138,310 @@ public class AsyncFileAssembler implements FileAssembler {
 	public void close() throws IOException {
 		if ( this.fileChannel != null ) {
 			logger.info("Closing channel ");
-			this.fileChannel.close();
+			//drain the in flight writes and pending log entries while the data channel is still open
+			try {
+				waitForAsync();
+				assemblyLog.flush();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while closing channel");
+			} finally {
+				//a shared journal may sync the data of other transfers after this one is closed
+				assemblyLog.setDataSync(null);
+				try {
+					if ( transferChannel != null ) transferChannel.close();
+				} finally {
+					this.fileChannel.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Transfers run on the calling thread, on a second channel of the file
+	 */
+	public long transferFrom(ReadableByteChannel src, long offset, long count, long granularity) throws IOException {
+		logger.trace("Transferring {} bytes at {}", count, offset);
+		inCount.incrementAndGet();
+		long start = System.nanoTime();
+		try {
+			transferLock.lock();
+			try {
+				if ( transferChannel == null ) {
+					transferChannel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+				}
+			} finally {
+				transferLock.unlock();
+			}
+			long transferred = ChannelTransfer.transferFrom(transferChannel, src, offset, count, granularity, assemblyLog, digest);
+			metrics.written(transferred, System.nanoTime() - start);
+			completionHandler.incOutCount();
+			return transferred;
+		} catch (IOException ex) {
+			lastEx = ex;
+			logger.error("Failed to transfer at " + offset);
+			inCount.decrementAndGet();
+			metrics.failed();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Reserve the part file for the span of the log on init, must be set before init
+	 * @param preallocation
+	 */
+	public void setPreallocation(Preallocation preallocation) {
+		this.preallocation = (preallocation != null) ? preallocation : Preallocation.NONE;
+	}
+
+	public void setDigest(TreeDigest digest) {
+		this.digest = digest;
+	}
+
+	/**
+	 * Cap the writes in flight, chunk buffers are retained till their write completes
+	 * @param inFlightLimit null for no cap
+	 */
+	public void setInFlightLimit(InFlightLimit inFlightLimit) {
+		inFlightLock.lock();
+		try {
+			this.inFlightLimit = inFlightLimit;
+			capacityCond.signalAll();
+		} finally {
+			inFlightLock.unlock();
+		}
+	}
+
+	public InFlightLimit inFlightLimit() {
+		return inFlightLimit;
+	}
+
+	public long inFlightBytes() {
+		inFlightLock.lock();
+		try {
+			return inFlightBytes;
+		} finally {
+			inFlightLock.unlock();
+		}
+	}
+
+	public int inFlightWrites() {
+		inFlightLock.lock();
+		try {
+			return inFlightWrites;
+		} finally {
+			inFlightLock.unlock();
 		}
 	}
 
-	public void write(ByteBuffer chunk, long offset) {
-		logger.trace("Writing chunk at " + offset);
+	public boolean write(ByteBuffer chunk, long offset) {
+		return write(chunk, offset, null);
+	}
+
+	/**
+	 * The chunk is released to the factory once the write completes.
+	 * Waits or refuses the chunk once the in flight limit is reached, as set by its mode.
+	 * A write the channel refuses to start is not accepted either.
+	 */
+	public boolean write(ByteBuffer chunk, long offset, ByteBufferFactory releaseTo) {
+		return submit(chunk, offset, releaseTo, null);
+	}
+
+	/**
+	 * The future completes on a completion thread of the channel, dependent stages run there
+	 * unless they are attached with the async methods
+	 */
+	public CompletableFuture<Range> writeAsync(ByteBuffer chunk, long offset, ByteBufferFactory releaseTo) {
+		CompletableFuture<Range> future = new CompletableFuture<Range>();
+		if ( submit(chunk, offset, releaseTo, future) == false ) {
+			future.completeExceptionally(new RejectedExecutionException("Chunk at " + offset + " not accepted, in flight limit reached"));
+		}
+		return future;
+	}
+
+	private boolean submit(ByteBuffer chunk, long offset, ByteBufferFactory releaseTo, CompletableFuture<Range> future) {
+		int size = chunk.remaining();
+		if ( admit(size) == false ) {
+			logger.debug("Chunk at {} not accepted, in flight {}/{}", offset, inFlightWrites(), inFlightBytes());
+			return false;
+		}
+		
+		logger.trace("Writing chunk at {}", offset);
 		inCount.incrementAndGet();
+		metrics.submitted();
 
 		try {
-			Range range = new Range(offset, offset + chunk.remaining());
-			fileChannel.write(chunk, offset, range, completionHandler);
+			long checksum = checksums ? AssemblyLog.checksum(chunk) : AssemblyLog.NO_CHECKSUM;
+			Chunk attachment = new Chunk(new Range(offset, offset + size), chunk, releaseTo, checksum, future);
+			fileChannel.write(chunk, offset, attachment, completionHandler);
 		} catch (Exception ex) {
+			//the write was not submitted, the chunk stays with the caller
 			logger.error("Failed to write chunk at " + offset);
 			inCount.decrementAndGet();
+			metrics.failed();
+			metrics.retired();
 			lastEx = ex;
+			retire(size);
+			if ( future != null ) future.completeExceptionally(ex);
+			return false;
 		}
+		return true;
 	}
 
-	private CompletionHandler<Integer,Range> completionHandler = null;
-	private class ChunkCompletionHandler implements CompletionHandler<Integer, Range>{
+	/**
+	 * Reserve the capacity for a chunk
+	 * @return false if the chunk is not accepted
+	 */
+	private boolean admit(long bytes) {
+		inFlightLock.lock();
+		try {
+			long nanos = 0;
+			if ( inFlightLimit != null && inFlightLimit.getMode() == InFlightLimit.Mode.TIMEOUT ) {
+				nanos = TimeUnit.MILLISECONDS.toNanos(inFlightLimit.getTimeout());
+			}
+			while ( hasCapacity(bytes) == false ) {
+				switch (inFlightLimit.getMode()) {
+				case REJECT:
+					return false;
+				case TIMEOUT:
+					if ( nanos <= 0 ) return false;
+					nanos = capacityCond.awaitNanos(nanos);
+					break;
+				default:
+					capacityCond.await();
+				}
+			}
+			inFlightBytes += bytes;
+			inFlightWrites++;
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			inFlightLock.unlock();
+		}
+	}
+
+	private boolean hasCapacity(long bytes) {
+		InFlightLimit limit = inFlightLimit;
+		//a chunk larger than the cap goes alone
+		if ( limit == null || inFlightWrites == 0 ) return true;
+		return inFlightWrites < limit.getMaxWrites() && inFlightBytes + bytes <= limit.getMaxBytes();
+	}
+
+	private void retire(long bytes) {
+		inFlightLock.lock();
+		try {
+			inFlightBytes -= bytes;
+			inFlightWrites--;
+			capacityCond.signalAll();
+		} finally {
+			inFlightLock.unlock();
+		}
+	}
+
+	/**
+	 * Chunk being written, range high is exclusive
+	 */
+	private static class Chunk {
+		final Range range;
+		final ByteBuffer buffer;
+		final ByteBufferFactory releaseTo;
+		//checksum of the chunk bytes, computed before the write
+		final long checksum;
+		//completed once the chunk is logged, may be null
+		final CompletableFuture<Range> future;
+		//submit time for the write latency
+		final long start = System.nanoTime();
+
+		Chunk(Range range, ByteBuffer buffer, ByteBufferFactory releaseTo, long checksum, CompletableFuture<Range> future) {
+			this.range = range;
+			this.buffer = buffer;
+			this.releaseTo = releaseTo;
+			this.checksum = checksum;
+			this.future = future;
+		}
+
+		void release() {
+			if ( releaseTo != null ) releaseTo.release(buffer);
+		}
+	}
+
+	private ChunkCompletionHandler completionHandler = null;
+	private class ChunkCompletionHandler implements CompletionHandler<Integer, Chunk>{
 		//private SortedSet<Long> successIds = null;
 		public ChunkCompletionHandler() {
 			//successIds = result;
 		}
 		@Override
-		public void failed(Throwable e, Range range) {
-			logger.error("Chunk " + range + " failed with exception:", e);
+		public void failed(Throwable e, Chunk chunk) {
+			logger.error("Chunk " + chunk.range + " failed with exception:", e);
+			metrics.failed();
+			metrics.retired();
+			chunk.release();
+			retire(chunk.range.high - chunk.range.low);
 			incOutCount();
+			if ( chunk.future != null ) chunk.future.completeExceptionally(e);
 		}
 		@Override
-		public void completed(Integer result, Range range) {
-			logger.info("Chunk " + range + " completed writing");
+		public void completed(Integer result, Chunk chunk) {
+			Range range = chunk.range;
+			if ( chunk.buffer.hasRemaining() ) {
+				//partial write, continue with the rest of the chunk
+				fileChannel.write(chunk.buffer, range.high - chunk.buffer.remaining(), chunk, this);
+				return;
+			}
+			
+			logger.trace("Chunk {} completed writing", range);
+			long written = System.nanoTime();
+			metrics.written(range.high - range.low, written - chunk.start);
+			metrics.retired();
+			IOException logEx = null;
 			try {
-				assemblyLog.append(range.low, range.high-1);
+				assemblyLog.append(range.low, range.high-1, chunk.checksum);
+				metrics.logAppend(System.nanoTime() - written);
+				if ( digest != null ) {
+					updateDigest(chunk);
+				}
 			} catch (IOException e) {
 				lastEx = e;
+				logEx = e;
 				logger.error("Failed to log the range " + range);
+			} finally {
+				chunk.release();
 			}
+			retire(range.high - range.low);
 			incOutCount();
+			
+			if ( chunk.future != null ) {
+				if ( logEx == null ) {
+					chunk.future.complete(new Range(range.low, range.high-1));
+				} else {
+					chunk.future.completeExceptionally(logEx);
+				}
+			}
+		}
+
+		private void updateDigest(Chunk chunk) {
+			Range range = chunk.range;
+			ByteBuffer view = chunk.buffer.duplicate();
+			view.position(view.limit() - (int)(range.high - range.low));
+			try {
+				digest.update(view, range.low, range.high-1);
+			} catch (IOException e) {
+				//leaves are computed again on digest
+				logger.warn("Failed to update digest for " + range, e);
+			}
 		}
 
 		private int incOutCount() {
 			int count = 0;
-			//TODO: use reentrent lock conditon
-			synchronized (outCount) {
+			outLock.lock();
+			try {
 				count = outCount.incrementAndGet();
-				outCount.notifyAll();
+				outCond.signalAll();
+			} finally {
+				outLock.unlock();
 			}
 			return count;
 		}
@@ -118,7 +449,8 @@ public class AsyncFileAssembler implements FileAssembler {
 
 	boolean waiting = false;
 	public void waitForAsync() throws InterruptedException {
-		synchronized (outCount) {
+		outLock.lockInterruptibly();
+		try {
 			if (waiting) {
 				throw new IllegalStateException("Already in waiting state");
 			}
@@ -126,18 +458,31 @@ public class AsyncFileAssembler implements FileAssembler {
 				waiting = true;
 				try {
 					logger.debug("waiting "+ outCount + "/" + inCount );
-					outCount.wait();
+					outCond.await();
 					logger.trace("done waiting " + outCount + "/" + inCount );
 				} finally {
 					waiting = false;
 				}
 			}
+		} finally {
+			outLock.unlock();
 		}
 	}
 
 	public void flush() throws IOException, InterruptedException {
 		logger.debug("Flushing channel");
 		waitForAsync();
+		force();
+		assemblyLog.flush();
+	}
+
+	private void force() throws IOException {
+		long start = System.nanoTime();
 		fileChannel.force(false);
+		metrics.fsync(System.nanoTime() - start);
+	}
+
+	public AssemblerMetrics metrics() {
+		return metrics;
 	}
 }
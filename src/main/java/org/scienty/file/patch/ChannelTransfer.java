@@ -0,0 +1,139 @@
+package org.scienty.file.patch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.Checksum;
+
+import org.scienty.java.util.zip.CRC32C;
+
+/**
+ * Transfer from a channel straight into the data file, shared by the assemblers.
+ * FileChannel.transferFrom lets the kernel copy the bytes when the source allows it,
+ * otherwise the JDK copies through its own direct buffer, the bytes never reach the heap.
+ * Checksums of such sources are computed from the bytes as they pass through. A file source is
+ * copied by the kernel, its steps are read back through one direct buffer.
+ *
+ * @author prakasid
+ *
+ */
+final class ChannelTransfer {
+	private final static int READ_BACK_SIZE = 64*1024;
+
+	private ChannelTransfer() {
+	}
+
+	/**
+	 * Source that updates the checksum with the bytes read through it
+	 */
+	private static class ChecksumChannel implements ReadableByteChannel {
+		private final ReadableByteChannel src;
+		private final Checksum checksum = CRC32C.create();
+		private long count = 0;
+
+		ChecksumChannel(ReadableByteChannel src) {
+			this.src = src;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			int start = dst.position();
+			int read = src.read(dst);
+			if ( read > 0 ) {
+				ByteBuffer view = dst.duplicate();
+				view.position(start);
+				view.limit(start + read);
+				CRC32C.update(checksum, view);
+				count += read;
+			}
+			return read;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return src.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			src.close();
+		}
+
+		void reset() {
+			checksum.reset();
+			count = 0;
+		}
+	}
+
+	/**
+	 * Transfer up to count bytes, each step of granularity bytes is appended to the log as it completes
+	 * so a partial transfer is resumable. Stops early at the end of the source, which must be blocking.
+	 * @param dataChannel channel of the data file, open for read and write
+	 * @param src
+	 * @param offset
+	 * @param count
+	 * @param granularity
+	 * @param assemblyLog
+	 * @param digest null if disabled
+	 * @return number of bytes transferred
+	 * @throws IOException
+	 */
+	static long transferFrom(FileChannel dataChannel, ReadableByteChannel src, long offset, long count,
+			long granularity, AssemblyLog assemblyLog, TreeDigest digest) throws IOException {
+		if ( granularity <= 0 ) throw new IllegalArgumentException("Invalid granularity " + granularity);
+		boolean checksums = assemblyLog.hasChecksums();
+		if ( count > 0 && dataChannel.size() < offset + count ) {
+			//transferFrom does nothing past the end of the file, extend it with the last byte of the range,
+			//the byte is overwritten by the transfer and not logged if the source ends early
+			dataChannel.write(ByteBuffer.allocate(1), offset + count - 1);
+		}
+		//a file source would lose the copy by the kernel behind a wrapper
+		ChecksumChannel through = (checksums && (src instanceof FileChannel) == false) ? new ChecksumChannel(src) : null;
+		ByteBuffer readBack = null;
+		long transferred = 0;
+		while ( transferred < count ) {
+			long low = offset + transferred;
+			if ( through != null ) through.reset();
+			long step = dataChannel.transferFrom((through != null) ? through : src, low, Math.min(granularity, count - transferred));
+			if ( step <= 0 ) {
+				//end of the source
+				break;
+			}
+			
+			long high = low + step - 1;
+			long checksum = AssemblyLog.NO_CHECKSUM;
+			if ( checksums && through != null && through.count == step ) {
+				checksum = through.checksum.getValue();
+			} else if ( checksums ) {
+				//bytes are in the page cache, read back unless every byte read was written
+				if ( readBack == null ) readBack = ByteBuffer.allocateDirect(READ_BACK_SIZE);
+				checksum = checksum(dataChannel, low, high, readBack);
+			}
+			assemblyLog.append(low, high, checksum);
+			if ( digest != null ) {
+				digest.update(null, low, high);
+			}
+			transferred += step;
+		}
+		return transferred;
+	}
+
+	/**
+	 * @return CRC32C of the bytes of the file from low to high, inclusive
+	 */
+	private static long checksum(FileChannel channel, long low, long high, ByteBuffer buff) throws IOException {
+		Checksum checksum = CRC32C.create();
+		long position = low;
+		while ( position <= high ) {
+			buff.clear();
+			buff.limit((int)Math.min(buff.capacity(), high - position + 1));
+			int read = channel.read(buff, position);
+			if ( read < 0 ) throw new IOException("Unexpected end of file at " + position);
+			buff.flip();
+			CRC32C.update(checksum, buff);
+			position += read;
+		}
+		return checksum.getValue();
+	}
+}
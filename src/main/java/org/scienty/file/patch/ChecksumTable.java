@@ -0,0 +1,128 @@
+package org.scienty.file.patch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Checksums of the completed ranges of a file in append order, kept in one primitive array of
+ * low, high, checksum triplets. Checkpoints of checksummed logs carry the table so the ranges
+ * they cover can still be verified on resume. Not thread safe, guarded by the owner of the log.
+ *
+ * @author prakasid
+ *
+ */
+class ChecksumTable {
+	//low (long), high (long), checksum (long)
+	static final int ENTRY_SIZE = 3*Long.BYTES;
+	private final static int INITIAL_ENTRIES = 64;
+	private final static int IO_BUFFER_SIZE = 1024*ENTRY_SIZE;
+
+	private long[] entries;
+	private int size = 0;
+
+	ChecksumTable() {
+		entries = new long[3*INITIAL_ENTRIES];
+	}
+
+	private ChecksumTable(long[] entries, int size) {
+		this.entries = entries;
+		this.size = size;
+	}
+
+	void add(long low, long high, long checksum) {
+		if ( 3*size == entries.length ) {
+			long[] grown = new long[entries.length * 2];
+			System.arraycopy(entries, 0, grown, 0, 3*size);
+			entries = grown;
+		}
+		entries[3*size] = low;
+		entries[3*size + 1] = high;
+		entries[3*size + 2] = checksum;
+		size++;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Drop the checksums of the entries overlapping any of the ranges, their bytes are refetched
+	 * @param ranges inclusive ranges
+	 */
+	void remove(Collection<Range> ranges) {
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			long low = entries[3*i];
+			long high = entries[3*i + 1];
+			boolean overlaps = false;
+			for (Range range : ranges) {
+				if ( low <= range.high && range.low <= high ) {
+					overlaps = true;
+					break;
+				}
+			}
+			if ( overlaps == false ) {
+				if ( kept != i ) System.arraycopy(entries, 3*i, entries, 3*kept, 3);
+				kept++;
+			}
+		}
+		size = kept;
+	}
+
+	ChecksumTable copy() {
+		long[] copy = new long[Math.max(3*size, 3*INITIAL_ENTRIES)];
+		System.arraycopy(entries, 0, copy, 0, 3*size);
+		return new ChecksumTable(copy, size);
+	}
+
+	List<ChunkChecksum> list() {
+		List<ChunkChecksum> list = new ArrayList<ChunkChecksum>(size);
+		for (int i = 0; i < size; i++) {
+			list.add(new ChunkChecksum(entries[3*i], entries[3*i + 1], entries[3*i + 2]));
+		}
+		return list;
+	}
+
+	/**
+	 * Put the entries into the buffer, it must have {@link #ENTRY_SIZE} bytes per entry left
+	 */
+	void put(ByteBuffer buff) {
+		for (int i = 0; i < 3*size; i++) {
+			buff.putLong(entries[i]);
+		}
+	}
+
+	/**
+	 * Write the entries at the position of the channel
+	 * @return bytes written
+	 */
+	long store(FileChannel channel) throws IOException {
+		ByteBuffer outBuff = ByteBuffer.allocate((int)Math.min((long)size * ENTRY_SIZE, IO_BUFFER_SIZE));
+		for (int i = 0; i < size; i++) {
+			if ( outBuff.remaining() < ENTRY_SIZE ) {
+				write(channel, outBuff);
+			}
+			outBuff.putLong(entries[3*i]);
+			outBuff.putLong(entries[3*i + 1]);
+			outBuff.putLong(entries[3*i + 2]);
+		}
+		write(channel, outBuff);
+		return (long)size * ENTRY_SIZE;
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buff) throws IOException {
+		buff.flip();
+		while ( buff.hasRemaining() ) {
+			channel.write(buff);
+		}
+		buff.clear();
+	}
+}
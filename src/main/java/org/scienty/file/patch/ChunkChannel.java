@@ -0,0 +1,91 @@
+package org.scienty.file.patch;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Channel over a range of the file, for NIO pipelines that feed an assembler directly.
+ * The buffers of the caller are passed to the assembler as they are, without a copy, so every
+ * write returns only once its bytes are written and logged and the buffer is free to reuse.
+ * A buffer is written as one chunk, the caller decides the chunk size.
+ *
+ * @author prakasid
+ *
+ */
+public class ChunkChannel implements WritableByteChannel {
+	private final FileAssembler assembler;
+	private long position;
+	private final long endPos;
+	private volatile boolean open = true;
+
+	ChunkChannel(FileAssembler assembler, long startPos, long endPos) {
+		if ( endPos < startPos ) throw new IllegalArgumentException("startPos > endPos");
+		this.assembler = assembler;
+		this.position = startPos;
+		this.endPos = endPos;
+	}
+
+	/**
+	 * Write the bytes of the buffer up to the end of the range
+	 * @throws BufferOverflowException if the range is already written
+	 */
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		if ( open == false ) throw new ClosedChannelException();
+		if ( src.hasRemaining() == false ) return 0;
+		if ( position > endPos ) throw new BufferOverflowException();
+
+		int count = (int)Math.min(src.remaining(), endPos - position + 1);
+		ByteBuffer chunk = src.duplicate();
+		chunk.limit(chunk.position() + count);
+		try {
+			assembler.writeAsync(chunk, position, null).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing at " + position);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if ( cause instanceof IOException ) throw (IOException)cause;
+			if ( cause instanceof RejectedExecutionException ) {
+				throw new WriteException("Chunk at " + position + " not accepted, in flight limit reached");
+			}
+			throw new WriteException("Failed to write chunk at " + position, cause);
+		}
+		src.position(src.position() + count);
+		position += count;
+		return count;
+	}
+
+	/**
+	 * @return offset of the next write
+	 */
+	public long position() {
+		return position;
+	}
+
+	/**
+	 * @return bytes left in the range
+	 */
+	public long remaining() {
+		return endPos - position + 1;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Every write is complete on return, close only stops further writes
+	 */
+	@Override
+	public void close() {
+		open = false;
+	}
+}
@@ -0,0 +1,24 @@
+package org.scienty.file.patch;
+
+/**
+ * Checksum of a completed range as recorded in the assembly log, high is inclusive
+ * 
+ * @author prakasid
+ *
+ */
+public class ChunkChecksum {
+	public final long low;
+	public final long high;
+	public final long checksum;
+	
+	public ChunkChecksum(long low, long high, long checksum) {
+		this.low = low;
+		this.high = high;
+		this.checksum = checksum;
+	}
+	
+	@Override
+	public String toString() {
+		return low + "-" + high + ":" + Long.toHexString(checksum);
+	}
+}
@@ -0,0 +1,22 @@
+package org.scienty.file.patch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the chunks read by {@link FileChunker}, may be called from multiple threads
+ *
+ * @author prakasid
+ *
+ */
+public interface ChunkHandler {
+
+	/**
+	 * Handle the chunk data, the handler owns the buffer and must release it to the factory
+	 * it was read into, directly or by passing the factory to {@link FileAssembler#write(ByteBuffer, long, org.scienty.buffer.ByteBufferFactory)}
+	 * @param chunk
+	 * @param data bytes of the chunk between position and limit
+	 * @throws IOException
+	 */
+	public void handle(FileChunk chunk, ByteBuffer data) throws IOException;
+}
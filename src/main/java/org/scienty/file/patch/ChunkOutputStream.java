@@ -35,21 +35,46 @@ public class ChunkOutputStream extends OutputStream {
 		}
 	}
 	
-	//TODO: implement better write method
+	/**
+	 * Copy the bytes into whole buffers, every full buffer is written as one chunk
+	 */
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if ( off < 0 || len < 0 || len > b.length - off ) throw new IndexOutOfBoundsException();
+		if ( len > reqCount - inCount ) throw new BufferOverflowException();
+
+		while ( len > 0 ) {
+			if ( buff == null ) buff = buffFactory.acquire();
+			int count = Math.min(len, buff.remaining());
+			buff.put(b, off, count);
+			inCount += count;
+			off += count;
+			len -= count;
+
+			if ( buff.remaining() <= 0 ) {
+				flush();
+			}
+		}
+	}
 	
 	@Override
-	public void flush() {
+	public void flush() throws IOException {
 		if ( buff != null) {
 			buff.flip();
 			int size = buff.remaining();
-			assembler.write(buff, startPos);
+			//buffer goes back to the factory once written
+			if ( assembler.write(buff, startPos, buffFactory) == false ) {
+				buffFactory.release(buff);
+				buff = null;
+				throw new WriteException("Chunk at " + startPos + " not accepted, in flight limit reached or write failed");
+			}
 			startPos += size;
 			buff = null;
 		}
 	}
 	
 	@Override
-	public void close() {
+	public void close() throws IOException {
 		flush();
 	}
 }
@@ -0,0 +1,22 @@
+package org.scienty.file.patch;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Source of the bytes of a file being transferred, for example a connection making a range request.
+ * Called from multiple threads of a {@link TransferOrchestrator}, each call opens its own stream.
+ *
+ * @author prakasid
+ *
+ */
+public interface ChunkSource {
+
+	/**
+	 * Open the bytes of the range in order, the orchestrator closes the channel
+	 * @param range both ends inclusive
+	 * @return blocking channel, it may end before the range is complete
+	 * @throws IOException
+	 */
+	public ReadableByteChannel open(Range range) throws IOException;
+}
@@ -0,0 +1,67 @@
+package org.scienty.file.patch;
+
+/**
+ * Policy to split a file in chunks for {@link FileChunker}.
+ *
+ * @author prakasid
+ *
+ */
+public class ChunkingPolicy {
+	public final static long DEFAULT_CHUNK_SIZE = 1024*1024;
+
+	public enum Mode {
+		/** chunks of a fixed size, the last one holds the rest */
+		FIXED_SIZE,
+		/** fixed number of chunks of nearly equal size */
+		COUNT
+	}
+
+	private final Mode mode;
+	private final long chunkSize;
+	private final int count;
+
+	private ChunkingPolicy(Mode mode, long chunkSize, int count) {
+		this.mode = mode;
+		this.chunkSize = chunkSize;
+		this.count = count;
+	}
+
+	public static ChunkingPolicy fixedSize(long chunkSize) {
+		if ( chunkSize <= 0 ) throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+		return new ChunkingPolicy(Mode.FIXED_SIZE, chunkSize, 0);
+	}
+
+	/**
+	 * @param count number of chunks, files smaller than count get one byte chunks
+	 */
+	public static ChunkingPolicy count(int count) {
+		if ( count <= 0 ) throw new IllegalArgumentException("Invalid chunk count " + count);
+		return new ChunkingPolicy(Mode.COUNT, 0, count);
+	}
+
+	/**
+	 * @param fileSize
+	 * @return size of the chunks for a file of fileSize
+	 */
+	public long chunkSize(long fileSize) {
+		if ( mode == Mode.FIXED_SIZE ) return chunkSize;
+		return Math.max(1, (fileSize + count - 1) / count);
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public long getChunkSize() {
+		return chunkSize;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return "ChunkingPolicy [mode=" + mode + ", chunkSize=" + chunkSize + ", count=" + count + "]";
+	}
+}
@@ -0,0 +1,93 @@
+package org.scienty.file.patch;
+
+/**
+ * Durability policy for group committed {@link AssemblyLog} appends.
+ * Appended entries are staged in memory and a single writer drains them to the log
+ * in one write per batch. The data file is always forced before a batch is written so
+ * that the log never claims ranges which did not reach the disk.
+ *
+ * @author prakasid
+ *
+ */
+public class CommitPolicy {
+	public final static int DEFAULT_BUFFER_SIZE = 64*1024;
+
+	public enum Mode {
+		/** write and force every batch that the writer drains */
+		PER_BATCH,
+		/** write and force the pending entries every interval */
+		INTERVAL,
+		/** write and force once the pending entries reach a byte threshold */
+		BYTES,
+		/** write only when the staging buffer is full, force on flush() */
+		ON_FLUSH
+	}
+
+	private final Mode mode;
+	private final long interval;
+	private final long bytes;
+	private final int bufferSize;
+
+	private CommitPolicy(Mode mode, long interval, long bytes, int bufferSize) {
+		if ( bufferSize <= 0 ) throw new IllegalArgumentException("Invalid buffer size " + bufferSize);
+		this.mode = mode;
+		this.interval = interval;
+		this.bytes = bytes;
+		this.bufferSize = bufferSize;
+	}
+
+	public static CommitPolicy perBatch() {
+		return new CommitPolicy(Mode.PER_BATCH, 0, 0, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param millis interval between two commits in milliseconds
+	 */
+	public static CommitPolicy interval(long millis) {
+		if ( millis <= 0 ) throw new IllegalArgumentException("Invalid interval " + millis);
+		return new CommitPolicy(Mode.INTERVAL, millis, 0, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param bytes pending log bytes that trigger a commit
+	 */
+	public static CommitPolicy bytes(long bytes) {
+		if ( bytes <= 0 || bytes > Integer.MAX_VALUE ) throw new IllegalArgumentException("Invalid byte threshold " + bytes);
+		return new CommitPolicy(Mode.BYTES, 0, bytes, Math.max(DEFAULT_BUFFER_SIZE, (int)bytes));
+	}
+
+	public static CommitPolicy onFlush() {
+		return new CommitPolicy(Mode.ON_FLUSH, 0, 0, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Return a copy of this policy with a different staging buffer size
+	 * @param bufferSize
+	 * @return
+	 */
+	public CommitPolicy withBufferSize(int bufferSize) {
+		return new CommitPolicy(mode, interval, bytes, Math.max(bufferSize, (int)bytes));
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	@Override
+	public String toString() {
+		return "CommitPolicy [mode=" + mode + ", interval=" + interval
+				+ ", bytes=" + bytes + ", bufferSize=" + bufferSize + "]";
+	}
+}
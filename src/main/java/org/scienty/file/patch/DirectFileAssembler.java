@@ -0,0 +1,471 @@
+package org.scienty.file.patch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Checksum;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.scienty.buffer.ByteBufferFactory;
+import org.scienty.java.util.zip.CRC32C;
+import org.scienty.metrics.AssemblerMetrics;
+
+/**
+ * Assemble chunks into a file with direct I/O, the chunks bypass the page cache so a large
+ * download does not evict the working set of other processes, and there is no dirty data to write
+ * back on flush.
+ * Direct I/O writes whole blocks from aligned buffers, every chunk is copied into pooled aligned
+ * buffers and written in block aligned windows. A chunk edge inside a block is completed by read,
+ * modify, write of the block, under a lock of the block so two chunks sharing the block do not
+ * overwrite each other. The last block may extend past the target size, the file is truncated on close.
+ * Writes complete in the calling thread, as in {@link SyncFileAssembler}.
+ * Without direct I/O, older runtimes or file systems such as tmpfs, chunks are written through the
+ * page cache as they are.
+ *
+ * @author prakasid
+ *
+ */
+public class DirectFileAssembler implements Closeable, FileAssembler {
+	private final static Logger logger = LogManager.getLogger();
+	public final static int DEFAULT_BUFFER_SIZE = 1024*1024;
+	private final static int POOLED_BUFFERS = 16;
+	private final static int BLOCK_LOCKS = 64;
+	private FileChannel fileChannel;
+	private File file = null;
+	protected AtomicInteger inCount = new AtomicInteger(0);
+	protected AtomicInteger outCount = new AtomicInteger(0);
+	protected AssemblyLog assemblyLog = null;
+	private Exception lastEx;
+	private boolean checksums = false;
+	private final AssemblerMetrics metrics = new AssemblerMetrics();
+	private Preallocation preallocation = Preallocation.NONE;
+	private TreeDigest digest = null;
+	private final int requestedBufferSize;
+	private boolean direct = false;
+	private int blockSize = DirectIO.DEFAULT_BLOCK_SIZE;
+	private long fileSize;
+	private ByteBufferFactory alignedBuffers = null;
+	private final ReentrantLock[] blockLocks = new ReentrantLock[BLOCK_LOCKS];
+
+	public DirectFileAssembler(File file, AssemblyLog assemblyLog) {
+		this(file, assemblyLog, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param file
+	 * @param assemblyLog
+	 * @param bufferSize size of the aligned buffers, rounded up to the block size, the largest write
+	 */
+	public DirectFileAssembler(File file, AssemblyLog assemblyLog, int bufferSize) {
+		if ( bufferSize <= 0 ) throw new IllegalArgumentException("Invalid buffer size " + bufferSize);
+		this.file = file;
+		this.assemblyLog = assemblyLog;
+		this.requestedBufferSize = bufferSize;
+		for (int i = 0; i < BLOCK_LOCKS; i++) {
+			blockLocks[i] = new ReentrantLock();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.scienty.file.patch.FileAssembler#init()
+	 */
+	@Override
+	public void init() throws IOException {
+		logger.debug("Initializing...");
+		assemblyLog.setDataSync(new Flushable() {
+			@Override
+			public void flush() throws IOException {
+				force();
+			}
+		});
+		assemblyLog.init(false);
+		checksums = assemblyLog.hasChecksums();
+		fileSize = assemblyLog.header().span().high + 1;
+
+		//preallocation writes unaligned buffers, reserve before the direct open
+		FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			preallocation.apply(channel, fileSize);
+		} finally {
+			channel.close();
+		}
+
+		if ( DirectIO.isSupported() ) {
+			try {
+				fileChannel = DirectIO.open(this.file.toPath());
+				direct = true;
+			} catch (IOException e) {
+				logger.warn("Direct I/O is not supported for " + file + ", writing through the page cache, " + e);
+			}
+		} else {
+			logger.warn("Direct I/O is not available, writing through the page cache");
+		}
+		if ( direct ) {
+			blockSize = DirectIO.blockSize(this.file.toPath());
+			int bufferSize = (int)roundUp(requestedBufferSize);
+			alignedBuffers = ByteBufferFactory.aligned(bufferSize, blockSize, (long)bufferSize * POOLED_BUFFERS);
+			logger.debug("Direct I/O with block size " + blockSize + ", buffer size " + bufferSize);
+		} else {
+			fileChannel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+	}
+
+	/**
+	 * Reserve the part file for the span of the log on init, must be set before init
+	 * @param preallocation
+	 */
+	public void setPreallocation(Preallocation preallocation) {
+		this.preallocation = (preallocation != null) ? preallocation : Preallocation.NONE;
+	}
+
+	/**
+	 * @return true if the file is open with direct I/O, false before init or on fall back to the page cache
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.scienty.file.patch.FileAssembler#result()
+	 */
+	@Override
+	public AssemblyResult result() throws IOException {
+		AssemblyResult result = new AssemblyResult(assemblyLog.read(), inCount.get(), outCount.get(), lastEx);
+		lastEx = null;
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.scienty.file.patch.FileAssembler#setDigest(org.scienty.file.patch.TreeDigest)
+	 */
+	@Override
+	public void setDigest(TreeDigest digest) {
+		this.digest = digest;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.scienty.file.patch.FileAssembler#write(java.nio.ByteBuffer, long)
+	 */
+	@Override
+	public boolean write(ByteBuffer chunk, long offset) {
+		return write(chunk, offset, null);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.scienty.file.patch.FileAssembler#write(java.nio.ByteBuffer, long, org.scienty.buffer.ByteBufferFactory)
+	 */
+	@Override
+	public boolean write(ByteBuffer chunk, long offset, ByteBufferFactory releaseTo) {
+		writeChunk(chunk, offset, releaseTo);
+		return true;
+	}
+
+	/**
+	 * The write is complete when this method returns, the future is already completed
+	 */
+	@Override
+	public CompletableFuture<Range> writeAsync(ByteBuffer chunk, long offset, ByteBufferFactory releaseTo) {
+		CompletableFuture<Range> future = new CompletableFuture<Range>();
+		long high = offset + chunk.remaining() - 1;
+		Exception ex = writeChunk(chunk, offset, releaseTo);
+		if ( ex == null ) {
+			future.complete(new Range(offset, high));
+		} else {
+			future.completeExceptionally(ex);
+		}
+		return future;
+	}
+
+	/**
+	 * @return failure of the write, null on success
+	 */
+	private Exception writeChunk(ByteBuffer chunk, long offset, ByteBufferFactory releaseTo) {
+		logger.trace("Writing chunk at {}", offset);
+		inCount.incrementAndGet();
+		metrics.submitted();
+		long start = System.nanoTime();
+		try {
+			int size = chunk.remaining();
+			ByteBuffer view = (digest != null) ? chunk.duplicate() : null;
+			long checksum = checksums ? AssemblyLog.checksum(chunk) : AssemblyLog.NO_CHECKSUM;
+			writeRange(chunk, offset);
+			chunk.position(chunk.limit());
+			long written = System.nanoTime();
+			metrics.written(size, written - start);
+			assemblyLog.append(offset, offset + size - 1, checksum);
+			metrics.logAppend(System.nanoTime() - written);
+			if ( view != null ) {
+				updateDigest(view, offset, offset + size - 1);
+			}
+			outCount.incrementAndGet();
+		} catch (Exception ex) {
+			lastEx = ex;
+			logger.error("Failed to write chunk at " + offset);
+			inCount.decrementAndGet();
+			metrics.failed();
+			return ex;
+		} finally {
+			metrics.retired();
+			if ( releaseTo != null ) releaseTo.release(chunk);
+		}
+		return null;
+	}
+
+	/**
+	 * Write the remaining bytes of src at offset, the position of src is not changed
+	 */
+	private void writeRange(ByteBuffer src, long offset) throws IOException {
+		long end = offset + src.remaining();
+		if ( direct == false ) {
+			ByteBuffer data = src.duplicate();
+			while ( data.hasRemaining() ) {
+				fileChannel.write(data, offset + data.position() - src.position());
+			}
+			return;
+		}
+
+		long alignedEnd = roundUp(end);
+		long window = roundDown(offset);
+		ByteBuffer buff = alignedBuffers.acquire();
+		try {
+			while ( window < alignedEnd ) {
+				long windowEnd = Math.min(window + buff.capacity(), alignedEnd);
+				long dataLow = Math.max(window, offset);
+				long dataHigh = Math.min(windowEnd, end);
+				long lastBlock = windowEnd - blockSize;
+				//edges inside a block, the rest of the block is read back from the file
+				boolean head = dataLow > window;
+				boolean tail = dataHigh < windowEnd && (head == false || lastBlock != window);
+				ReentrantLock first = head ? blockLock(window) : null;
+				ReentrantLock second = tail ? blockLock(lastBlock) : null;
+				if ( first != null && second != null && lockIndex(lastBlock) < lockIndex(window) ) {
+					//same lock order for every thread
+					ReentrantLock swap = first;
+					first = second;
+					second = swap;
+				}
+				if ( first != null ) first.lock();
+				if ( second != null ) second.lock();
+				try {
+					buff.clear();
+					buff.limit((int)(windowEnd - window));
+					if ( head ) {
+						readBlock(buff, 0, window);
+					}
+					if ( tail ) {
+						readBlock(buff, (int)(lastBlock - window), lastBlock);
+					}
+					ByteBuffer data = src.duplicate();
+					data.position(src.position() + (int)(dataLow - offset));
+					data.limit(data.position() + (int)(dataHigh - dataLow));
+					buff.position((int)(dataLow - window));
+					buff.put(data);
+
+					buff.position(0);
+					while ( buff.hasRemaining() ) {
+						fileChannel.write(buff, window + buff.position());
+					}
+				} finally {
+					if ( second != null ) second.unlock();
+					if ( first != null ) first.unlock();
+				}
+				window = windowEnd;
+			}
+		} finally {
+			alignedBuffers.release(buff);
+		}
+	}
+
+	/**
+	 * Read one block of the file into buff at index, the part past the end of the file is zero
+	 */
+	private void readBlock(ByteBuffer buff, int index, long position) throws IOException {
+		ByteBuffer block = buff.duplicate();
+		block.limit(index + blockSize);
+		block.position(index);
+		//a direct read of a regular file is short only at the end of the file, and may not resume unaligned
+		fileChannel.read(block, position);
+		while ( block.hasRemaining() ) {
+			block.put((byte)0);
+		}
+	}
+
+	private ReentrantLock blockLock(long position) {
+		return blockLocks[lockIndex(position)];
+	}
+
+	private int lockIndex(long position) {
+		return (int)((position / blockSize) % BLOCK_LOCKS);
+	}
+
+	private long roundDown(long position) {
+		return position - position % blockSize;
+	}
+
+	private long roundUp(long position) {
+		return roundDown(position + blockSize - 1);
+	}
+
+	/**
+	 * Writes complete in the calling thread, nothing is left in flight
+	 */
+	@Override
+	public long inFlightBytes() {
+		return 0;
+	}
+
+	@Override
+	public int inFlightWrites() {
+		return 0;
+	}
+
+	/**
+	 * The source is read into an aligned staging buffer and written as chunks, there is no zero copy
+	 * transfer with direct I/O
+	 * @see org.scienty.file.patch.FileAssembler#transferFrom(java.nio.channels.ReadableByteChannel, long, long, long)
+	 */
+	@Override
+	public long transferFrom(ReadableByteChannel src, long offset, long count, long granularity) throws IOException {
+		if ( direct == false ) {
+			return transferBuffered(src, offset, count, granularity);
+		}
+		if ( granularity <= 0 ) throw new IllegalArgumentException("Invalid granularity " + granularity);
+		logger.trace("Transferring {} bytes at {}", count, offset);
+		inCount.incrementAndGet();
+		long start = System.nanoTime();
+		ByteBuffer staging = alignedBuffers.acquire();
+		try {
+			long transferred = 0;
+			boolean eof = false;
+			while ( transferred < count && eof == false ) {
+				//one log entry per granularity, the entry covers what the source gave if it ends early
+				long low = offset + transferred;
+				long stepSize = Math.min(granularity, count - transferred);
+				long step = 0;
+				Checksum checksum = checksums ? CRC32C.create() : null;
+				while ( step < stepSize && eof == false ) {
+					staging.clear();
+					if ( stepSize - step < staging.capacity() ) staging.limit((int)(stepSize - step));
+					//fill the staging buffer first, each short read would cost a read back of its edge blocks
+					while ( staging.hasRemaining() ) {
+						int read = src.read(staging);
+						if ( read < 0 ) {
+							eof = true;
+							break;
+						}
+						//nothing ready in a non-blocking source, write what is staged
+						if ( read == 0 ) break;
+					}
+					staging.flip();
+					if ( staging.hasRemaining() == false ) continue;
+					if ( checksum != null ) CRC32C.update(checksum, staging.duplicate());
+					writeRange(staging, low + step);
+					step += staging.remaining();
+				}
+				if ( step == 0 ) break;
+
+				long high = low + step - 1;
+				assemblyLog.append(low, high, (checksum != null) ? checksum.getValue() : AssemblyLog.NO_CHECKSUM);
+				if ( digest != null ) {
+					digest.update(null, low, high);
+				}
+				transferred += step;
+			}
+			metrics.written(transferred, System.nanoTime() - start);
+			outCount.incrementAndGet();
+			return transferred;
+		} catch (IOException ex) {
+			lastEx = ex;
+			logger.error("Failed to transfer at " + offset);
+			inCount.decrementAndGet();
+			metrics.failed();
+			throw ex;
+		} finally {
+			alignedBuffers.release(staging);
+		}
+	}
+
+	private long transferBuffered(ReadableByteChannel src, long offset, long count, long granularity) throws IOException {
+		logger.trace("Transferring {} bytes at {}", count, offset);
+		inCount.incrementAndGet();
+		long start = System.nanoTime();
+		try {
+			long transferred = ChannelTransfer.transferFrom(fileChannel, src, offset, count, granularity, assemblyLog, digest);
+			metrics.written(transferred, System.nanoTime() - start);
+			outCount.incrementAndGet();
+			return transferred;
+		} catch (IOException ex) {
+			lastEx = ex;
+			logger.error("Failed to transfer at " + offset);
+			inCount.decrementAndGet();
+			metrics.failed();
+			throw ex;
+		}
+	}
+
+	private void updateDigest(ByteBuffer view, long low, long high) {
+		try {
+			digest.update(view, low, high);
+		} catch (IOException e) {
+			//leaves are computed again on digest
+			logger.warn("Failed to update digest for " + low + "-" + high, e);
+		}
+	}
+
+	/**
+	 * Direct writes leave no dirty pages, the force only commits the file metadata and the device cache
+	 * @see org.scienty.file.patch.FileAssembler#flush()
+	 */
+	@Override
+	public void flush() throws IOException, InterruptedException {
+		logger.debug("Flushing channel");
+		force();
+		assemblyLog.flush();
+	}
+
+	private void force() throws IOException {
+		long start = System.nanoTime();
+		fileChannel.force(false);
+		metrics.fsync(System.nanoTime() - start);
+	}
+
+	@Override
+	public AssemblerMetrics metrics() {
+		return metrics;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.scienty.file.patch.FileAssembler#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		if ( this.fileChannel != null ) {
+			logger.info("Closing channel ");
+			//drain the pending log entries while the data channel is still open
+			try {
+				assemblyLog.flush();
+				//the last block is written whole, drop the bytes past the target size
+				if ( fileChannel.size() > fileSize ) {
+					fileChannel.truncate(fileSize);
+				}
+			} finally {
+				//a shared journal may sync the data of other transfers after this one is closed
+				assemblyLog.setDataSync(null);
+				this.fileChannel.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package org.scienty.file.patch;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Direct I/O, bypassing the page cache, when the runtime has it, Java 10 and later on Linux.
+ * The library is built for Java 8 so the DIRECT open option and the block size of the file store
+ * are looked up by reflection. With direct I/O the file offset, the length and the buffer address of
+ * every read and write must be multiples of the block size.
+ *
+ * @author prakasid
+ *
+ */
+public final class DirectIO {
+	private final static Logger logger = LogManager.getLogger();
+	public final static int DEFAULT_BLOCK_SIZE = 4096;
+	private final static OpenOption DIRECT;
+	private final static Method BLOCK_SIZE;
+
+	static {
+		OpenOption direct = null;
+		Method blockSize = null;
+		try {
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			Class<Enum> options = (Class<Enum>)Class.forName("com.sun.nio.file.ExtendedOpenOption");
+			@SuppressWarnings("unchecked")
+			Enum<?> option = Enum.valueOf(options, "DIRECT");
+			direct = (OpenOption)option;
+			blockSize = FileStore.class.getMethod("getBlockSize");
+		} catch (Exception e) {
+			logger.debug("Direct I/O is not available, " + e);
+			direct = null;
+			blockSize = null;
+		}
+		DIRECT = direct;
+		BLOCK_SIZE = blockSize;
+	}
+
+	private DirectIO() {
+	}
+
+	public static boolean isSupported() {
+		return DIRECT != null;
+	}
+
+	/**
+	 * Open the file for read and write with direct I/O, the file is created if missing
+	 * @param path
+	 * @return the channel
+	 * @throws UnsupportedOperationException if the runtime has no direct I/O
+	 * @throws IOException if the file system refuses direct I/O, such as tmpfs
+	 */
+	public static FileChannel open(Path path) throws IOException {
+		if ( DIRECT == null ) throw new UnsupportedOperationException("Direct I/O is not available");
+		return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, DIRECT);
+	}
+
+	/**
+	 * @param path existing file
+	 * @return block size of the file store of the path, {@link #DEFAULT_BLOCK_SIZE} if unknown or smaller
+	 */
+	public static int blockSize(Path path) {
+		if ( BLOCK_SIZE == null ) return DEFAULT_BLOCK_SIZE;
+		try {
+			long size = (Long)BLOCK_SIZE.invoke(Files.getFileStore(path));
+			if ( size <= DEFAULT_BLOCK_SIZE || size > Integer.MAX_VALUE || Long.bitCount(size) != 1 ) {
+				return DEFAULT_BLOCK_SIZE;
+			}
+			return (int)size;
+		} catch (Exception e) {
+			logger.debug("Block size of " + path + " is unknown, " + e);
+			return DEFAULT_BLOCK_SIZE;
+		}
+	}
+}
@@ -3,6 +3,11 @@ package org.scienty.file.patch;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CompletableFuture;
+
+import org.scienty.buffer.ByteBufferFactory;
+import org.scienty.metrics.AssemblerMetrics;
 
 public interface FileAssembler extends Closeable {
 
@@ -16,7 +21,65 @@ public interface FileAssembler extends Closeable {
 	 */
 	public abstract AssemblyResult result() throws IOException;
 
-	public abstract void write(ByteBuffer chunk, long offset);
+	/**
+	 * @see #write(ByteBuffer, long, ByteBufferFactory)
+	 */
+	public abstract boolean write(ByteBuffer chunk, long offset);
+
+	/**
+	 * Write the chunk and release it to the factory once the write is complete,
+	 * the caller must not touch the chunk after this call
+	 * @param chunk
+	 * @param offset
+	 * @param releaseTo factory of the chunk, null to keep the chunk with the caller
+	 * @return false if the chunk is not accepted because of the in flight limit or a write that failed to
+	 * start, the chunk stays with the caller
+	 */
+	public abstract boolean write(ByteBuffer chunk, long offset, ByteBufferFactory releaseTo);
+
+	/**
+	 * Write the chunk, the future completes once the chunk is written and appended to the assembly log
+	 * @param chunk
+	 * @param offset
+	 * @param releaseTo factory of the chunk, null to keep the chunk with the caller
+	 * @return future of the inclusive range written, fails with RejectedExecutionException if the chunk
+	 * is not accepted because of the in flight limit, or with the failure of a write that failed to
+	 * start, the chunk then stays with the caller
+	 */
+	public abstract CompletableFuture<Range> writeAsync(ByteBuffer chunk, long offset, ByteBufferFactory releaseTo);
+
+	/**
+	 * @return bytes of the chunks accepted and not yet written
+	 */
+	public abstract long inFlightBytes();
+
+	/**
+	 * @return number of the writes accepted and not yet complete
+	 */
+	public abstract int inFlightWrites();
+
+	/**
+	 * Transfer bytes from the channel straight into the file at offset, without passing them through buffers.
+	 * Every granularity bytes are recorded in the assembly log as they complete.
+	 * @param src blocking channel, the transfer stops at its end
+	 * @param offset
+	 * @param count
+	 * @param granularity
+	 * @return number of bytes transferred
+	 * @throws IOException
+	 */
+	public abstract long transferFrom(ReadableByteChannel src, long offset, long count, long granularity) throws IOException;
+
+	/**
+	 * Compute the leaves of the digest as the chunks complete, must be set before the first write
+	 * @param digest null to disable
+	 */
+	public abstract void setDigest(TreeDigest digest);
+
+	/**
+	 * @return counters and latencies of this assembler, they are recorded into {@link AssemblerMetrics#GLOBAL} too
+	 */
+	public abstract AssemblerMetrics metrics();
 
 	public abstract void flush() throws IOException, InterruptedException;
 
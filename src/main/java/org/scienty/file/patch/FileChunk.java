@@ -0,0 +1,37 @@
+package org.scienty.file.patch;
+
+/**
+ * Descriptor of a chunk of a source file
+ *
+ * @author prakasid
+ *
+ */
+public class FileChunk {
+	public final int index;
+	public final long offset;
+	public final long length;
+	public final long fileSize;
+
+	public FileChunk(int index, long offset, long length, long fileSize) {
+		this.index = index;
+		this.offset = offset;
+		this.length = length;
+		this.fileSize = fileSize;
+	}
+
+	/**
+	 * @return inclusive range of the chunk
+	 */
+	public Range range() {
+		return new Range(offset, offset + length - 1);
+	}
+
+	public ContentRange contentRange() {
+		return new ContentRange(range(), fileSize);
+	}
+
+	@Override
+	public String toString() {
+		return "FileChunk [index=" + index + ", range=" + contentRange() + "]";
+	}
+}
@@ -0,0 +1,191 @@
+package org.scienty.file.patch;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.scienty.buffer.ByteBufferFactory;
+
+/**
+ * Split a source file in chunks, the sending side of {@link TrackingFileAssembler}.
+ * Chunks are read with positional reads on one shared channel, so any number of threads read
+ * in parallel without locking. Chunks can also be mapped, or transferred to a channel
+ * with FileChannel.transferTo which lets the kernel copy the bytes.
+ *
+ * @author prakasid
+ *
+ */
+public class FileChunker implements Closeable {
+	private final static Logger logger = LogManager.getLogger();
+
+	private final File file;
+	private final ChunkingPolicy policy;
+	private FileChannel channel;
+	private long fileSize;
+	private List<FileChunk> chunks;
+
+	public FileChunker(File file, ChunkingPolicy policy) {
+		this.file = file;
+		this.policy = policy;
+	}
+
+	public void open() throws IOException {
+		if ( channel != null ) throw new IllegalStateException("Already open");
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		fileSize = channel.size();
+
+		long chunkSize = policy.chunkSize(fileSize);
+		List<FileChunk> list = new ArrayList<FileChunk>((int)Math.min(Integer.MAX_VALUE, fileSize / chunkSize + 1));
+		for (long offset = 0; offset < fileSize; offset += chunkSize) {
+			list.add(new FileChunk(list.size(), offset, Math.min(chunkSize, fileSize - offset), fileSize));
+		}
+		chunks = Collections.unmodifiableList(list);
+		logger.debug("Split " + file + " in " + chunks.size() + " chunks of " + chunkSize);
+	}
+
+	public long fileSize() {
+		return fileSize;
+	}
+
+	public List<FileChunk> chunks() {
+		if ( chunks == null ) throw new IllegalStateException("Not open");
+		return chunks;
+	}
+
+	/**
+	 * Read the chunk into a buffer of the factory, the chunk must fit in a buffer
+	 * @param chunk
+	 * @param buffFactory
+	 * @return buffer with the chunk bytes between position and limit, the caller releases it
+	 * @throws IOException
+	 */
+	public ByteBuffer read(FileChunk chunk, ByteBufferFactory buffFactory) throws IOException {
+		if ( chunk.length > buffFactory.getBufferSize() ) {
+			throw new IllegalArgumentException("Chunk " + chunk + " does not fit in buffer of " + buffFactory.getBufferSize());
+		}
+		ByteBuffer buff = buffFactory.acquire();
+		try {
+			buff.limit((int)chunk.length);
+			while ( buff.hasRemaining() ) {
+				if ( channel.read(buff, chunk.offset + buff.position()) < 0 ) {
+					throw new EOFException("Unexpected end of " + file + " in chunk " + chunk);
+				}
+			}
+			buff.flip();
+			return buff;
+		} catch (IOException e) {
+			buffFactory.release(buff);
+			throw e;
+		}
+	}
+
+	/**
+	 * Map the chunk read only, the mapping does not copy the bytes
+	 * @param chunk
+	 * @return
+	 * @throws IOException
+	 */
+	public MappedByteBuffer map(FileChunk chunk) throws IOException {
+		return channel.map(MapMode.READ_ONLY, chunk.offset, chunk.length);
+	}
+
+	/**
+	 * Transfer the chunk to the target channel without copying it through the heap.
+	 * A blocking target takes the whole chunk, a non-blocking target may take less
+	 * @param chunk
+	 * @param target
+	 * @return number of bytes transferred
+	 * @throws IOException
+	 */
+	public long transferTo(FileChunk chunk, WritableByteChannel target) throws IOException {
+		return transferTo(chunk, 0, target);
+	}
+
+	/**
+	 * Transfer the chunk from skip on, the transfer stops when the target takes no bytes, as a full
+	 * non-blocking channel does, and resumes with skip increased by the bytes transferred
+	 * @param chunk
+	 * @param skip bytes of the chunk already transferred
+	 * @param target
+	 * @return number of bytes transferred, less than the rest of the chunk if the target is full
+	 * @throws IOException
+	 */
+	public long transferTo(FileChunk chunk, long skip, WritableByteChannel target) throws IOException {
+		if ( skip < 0 || skip > chunk.length ) throw new IllegalArgumentException("Invalid skip " + skip + " for chunk " + chunk);
+		long transferred = 0;
+		while ( skip + transferred < chunk.length ) {
+			long position = chunk.offset + skip + transferred;
+			long count = channel.transferTo(position, chunk.length - skip - transferred, target);
+			if ( count <= 0 ) {
+				if ( position >= channel.size() ) {
+					throw new EOFException("Unexpected end of " + file + " in chunk " + chunk);
+				}
+				//the target is full, do not spin on it
+				break;
+			}
+			transferred += count;
+		}
+		return transferred;
+	}
+
+	/**
+	 * Read all the chunks in parallel and pass them to the handler
+	 * @param executor
+	 * @param buffFactory
+	 * @param handler
+	 * @throws IOException first failure of a read or the handler, the remaining chunks are cancelled
+	 * @throws InterruptedException
+	 */
+	public void readAll(ExecutorService executor, final ByteBufferFactory buffFactory, final ChunkHandler handler)
+			throws IOException, InterruptedException {
+		List<Future<?>> results = new ArrayList<Future<?>>(chunks().size());
+		for (final FileChunk chunk : chunks()) {
+			results.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					handler.handle(chunk, read(chunk, buffFactory));
+					return null;
+				}
+			}));
+		}
+
+		try {
+			for (Future<?> result : results) {
+				result.get();
+			}
+		} catch (ExecutionException e) {
+			for (Future<?> result : results) {
+				result.cancel(false);
+			}
+			if ( e.getCause() instanceof IOException ) throw (IOException)e.getCause();
+			throw new IOException("Failed to read chunk of " + file, e.getCause());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if ( channel != null ) {
+			try {
+				channel.close();
+			} finally {
+				channel = null;
+			}
+		}
+	}
+}
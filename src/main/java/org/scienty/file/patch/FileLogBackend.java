@@ -0,0 +1,94 @@
+package org.scienty.file.patch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Log backend using positional FileChannel reads and writes.
+ * Appenders claim the offset atomically and write at it, so concurrent appends do not serialize.
+ *
+ * @author prakasid
+ *
+ */
+public class FileLogBackend implements LogBackend {
+	private FileChannel channel;
+	private boolean readOnly;
+	private final AtomicLong tail = new AtomicLong();
+
+	@Override
+	public void open(File file, boolean readOnly) throws IOException {
+		if ( channel != null ) throw new IllegalStateException("Already open");
+		if ( readOnly ) {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		} else {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+		this.readOnly = readOnly;
+		tail.set(channel.size());
+	}
+
+	@Override
+	public boolean isOpen() {
+		return channel != null;
+	}
+
+	@Override
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	@Override
+	public long size() throws IOException {
+		return tail.get();
+	}
+
+	@Override
+	public void write(ByteBuffer src) throws IOException {
+		long position = tail.getAndAdd(src.remaining());
+		while ( src.hasRemaining() ) {
+			position += channel.write(src, position);
+		}
+	}
+
+	@Override
+	public ByteBuffer read(long position, ByteBuffer buff) throws IOException {
+		buff.clear();
+		long size = tail.get();
+		if ( size - position < buff.capacity() ) {
+			buff.limit((int)Math.max(0, size - position));
+		}
+		while ( buff.hasRemaining() ) {
+			int read = channel.read(buff, position + buff.position());
+			if ( read < 0 ) break;
+		}
+		buff.flip();
+		return buff;
+	}
+
+	@Override
+	public void truncate(long size) throws IOException {
+		channel.truncate(size);
+		tail.set(size);
+	}
+
+	@Override
+	public void force() throws IOException {
+		channel.force(false);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if ( channel != null ) {
+			try {
+				channel.close();
+			} finally {
+				channel = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package org.scienty.file.patch;
+
+/**
+ * Cap on the writes an {@link AsyncFileAssembler} keeps in flight, and what a write does once
+ * the cap is reached. A single chunk larger than the byte cap is accepted when nothing else is in flight.
+ *
+ * @author prakasid
+ *
+ */
+public class InFlightLimit {
+
+	public enum Mode {
+		/** wait till the in flight writes drain below the cap */
+		BLOCK,
+		/** wait up to the timeout, the chunk is not accepted if the cap is still reached */
+		TIMEOUT,
+		/** do not accept the chunk */
+		REJECT
+	}
+
+	private final Mode mode;
+	private final long maxBytes;
+	private final int maxWrites;
+	private final long timeout;
+
+	private InFlightLimit(Mode mode, long maxBytes, int maxWrites, long timeout) {
+		if ( maxBytes <= 0 ) throw new IllegalArgumentException("Invalid byte cap " + maxBytes);
+		if ( maxWrites <= 0 ) throw new IllegalArgumentException("Invalid write cap " + maxWrites);
+		this.mode = mode;
+		this.maxBytes = maxBytes;
+		this.maxWrites = maxWrites;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @param maxBytes cap on the bytes of the in flight chunks
+	 * @param maxWrites cap on the number of in flight writes
+	 */
+	public static InFlightLimit block(long maxBytes, int maxWrites) {
+		return new InFlightLimit(Mode.BLOCK, maxBytes, maxWrites, 0);
+	}
+
+	/**
+	 * @param maxBytes cap on the bytes of the in flight chunks
+	 * @param maxWrites cap on the number of in flight writes
+	 * @param millis time to wait for the in flight writes to drain
+	 */
+	public static InFlightLimit timeout(long maxBytes, int maxWrites, long millis) {
+		if ( millis <= 0 ) throw new IllegalArgumentException("Invalid timeout " + millis);
+		return new InFlightLimit(Mode.TIMEOUT, maxBytes, maxWrites, millis);
+	}
+
+	/**
+	 * @param maxBytes cap on the bytes of the in flight chunks
+	 * @param maxWrites cap on the number of in flight writes
+	 */
+	public static InFlightLimit reject(long maxBytes, int maxWrites) {
+		return new InFlightLimit(Mode.REJECT, maxBytes, maxWrites, 0);
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public int getMaxWrites() {
+		return maxWrites;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	@Override
+	public String toString() {
+		return "InFlightLimit [mode=" + mode + ", maxBytes=" + maxBytes + ", maxWrites=" + maxWrites
+				+ ", timeout=" + timeout + "]";
+	}
+}
@@ -0,0 +1,184 @@
+package org.scienty.file.patch;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Assembly log of one transfer kept in a {@link SharedJournal} instead of its own file.
+ * The journal owns the group commit, the checkpoints and the compaction, the log only
+ * tags its entries with the transfer. Closing the log keeps the transfer in the journal,
+ * {@link #delete()} removes it.
+ *
+ * @author prakasid
+ *
+ */
+public class JournalAssemblyLog extends AssemblyLog {
+	private final static Logger logger = LogManager.getLogger();
+	private final SharedJournal journal;
+	private final String key;
+	private AssemblyLogHeader header = new AssemblyLogHeader();
+	private volatile SharedJournal.Transfer transfer = null;
+	private Flushable dataSync = null;
+	private boolean checksums = false;
+
+	JournalAssemblyLog(SharedJournal journal, String key) {
+		super(new File(key), null, null);
+		this.journal = journal;
+		this.key = key;
+	}
+
+	public SharedJournal journal() {
+		return journal;
+	}
+
+	@Override
+	public void setDataSync(Flushable dataSync) {
+		this.dataSync = dataSync;
+		if ( transfer != null ) journal.setDataSync(transfer, dataSync);
+	}
+
+	@Override
+	public CommitPolicy commitPolicy() {
+		return null;
+	}
+
+	@Override
+	public void setChecksums(boolean checksums) {
+		this.checksums = checksums;
+	}
+
+	@Override
+	public boolean hasChecksums() {
+		return header.version() == AssemblyLogHeader.VERSION_2;
+	}
+
+	@Override
+	public List<ChunkChecksum> replayedChecksums() {
+		return journal.replayedChecksums(transfer());
+	}
+
+	/**
+	 * Register the transfer in the journal if it is not there yet
+	 */
+	@Override
+	public boolean initFile(Long low, Long high, String tag) throws IOException {
+		if ( journal.contains(key) == false ) {
+			header.init(low, high, tag, checksums ? AssemblyLogHeader.VERSION_2 : AssemblyLogHeader.VERSION_1);
+			transfer = journal.register(key, header);
+			journal.setDataSync(transfer, dataSync);
+			return true;
+		}
+
+		init(false);
+		return false;
+	}
+
+	@Override
+	public void init(boolean readOnly) throws IOException {
+		if ( transfer == null ) {
+			SharedJournal.Transfer found = journal.attach(key);
+			if ( found == null ) throw new IllegalStateException("Transfer not in journal " + key);
+			transfer = found;
+			header = found.header;
+		}
+		journal.setDataSync(transfer, dataSync);
+	}
+
+	@Override
+	public void append(long low, long high, long checksum) throws IOException {
+		journal.append(transfer(), low, high, checksum);
+	}
+
+	@Override
+	public RangeStore read() throws IOException {
+		return journal.remaining(transfer());
+	}
+
+	@Override
+	public boolean isComplete() {
+		return journal.isComplete(transfer());
+	}
+
+	@Override
+	public boolean isComplete(long low, long high) {
+		return journal.isComplete(transfer(), low, high);
+	}
+
+	@Override
+	public AssemblyLogHeader header() {
+		return header;
+	}
+
+	/**
+	 * Wait for the staged entries of all the transfers and force the journal
+	 */
+	@Override
+	public void flush() throws IOException {
+		SharedJournal.Transfer current = transfer;
+		if ( current != null ) {
+			journal.sync(current);
+		} else {
+			journal.sync();
+		}
+	}
+
+	/**
+	 * Sync the journal and detach from the transfer, the transfer stays in the journal
+	 */
+	@Override
+	public void close() throws IOException {
+		if ( transfer == null ) return;
+		try {
+			journal.sync(transfer);
+		} finally {
+			journal.setDataSync(transfer, null);
+			transfer = null;
+		}
+	}
+
+	/**
+	 * Write a checkpoint of the transfer to the journal, the journal file is compacted by the journal
+	 */
+	@Override
+	public void compact() throws IOException {
+		journal.checkpoint(transfer());
+	}
+
+	@Override
+	public void reopen(Collection<Range> ranges) throws IOException {
+		if ( ranges.isEmpty() ) return;
+		journal.reopen(transfer(), ranges);
+	}
+
+	/**
+	 * Remove the transfer from the journal
+	 */
+	@Override
+	public boolean delete() {
+		SharedJournal.Transfer ended = journal.attach(key);
+		if ( ended == null ) return false;
+		try {
+			journal.end(ended);
+			return true;
+		} catch (IOException e) {
+			logger.error("Failed to end transfer " + key, e);
+			return false;
+		}
+	}
+
+	private SharedJournal.Transfer transfer() {
+		if ( transfer == null ) throw new IllegalStateException("Not initialized");
+		return transfer;
+	}
+
+	@Override
+	public String toString() {
+		return "JournalAssemblyLog [key=" + key + ", journal=" + journal.getFile() + "]";
+	}
+}
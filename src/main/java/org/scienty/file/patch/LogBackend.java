@@ -0,0 +1,62 @@
+package org.scienty.file.patch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Storage of the assembly log file.
+ * The log is append only, appends may come concurrently from multiple threads and
+ * each one claims its own offset at the end of the log.
+ *
+ * @author prakasid
+ *
+ */
+public interface LogBackend extends Closeable {
+
+	/**
+	 * Open the log file, create it if it does not exist and opened for write
+	 * @param file
+	 * @param readOnly
+	 * @throws IOException
+	 */
+	public void open(File file, boolean readOnly) throws IOException;
+
+	public boolean isOpen();
+
+	public boolean isReadOnly();
+
+	/**
+	 * @return logical size of the log
+	 */
+	public long size() throws IOException;
+
+	/**
+	 * Append all the remaining bytes of the buffer at the end of the log
+	 * @param src
+	 * @throws IOException
+	 */
+	public void write(ByteBuffer src) throws IOException;
+
+	/**
+	 * Read the log from position. The returned buffer holds the bytes between its position and limit,
+	 * it is either the provided buffer or a view of the log. Empty buffer is returned at the end of the log.
+	 * @param position
+	 * @param buff
+	 * @return
+	 * @throws IOException
+	 */
+	public ByteBuffer read(long position, ByteBuffer buff) throws IOException;
+
+	/**
+	 * Drop the bytes after size, used to remove a partial entry left by a crash
+	 * @param size
+	 * @throws IOException
+	 */
+	public void truncate(long size) throws IOException;
+
+	public void force() throws IOException;
+
+	public void close() throws IOException;
+}
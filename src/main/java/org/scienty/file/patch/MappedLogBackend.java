@@ -0,0 +1,238 @@
+package org.scienty.file.patch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Log backend mapping the log file in fixed size regions.
+ * An append claims its offset atomically and copies the entry into the mapped region, there is no
+ * system call per entry. Regions are mapped on demand as the log grows, which extends the file
+ * beyond the logical size. The file is truncated to the logical size on close, after a crash
+ * the zero filled tail is dropped by the replay.
+ * A write marks its region dirty, force syncs only the regions dirtied since the last force and
+ * releases the filled ones, so the cost of a commit does not grow with the log.
+ * Replay reads the log into the buffer of the caller, no mapping is left behind.
+ *
+ * @author prakasid
+ *
+ */
+public class MappedLogBackend implements LogBackend {
+	private final static Logger logger = LogManager.getLogger();
+	public final static int DEFAULT_REGION_SIZE = 4*1024*1024;
+
+	/**
+	 * Mapping of a region, a writer that still holds a released region marks it dirty and
+	 * gets it forced all the same
+	 */
+	private static class Region {
+		final int index;
+		final MappedByteBuffer buffer;
+		final AtomicBoolean dirty = new AtomicBoolean();
+
+		Region(int index, MappedByteBuffer buffer) {
+			this.index = index;
+			this.buffer = buffer;
+		}
+	}
+
+	private final int regionSize;
+	private FileChannel channel;
+	private boolean readOnly;
+	private final AtomicLong tail = new AtomicLong();
+	private volatile Region[] regions = new Region[0];
+	private final ReentrantLock regionLock = new ReentrantLock();
+	//regions written since the last force
+	private final ConcurrentLinkedQueue<Region> dirty = new ConcurrentLinkedQueue<Region>();
+
+	public MappedLogBackend() {
+		this(DEFAULT_REGION_SIZE);
+	}
+
+	public MappedLogBackend(int regionSize) {
+		if ( regionSize < Long.BYTES ) throw new IllegalArgumentException("Invalid region size " + regionSize);
+		this.regionSize = regionSize;
+	}
+
+	@Override
+	public void open(File file, boolean readOnly) throws IOException {
+		if ( channel != null ) throw new IllegalStateException("Already open");
+		if ( readOnly ) {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		} else {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+		this.readOnly = readOnly;
+		tail.set(channel.size());
+	}
+
+	@Override
+	public boolean isOpen() {
+		return channel != null;
+	}
+
+	@Override
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	@Override
+	public long size() throws IOException {
+		return tail.get();
+	}
+
+	@Override
+	public void write(ByteBuffer src) throws IOException {
+		int remaining = src.remaining();
+		long position = tail.getAndAdd(remaining);
+		int index = src.position();
+		while ( remaining > 0 ) {
+			Region region = region((int)(position / regionSize));
+			int offset = (int)(position % regionSize);
+			int count = Math.min(remaining, regionSize - offset);
+			copy(src, index, region.buffer, offset, count);
+			if ( region.dirty.compareAndSet(false, true) ) {
+				dirty.add(region);
+			}
+			index += count;
+			position += count;
+			remaining -= count;
+		}
+		src.position(src.limit());
+	}
+
+	/**
+	 * Copy with absolute gets and puts, concurrent appenders never touch the buffer positions
+	 */
+	private static void copy(ByteBuffer src, int index, ByteBuffer dst, int offset, int count) {
+		int i = 0;
+		for (; i + Long.BYTES <= count; i += Long.BYTES) {
+			dst.putLong(offset + i, src.getLong(index + i));
+		}
+		for (; i < count; i++) {
+			dst.put(offset + i, src.get(index + i));
+		}
+	}
+
+	private Region region(int index) throws IOException {
+		Region[] current = regions;
+		if ( index < current.length && current[index] != null ) {
+			return current[index];
+		}
+
+		regionLock.lock();
+		try {
+			current = regions;
+			if ( index >= current.length ) {
+				current = Arrays.copyOf(current, Math.max(index + 1, current.length * 2));
+			}
+			if ( current[index] == null ) {
+				//mapping beyond the end grows the file
+				current[index] = new Region(index, channel.map(MapMode.READ_WRITE, (long)index * regionSize, regionSize));
+			}
+			regions = current;
+			return current[index];
+		} finally {
+			regionLock.unlock();
+		}
+	}
+
+	/**
+	 * Read into the buffer, the mapped writes share the page cache with the channel
+	 */
+	@Override
+	public ByteBuffer read(long position, ByteBuffer buff) throws IOException {
+		buff.clear();
+		long size = tail.get();
+		if ( size - position < buff.capacity() ) {
+			buff.limit((int)Math.max(0, size - position));
+		}
+		while ( buff.hasRemaining() ) {
+			int read = channel.read(buff, position + buff.position());
+			if ( read < 0 ) break;
+		}
+		buff.flip();
+		return buff;
+	}
+
+	@Override
+	public void truncate(long size) throws IOException {
+		//regions may map the dropped bytes, clear them instead of shrinking under the mapping
+		ByteBuffer zeros = ByteBuffer.allocate((int)Math.min(Math.max(channel.size() - size, 0), 64*1024));
+		long position = size;
+		while ( position < channel.size() ) {
+			zeros.clear();
+			zeros.limit((int)Math.min(zeros.capacity(), channel.size() - position));
+			while ( zeros.hasRemaining() ) {
+				position += channel.write(zeros, position);
+			}
+		}
+		tail.set(size);
+	}
+
+	/**
+	 * Force the regions written since the last force, a region filled up to its end is released
+	 */
+	@Override
+	public void force() throws IOException {
+		//regions dirtied again while forcing are left to the next force
+		for (int count = dirty.size(); count > 0; count--) {
+			Region region = dirty.poll();
+			if ( region == null ) break;
+			//cleared first, a write racing with the force marks the region again
+			region.dirty.set(false);
+			region.buffer.force();
+			if ( (long)(region.index + 1) * regionSize <= tail.get() ) {
+				release(region);
+			}
+		}
+	}
+
+	/**
+	 * Drop the region from the table, the mapping is unmapped once no writer holds it
+	 */
+	private void release(Region region) {
+		regionLock.lock();
+		try {
+			Region[] current = regions;
+			if ( region.index < current.length && current[region.index] == region ) {
+				current[region.index] = null;
+			}
+		} finally {
+			regionLock.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if ( channel == null ) return;
+		try {
+			if ( readOnly == false && channel.size() > tail.get() ) {
+				try {
+					channel.truncate(tail.get());
+				} catch (IOException e) {
+					//not allowed while mapped on some platforms, replay drops the zero filled tail
+					logger.debug("Failed to truncate mapped log to " + tail.get());
+				}
+			}
+			channel.close();
+		} finally {
+			channel = null;
+			regions = new Region[0];
+			dirty.clear();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package org.scienty.file.patch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reservation of the part file for the full target size at init, before the chunks land at arbitrary offsets.
+ * Java has no fallocate, blocks are allocated by writing zeros the way posix_fallocate does on file
+ * systems without native support. Only the bytes past the current end of the file are touched, so a
+ * resumed part file keeps its chunks.
+ *
+ * @author prakasid
+ *
+ */
+public enum Preallocation {
+	/** the file grows as the chunks are written */
+	NONE,
+	/** set the file size, the file is sparse and blocks are allocated as the chunks are written */
+	SPARSE,
+	/** write zeros up to the file size, blocks are allocated up front in long sequential extents */
+	ALLOCATE;
+
+	private final static Logger logger = LogManager.getLogger();
+	private final static int ZERO_BLOCK_SIZE = 1024*1024;
+
+	/**
+	 * Reserve the file up to size, a larger file is not truncated
+	 * @param channel writable channel of the file
+	 * @param size target file size
+	 * @throws IOException
+	 */
+	public void apply(FileChannel channel, long size) throws IOException {
+		long current = channel.size();
+		if ( this == NONE || current >= size ) return;
+
+		long start = System.nanoTime();
+		if ( this == SPARSE ) {
+			//writing the last byte extends the file without allocating the blocks before it
+			ByteBuffer last = ByteBuffer.allocate(1);
+			while ( last.hasRemaining() ) {
+				channel.write(last, size - 1);
+			}
+		} else {
+			ByteBuffer zeros = ByteBuffer.allocateDirect((int)Math.min(ZERO_BLOCK_SIZE, size - current));
+			long position = current;
+			while ( position < size ) {
+				zeros.clear();
+				if ( size - position < zeros.capacity() ) zeros.limit((int)(size - position));
+				while ( zeros.hasRemaining() ) {
+					position += channel.write(zeros, position);
+				}
+			}
+			//allocate now, not at a delayed write back that mixes in the chunks
+			channel.force(false);
+		}
+		logger.debug(this + " preallocation from " + current + " to " + size + " bytes in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+	}
+}
@@ -2,11 +2,14 @@ package org.scienty.file.patch;
 
 import java.io.IOException;
 import java.nio.channels.FileChannel;
+import java.util.List;
 
 
 public interface RangeStore {
 	/** return ordered list of ByteRange objects **/
 	public String getRanges();
+	/** return the ranges in order, both ends inclusive **/
+	public List<Range> ranges();
 	public void add(long low, long high);
 	public void sub(long low, long high);
 	
@@ -19,4 +22,10 @@ public interface RangeStore {
 	//public void merge();
 	public Range span();
 	public int size();
+	
+	/** return true if any range overlaps low-high, both inclusive **/
+	public boolean intersects(long low, long high);
+	
+	/** return an independent copy of this store **/
+	public RangeStore copy();
 }
@@ -0,0 +1,1001 @@
+package org.scienty.file.patch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Checksum;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.scienty.java.util.zip.CRC32C;
+
+/**
+ * One append only journal for the assembly logs of many transfers, instead of one log file each.
+ * Records are tagged with the id of their transfer and group committed for all the transfers
+ * together, one write and one force per batch whatever the number of transfers in it.
+ * A transfer that appended {@link #setCheckpointThreshold(long) enough} entries gets a checkpoint
+ * of its remaining ranges, and once the journal outgrows {@link #setCompactSize(long) its limit}
+ * it is rewritten with one checkpoint per live transfer. On open the journal is scanned once,
+ * sequentially, to rebuild the remaining ranges of every transfer.
+ * <p>
+ * Every record is length prefixed and covered by a CRC32C, a torn write at the end of the journal
+ * is dropped on open. The checkpoint of a checksummed transfer carries the checksums of its completed
+ * chunks, a checkpoint without them clears the checksums of the transfer.
+ *
+ * <pre>
+ * record     : length (int) crc (int) type (byte) id (long) payload
+ * REGISTER   : key length (int) key (utf-8) log header
+ * ENTRY      : low (long) high (long) checksum (long)
+ * CHECKPOINT : count (int) count * (low (long) high (long)) [sums (int) sums * (low (long) high (long) checksum (long))]
+ * END        :
+ * </pre>
+ *
+ * @author prakasid
+ *
+ */
+public class SharedJournal implements Closeable {
+	private final static Logger logger = LogManager.getLogger();
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+	private final static byte[] MAGIC = {'C', 'F', 'J', 1, 0, 0, 0, 0};
+	private final static byte REGISTER = 1;
+	private final static byte ENTRY = 2;
+	private final static byte CHECKPOINT = 3;
+	private final static byte END = 4;
+	//length and crc
+	private final static int RECORD_HEADER = 2*Integer.BYTES;
+	//type and id
+	private final static int RECORD_PREFIX = 1 + Long.BYTES;
+	private final static int ENTRY_LENGTH = RECORD_PREFIX + 3*Long.BYTES;
+	private final static int REPLAY_BUFFER_SIZE = 1024*1024;
+	public final static long DEFAULT_CHECKPOINT_THRESHOLD = 64*1024;
+	public final static long DEFAULT_COMPACT_SIZE = 64*1024*1024;
+
+	/**
+	 * State of one transfer, guarded by the journal lock
+	 */
+	static class Transfer {
+		final long id;
+		final String key;
+		final AssemblyLogHeader header;
+		RangeStore remaining;
+		//entries after the last checkpoint
+		long entries = 0;
+		ChecksumTable checksums = new ChecksumTable();
+		//checksums carried by the last checkpoint
+		long checkpointChecksums = 0;
+		Flushable dataSync = null;
+		//failure of the data sync, the entries of the transfer are no longer written
+		IOException syncEx = null;
+		boolean inBatch = false;
+		boolean ended = false;
+
+		Transfer(long id, String key, AssemblyLogHeader header) {
+			this.id = id;
+			this.key = key;
+			this.header = header;
+			Range span = header.span();
+			remaining = new ArrayRangeStore();
+			remaining.add(span.low, span.high);
+		}
+
+		boolean hasChecksums() {
+			return header.version() == AssemblyLogHeader.VERSION_2;
+		}
+	}
+
+	private final File file;
+	private final CommitPolicy policy;
+	private volatile long checkpointThreshold = DEFAULT_CHECKPOINT_THRESHOLD;
+	private volatile long compactSize = DEFAULT_COMPACT_SIZE;
+	private FileChannel channel;
+
+	//guards the transfers and the staging buffers
+	private final ReentrantLock lock = new ReentrantLock();
+	//signalled when the writer has a batch to drain
+	private final Condition pendingCond = lock.newCondition();
+	//signalled when the pending buffer has room
+	private final Condition spaceCond = lock.newCondition();
+	//signalled when a batch is written
+	private final Condition commitCond = lock.newCondition();
+	//orders the writes to the journal file, taken before the lock
+	private final ReentrantLock ioLock = new ReentrantLock();
+	private final HashMap<String, Transfer> byKey = new HashMap<String, Transfer>();
+	private final HashMap<Long, Transfer> byId = new HashMap<Long, Transfer>();
+	private long nextId = 1;
+	private ByteBuffer pending;
+	private ByteBuffer writing;
+	private List<Transfer> pendingTransfers = new ArrayList<Transfer>();
+	private long appended = 0;
+	private long written = 0;
+	private long syncTarget = 0;
+	private long lastCommit;
+	//journal size after the last rewrite, the live checkpoints alone may exceed the compact size
+	private volatile long compactedSize = 0;
+	private boolean closing = false;
+	private IOException writeEx = null;
+	private Thread thread;
+
+	/**
+	 * @param file
+	 * @param policy group commit policy of all the transfers, null for {@link CommitPolicy#perBatch()}
+	 */
+	public SharedJournal(File file, CommitPolicy policy) {
+		this.file = file;
+		this.policy = (policy != null) ? policy : CommitPolicy.perBatch();
+	}
+
+	/**
+	 * @param checkpointThreshold entries of a transfer that trigger its checkpoint, 0 to disable
+	 */
+	public void setCheckpointThreshold(long checkpointThreshold) {
+		if ( checkpointThreshold < 0 ) throw new IllegalArgumentException("Invalid threshold " + checkpointThreshold);
+		this.checkpointThreshold = checkpointThreshold;
+	}
+
+	/**
+	 * Set the journal size that triggers a rewrite, the journal is rewritten again only after it
+	 * doubled its size since the last rewrite
+	 * @param compactSize 0 to disable
+	 */
+	public void setCompactSize(long compactSize) {
+		if ( compactSize < 0 ) throw new IllegalArgumentException("Invalid size " + compactSize);
+		this.compactSize = compactSize;
+	}
+
+	/**
+	 * Open the journal and rebuild the state of every transfer in it
+	 * @throws IOException
+	 */
+	public void open() throws IOException {
+		if ( channel != null ) throw new IllegalStateException("Already open");
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			if ( channel.size() == 0 ) {
+				writeFully(channel, ByteBuffer.wrap(MAGIC), 0);
+				channel.force(true);
+			} else {
+				ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+				readFully(channel, magic, 0);
+				if ( channel.size() < MAGIC.length || !ByteBuffer.wrap(MAGIC).equals(((Buffer)magic).flip()) ) {
+					throw new IllegalStateException("Invalid journal signature " + file);
+				}
+			}
+
+			long end = replay();
+			compactedSize = end;
+			if ( end < channel.size() ) {
+				logger.warn("Dropping " + (channel.size() - end) + " trailing bytes of " + file);
+				channel.truncate(end);
+			}
+			channel.position(end);
+		} catch (IOException e) {
+			channel.close();
+			channel = null;
+			throw e;
+		}
+		logger.debug("Opened " + file + " with " + byKey.size() + " transfers");
+
+		int capacity = Math.max(ENTRY_LENGTH + RECORD_HEADER, policy.getBufferSize());
+		pending = ByteBuffer.allocateDirect(capacity);
+		writing = ByteBuffer.allocateDirect(capacity);
+		closing = false;
+		writeEx = null;
+		lastCommit = System.nanoTime();
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				commitLoop();
+			}
+		}, "SharedJournal-" + file.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Log of a transfer in this journal, the transfer is created by {@link AssemblyLog#initFile(Long, Long, String)}
+	 * @param key unique name of the transfer, such as the path of the target file
+	 * @return
+	 */
+	public AssemblyLog log(String key) {
+		return new JournalAssemblyLog(this, key);
+	}
+
+	public boolean contains(String key) {
+		lock.lock();
+		try {
+			return byKey.containsKey(key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return keys of the transfers in the journal
+	 */
+	public Set<String> keys() {
+		lock.lock();
+		try {
+			return new TreeSet<String>(byKey.keySet());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	Transfer attach(String key) {
+		lock.lock();
+		try {
+			return byKey.get(key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Create the transfer, written directly so it is in the journal before its entries
+	 */
+	Transfer register(String key, AssemblyLogHeader header) throws IOException {
+		byte[] keyBytes = key.getBytes(UTF8);
+		ioLock.lock();
+		try {
+			Transfer transfer;
+			lock.lock();
+			try {
+				checkState();
+				if ( byKey.containsKey(key) ) throw new IllegalStateException("Transfer already in journal " + key);
+				transfer = new Transfer(nextId++, key, header);
+			} finally {
+				lock.unlock();
+			}
+
+			ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + RECORD_PREFIX + Integer.BYTES + keyBytes.length + header.size());
+			start(record, REGISTER, transfer.id);
+			record.putInt(keyBytes.length);
+			record.put(keyBytes);
+			header.write(record);
+			seal(record, 0);
+			record.flip();
+			writeFully(channel, record, channel.position());
+			channel.position(channel.position() + record.capacity());
+
+			lock.lock();
+			try {
+				byKey.put(key, transfer);
+				byId.put(transfer.id, transfer);
+			} finally {
+				lock.unlock();
+			}
+			return transfer;
+		} finally {
+			ioLock.unlock();
+		}
+	}
+
+	void append(Transfer transfer, long low, long high, long checksum) throws IOException {
+		lock.lock();
+		try {
+			checkState();
+			checkTransfer(transfer);
+			if ( transfer.ended ) throw new IllegalStateException("Transfer is ended " + transfer.key);
+			while ( pending.remaining() < RECORD_HEADER + ENTRY_LENGTH ) {
+				pendingCond.signal();
+				spaceCond.awaitUninterruptibly();
+				checkState();
+			}
+			int start = pending.position();
+			start(pending, ENTRY, transfer.id);
+			pending.putLong(low);
+			pending.putLong(high);
+			pending.putLong(transfer.hasChecksums() ? checksum : AssemblyLog.NO_CHECKSUM);
+			seal(pending, start);
+			appended++;
+			transfer.remaining.sub(low, high);
+			transfer.entries++;
+			if ( transfer.hasChecksums() && checksum != AssemblyLog.NO_CHECKSUM ) {
+				transfer.checksums.add(low, high, checksum);
+			}
+			if ( !transfer.inBatch ) {
+				transfer.inBatch = true;
+				pendingTransfers.add(transfer);
+			}
+			//wake up the writer for a ready batch or to start the interval timer
+			if ( start == 0 || ready() ) {
+				pendingCond.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait till all the entries appended so far are written to the journal and forced to the disk
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		lock.lock();
+		try {
+			long target = appended;
+			if ( target > syncTarget ) syncTarget = target;
+			pendingCond.signal();
+			while ( written < target && writeEx == null && thread != null && thread.isAlive() ) {
+				commitCond.awaitUninterruptibly();
+			}
+			checkState();
+		} finally {
+			lock.unlock();
+		}
+		ioLock.lock();
+		try {
+			channel.force(false);
+		} finally {
+			ioLock.unlock();
+		}
+	}
+
+	/**
+	 * Wait till the entries of all the transfers are written, then fail if the data of this transfer
+	 * could not be synced, its entries since then are not in the journal
+	 */
+	void sync(Transfer transfer) throws IOException {
+		sync();
+		lock.lock();
+		try {
+			checkTransfer(transfer);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Write a checkpoint of the transfer after its staged entries
+	 */
+	void checkpoint(Transfer transfer) throws IOException {
+		sync(transfer);
+		ioLock.lock();
+		try {
+			writeCheckpoint(transfer);
+			channel.force(false);
+		} finally {
+			ioLock.unlock();
+		}
+	}
+
+	/**
+	 * Return the ranges to the remaining set of the transfer, persisted by a checkpoint
+	 */
+	void reopen(Transfer transfer, Collection<Range> ranges) throws IOException {
+		sync();
+		lock.lock();
+		try {
+			for (Range range : ranges) {
+				transfer.remaining.add(range.low, range.high);
+			}
+			transfer.checksums.remove(ranges);
+		} finally {
+			lock.unlock();
+		}
+		checkpoint(transfer);
+	}
+
+	/**
+	 * Remove the transfer from the journal
+	 */
+	void end(Transfer transfer) throws IOException {
+		ioLock.lock();
+		try {
+			lock.lock();
+			try {
+				if ( transfer.ended ) return;
+				transfer.ended = true;
+				byKey.remove(transfer.key);
+				byId.remove(transfer.id);
+			} finally {
+				lock.unlock();
+			}
+			ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + RECORD_PREFIX);
+			start(record, END, transfer.id);
+			seal(record, 0);
+			record.flip();
+			writeFully(channel, record, channel.position());
+			channel.position(channel.position() + record.capacity());
+			channel.force(false);
+		} finally {
+			ioLock.unlock();
+		}
+	}
+
+	void setDataSync(Transfer transfer, Flushable dataSync) {
+		lock.lock();
+		try {
+			transfer.dataSync = dataSync;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	RangeStore remaining(Transfer transfer) {
+		lock.lock();
+		try {
+			return transfer.remaining.copy();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	boolean isComplete(Transfer transfer) {
+		lock.lock();
+		try {
+			return transfer.remaining.size() == 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	boolean isComplete(Transfer transfer, long low, long high) {
+		lock.lock();
+		try {
+			return transfer.remaining.intersects(low, high) == false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	List<ChunkChecksum> replayedChecksums(Transfer transfer) {
+		lock.lock();
+		try {
+			return Collections.unmodifiableList(transfer.checksums.list());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drain the staged entries and close the journal, the transfers stay in the file
+	 */
+	@Override
+	public void close() throws IOException {
+		if ( channel == null ) return;
+		lock.lock();
+		try {
+			closing = true;
+			pendingCond.signal();
+			spaceCond.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while closing journal");
+		}
+
+		ioLock.lock();
+		try {
+			channel.force(true);
+			channel.close();
+			channel = null;
+		} finally {
+			ioLock.unlock();
+		}
+
+		lock.lock();
+		try {
+			byKey.clear();
+			byId.clear();
+			pendingTransfers.clear();
+		} finally {
+			lock.unlock();
+		}
+		if ( writeEx != null ) {
+			throw new WriteException("Failed to write journal", writeEx);
+		}
+	}
+
+	/**
+	 * Called with the lock held
+	 */
+	private void checkTransfer(Transfer transfer) throws IOException {
+		if ( transfer.syncEx != null ) {
+			throw new WriteException("Failed to sync data of " + transfer.key, transfer.syncEx);
+		}
+	}
+
+	private void checkState() throws IOException {
+		if ( writeEx != null ) {
+			throw new WriteException("Failed to write journal", writeEx);
+		}
+		if ( closing || channel == null ) {
+			throw new WriteException("Journal is closed");
+		}
+	}
+
+	private boolean ready() {
+		if ( pending.position() == 0 ) return false;
+		if ( closing || syncTarget > written || pending.remaining() < RECORD_HEADER + ENTRY_LENGTH ) return true;
+
+		switch (policy.getMode()) {
+		case PER_BATCH:
+			return true;
+		case BYTES:
+			return pending.position() >= policy.getBytes();
+		case INTERVAL:
+			return System.nanoTime() - lastCommit >= TimeUnit.MILLISECONDS.toNanos(policy.getInterval());
+		default:
+			return false;
+		}
+	}
+
+	private void commitLoop() {
+		while ( true ) {
+			long batchEnd;
+			List<Transfer> batchTransfers;
+			lock.lock();
+			try {
+				while ( ready() == false ) {
+					if ( closing ) return;
+
+					if ( policy.getMode() == CommitPolicy.Mode.INTERVAL && pending.position() > 0 ) {
+						long wait = TimeUnit.MILLISECONDS.toNanos(policy.getInterval()) - (System.nanoTime() - lastCommit);
+						pendingCond.awaitNanos(wait);
+					} else {
+						pendingCond.await();
+					}
+				}
+				ByteBuffer swap = writing;
+				writing = pending;
+				pending = swap;
+				batchEnd = appended;
+				batchTransfers = pendingTransfers;
+				pendingTransfers = new ArrayList<Transfer>();
+				for (Transfer transfer : batchTransfers) {
+					transfer.inBatch = false;
+				}
+				spaceCond.signalAll();
+			} catch (InterruptedException e) {
+				closing = true;
+				continue;
+			} finally {
+				lock.unlock();
+			}
+
+			IOException ex = null;
+			try {
+				commit(writing, batchTransfers);
+				maintain(batchTransfers);
+			} catch (IOException e) {
+				logger.error("Failed to write journal " + file, e);
+				ex = e;
+			}
+
+			lock.lock();
+			try {
+				if ( ex != null && writeEx == null ) writeEx = ex;
+				written = batchEnd;
+				lastCommit = System.nanoTime();
+				commitCond.signalAll();
+				spaceCond.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void commit(ByteBuffer batch, List<Transfer> transfers) throws IOException {
+		batch.flip();
+		try {
+			//data must be on the disk before the journal claims it, a transfer that fails its sync
+			//loses the entries of the batch, the other transfers go on
+			Set<Long> failed = null;
+			for (Transfer transfer : transfers) {
+				if ( syncData(transfer) == false ) {
+					if ( failed == null ) failed = new HashSet<Long>();
+					failed.add(transfer.id);
+				}
+			}
+			if ( failed != null ) {
+				dropRecords(batch, failed);
+			}
+			ioLock.lock();
+			try {
+				long position = channel.position();
+				int size = batch.remaining();
+				writeFully(channel, batch, position);
+				channel.position(position + size);
+				if ( policy.getMode() != CommitPolicy.Mode.ON_FLUSH ) {
+					channel.force(false);
+				}
+			} finally {
+				ioLock.unlock();
+			}
+		} finally {
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Force the data file of the transfer, a failure fails only this transfer
+	 * @return false if the data of the transfer is not on the disk
+	 */
+	private boolean syncData(Transfer transfer) {
+		Flushable dataSync;
+		lock.lock();
+		try {
+			if ( transfer.syncEx != null ) return false;
+			dataSync = transfer.dataSync;
+		} finally {
+			lock.unlock();
+		}
+		if ( dataSync == null ) return true;
+		try {
+			dataSync.flush();
+			return true;
+		} catch (IOException e) {
+			lock.lock();
+			try {
+				if ( transfer.dataSync != dataSync ) {
+					//the assembler synced its data and detached while closing its channel
+					logger.debug("Data of " + transfer.key + " detached during sync, " + e);
+					return true;
+				}
+				transfer.syncEx = e;
+			} finally {
+				lock.unlock();
+			}
+			logger.error("Failed to sync data of " + transfer.key, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Remove the records of the transfers from the batch, between its position and limit
+	 */
+	private static void dropRecords(ByteBuffer batch, Set<Long> ids) {
+		int read = batch.position();
+		int write = read;
+		while ( read < batch.limit() ) {
+			int size = RECORD_HEADER + batch.getInt(read);
+			long id = batch.getLong(read + RECORD_HEADER + 1);
+			if ( ids.contains(id) == false ) {
+				for (int i = 0; i < size && write != read; i++) {
+					batch.put(write + i, batch.get(read + i));
+				}
+				write += size;
+			}
+			read += size;
+		}
+		batch.limit(write);
+	}
+
+	/**
+	 * Checkpoint the transfers with long tails, rewrite the journal once it is too large
+	 */
+	private void maintain(List<Transfer> transfers) throws IOException {
+		long threshold = checkpointThreshold;
+		if ( threshold > 0 ) {
+			for (Transfer transfer : transfers) {
+				boolean due;
+				lock.lock();
+				try {
+					//the tail outgrows the checkpoint, so the checksums it carries are rewritten a bounded number of times
+					due = !transfer.ended && transfer.entries >= threshold
+							&& transfer.entries >= transfer.remaining.size() + transfer.checkpointChecksums;
+				} finally {
+					lock.unlock();
+				}
+				if ( due ) {
+					ioLock.lock();
+					try {
+						writeCheckpoint(transfer);
+					} finally {
+						ioLock.unlock();
+					}
+				}
+			}
+		}
+
+		long limit = compactSize;
+		long size = channel.size();
+		if ( limit > 0 && size > limit && size > 2*compactedSize ) {
+			compact();
+		}
+	}
+
+	/**
+	 * Append a checkpoint of the remaining ranges of the transfer, called with the io lock held
+	 */
+	private void writeCheckpoint(Transfer transfer) throws IOException {
+		RangeStore checkpoint;
+		ChecksumTable checksums;
+		lock.lock();
+		try {
+			if ( transfer.ended ) return;
+			checkpoint = transfer.remaining.copy();
+			checksums = transfer.checksums.copy();
+			transfer.entries = 0;
+			transfer.checkpointChecksums = checksums.size();
+		} finally {
+			lock.unlock();
+		}
+		//data of the completed ranges must be on the disk before the checkpoint claims it
+		if ( syncData(transfer) == false ) return;
+
+		ByteBuffer record = checkpointRecord(transfer.id, checkpoint, checksums);
+		long position = channel.position();
+		writeFully(channel, record, position);
+		channel.position(position + record.capacity());
+		logger.debug("Checkpoint of " + transfer.key + " with " + checkpoint.size() + " ranges, " + checksums.size() + " checksums");
+	}
+
+	private static ByteBuffer checkpointRecord(long id, RangeStore checkpoint, ChecksumTable checksums) {
+		List<Range> ranges = checkpoint.ranges();
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + RECORD_PREFIX + Integer.BYTES + ranges.size() * 2 * Long.BYTES
+				+ Integer.BYTES + checksums.size() * ChecksumTable.ENTRY_SIZE);
+		start(record, CHECKPOINT, id);
+		record.putInt(ranges.size());
+		for (Range range : ranges) {
+			record.putLong(range.low);
+			record.putLong(range.high);
+		}
+		record.putInt(checksums.size());
+		checksums.put(record);
+		seal(record, 0);
+		record.flip();
+		return record;
+	}
+
+	/**
+	 * Rewrite the journal with one registration and one checkpoint per live transfer.
+	 * The new journal is written to a temporary file which is moved over the journal, so either
+	 * the old journal or the new one survives a crash.
+	 */
+	private void compact() throws IOException {
+		ioLock.lock();
+		try {
+			List<Transfer> transfers;
+			List<RangeStore> checkpoints = new ArrayList<RangeStore>();
+			List<ChecksumTable> checksums = new ArrayList<ChecksumTable>();
+			lock.lock();
+			try {
+				transfers = new ArrayList<Transfer>(byId.values());
+				for (Transfer transfer : transfers) {
+					ChecksumTable table = transfer.checksums.copy();
+					checkpoints.add(transfer.remaining.copy());
+					checksums.add(table);
+					transfer.entries = 0;
+					transfer.checkpointChecksums = table.size();
+				}
+			} finally {
+				lock.unlock();
+			}
+			//a transfer that fails its sync keeps only its registration, it resumes from scratch
+			boolean[] synced = new boolean[transfers.size()];
+			for (int i = 0; i < transfers.size(); i++) {
+				synced[i] = syncData(transfers.get(i));
+			}
+
+			long before = channel.size();
+			File tmpFile = new File(file.getPath() + ".tmp");
+			FileChannel tmpChannel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			try {
+				long position = 0;
+				position += writeFully(tmpChannel, ByteBuffer.wrap(MAGIC), position);
+				for (int i = 0; i < transfers.size(); i++) {
+					Transfer transfer = transfers.get(i);
+					byte[] keyBytes = transfer.key.getBytes(UTF8);
+					ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + RECORD_PREFIX + Integer.BYTES + keyBytes.length + transfer.header.size());
+					start(record, REGISTER, transfer.id);
+					record.putInt(keyBytes.length);
+					record.put(keyBytes);
+					transfer.header.write(record);
+					seal(record, 0);
+					record.flip();
+					position += writeFully(tmpChannel, record, position);
+					if ( synced[i] ) {
+						position += writeFully(tmpChannel, checkpointRecord(transfer.id, checkpoints.get(i), checksums.get(i)), position);
+					}
+				}
+				tmpChannel.force(true);
+			} finally {
+				tmpChannel.close();
+			}
+
+			channel.close();
+			try {
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				syncDirectory();
+			} finally {
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+				channel.position(channel.size());
+			}
+			compactedSize = channel.size();
+			logger.debug("Compacted " + file + " from " + before + " to " + channel.size() + " bytes, " + transfers.size() + " transfers");
+		} finally {
+			ioLock.unlock();
+		}
+	}
+
+	/**
+	 * Rebuild the transfers from the journal
+	 * @return end position of the last valid record
+	 */
+	private long replay() throws IOException {
+		ByteBuffer buff = ByteBuffer.allocate(REPLAY_BUFFER_SIZE);
+		long size = channel.size();
+		long position = MAGIC.length;
+		Checksum crc = CRC32C.create();
+
+		while ( position < size ) {
+			buff.clear();
+			readFully(channel, buff, position);
+			buff.flip();
+
+			while ( buff.remaining() >= RECORD_HEADER ) {
+				int start = buff.position();
+				int length = buff.getInt(start);
+				if ( length < RECORD_PREFIX || position + start + RECORD_HEADER + length > size ) {
+					//torn write at the end
+					return position + start;
+				}
+				if ( buff.remaining() < RECORD_HEADER + length ) {
+					if ( start == 0 ) {
+						//record larger than the buffer
+						buff = ByteBuffer.allocate(RECORD_HEADER + length);
+					}
+					break;
+				}
+
+				ByteBuffer record = buff.duplicate();
+				record.position(start + RECORD_HEADER);
+				record.limit(start + RECORD_HEADER + length);
+				crc.reset();
+				CRC32C.update(crc, record.duplicate());
+				if ( (int)crc.getValue() != buff.getInt(start + Integer.BYTES) ) {
+					logger.warn("Checksum mismatch in " + file + " at " + (position + start));
+					return position + start;
+				}
+				apply(record);
+				buff.position(start + RECORD_HEADER + length);
+			}
+			if ( buff.position() == 0 && buff.limit() < RECORD_HEADER ) {
+				//partial record header at the end
+				return position;
+			}
+			position += buff.position();
+		}
+		return position;
+	}
+
+	private void apply(ByteBuffer record) {
+		byte type = record.get();
+		long id = record.getLong();
+		nextId = Math.max(nextId, id + 1);
+		Transfer transfer;
+
+		switch ( type ) {
+		case REGISTER:
+			byte[] keyBytes = new byte[record.getInt()];
+			record.get(keyBytes);
+			AssemblyLogHeader header = new AssemblyLogHeader();
+			header.read(record);
+			transfer = new Transfer(id, new String(keyBytes, UTF8), header);
+			Transfer old = byKey.put(transfer.key, transfer);
+			if ( old != null ) byId.remove(old.id);
+			byId.put(id, transfer);
+			break;
+		case ENTRY:
+			transfer = byId.get(id);
+			if ( transfer == null ) break;
+			long low = record.getLong();
+			long high = record.getLong();
+			long checksum = record.getLong();
+			transfer.remaining.sub(low, high);
+			transfer.entries++;
+			if ( checksum != AssemblyLog.NO_CHECKSUM ) {
+				transfer.checksums.add(low, high, checksum);
+			}
+			break;
+		case CHECKPOINT:
+			transfer = byId.get(id);
+			if ( transfer == null ) break;
+			RangeStore remaining = new ArrayRangeStore();
+			for (int count = record.getInt(); count > 0; count--) {
+				remaining.add(record.getLong(), record.getLong());
+			}
+			transfer.remaining = remaining;
+			transfer.entries = 0;
+			transfer.checksums.clear();
+			//checkpoints written before the checksums were carried end after the ranges
+			if ( record.remaining() >= Integer.BYTES ) {
+				for (int count = record.getInt(); count > 0; count--) {
+					transfer.checksums.add(record.getLong(), record.getLong(), record.getLong());
+				}
+			}
+			transfer.checkpointChecksums = transfer.checksums.size();
+			break;
+		case END:
+			transfer = byId.remove(id);
+			if ( transfer != null ) byKey.remove(transfer.key);
+			break;
+		default:
+			throw new IllegalStateException("Unknown record " + type + " in " + file);
+		}
+	}
+
+	private static void start(ByteBuffer buff, byte type, long id) {
+		buff.putInt(0);
+		buff.putInt(0);
+		buff.put(type);
+		buff.putLong(id);
+	}
+
+	/**
+	 * Fill in length and crc of the record that starts at start and ends at the buffer position
+	 */
+	private static void seal(ByteBuffer buff, int start) {
+		int length = buff.position() - start - RECORD_HEADER;
+		ByteBuffer body = buff.duplicate();
+		body.position(start + RECORD_HEADER);
+		body.limit(buff.position());
+		Checksum crc = CRC32C.create();
+		CRC32C.update(crc, body);
+		buff.putInt(start, length);
+		buff.putInt(start + Integer.BYTES, (int)crc.getValue());
+	}
+
+	private static int writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+		int count = 0;
+		while ( src.hasRemaining() ) {
+			count += channel.write(src, position + count);
+		}
+		return count;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+		while ( dst.hasRemaining() ) {
+			int read = channel.read(dst, position);
+			if ( read < 0 ) break;
+			position += read;
+		}
+	}
+
+	private void syncDirectory() {
+		File folder = file.getAbsoluteFile().getParentFile();
+		try {
+			FileChannel dirChannel = FileChannel.open(folder.toPath(), StandardOpenOption.READ);
+			try {
+				dirChannel.force(true);
+			} finally {
+				dirChannel.close();
+			}
+		} catch (IOException e) {
+			//not supported on all the platforms
+			logger.trace("Failed to sync directory " + folder);
+		}
+	}
+}
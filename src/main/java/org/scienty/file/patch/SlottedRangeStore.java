@@ -3,6 +3,8 @@ package org.scienty.file.patch;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.TreeMap;
@@ -34,6 +36,15 @@ public class SlottedRangeStore implements RangeStore {
 		return buff.toString();
 	}
 
+	@Override
+	public List<Range> ranges() {
+		List<Range> list = new ArrayList<Range>(treeMap.size());
+		for (Entry<Long,Long> entry : treeMap.entrySet() ) {
+			list.add(new Range(entry.getKey(), entry.getValue()));
+		}
+		return list;
+	}
+
 	@Override
 	public void add(long low, long high) {
 		Long lowToAdd = low;
@@ -174,17 +185,26 @@ public class SlottedRangeStore implements RangeStore {
 		ByteBuffer lenBuff = ByteBuffer.allocate(8);
 		lenBuff.putLong(rangeLen);
 		lenBuff.flip();
-		channel.write(lenBuff);
+		while ( lenBuff.hasRemaining() ) {
+			channel.write(lenBuff);
+		}
 		ByteBuffer outBuff = ByteBuffer.allocateDirect((rangeLen < 1024) ? (int)rangeLen : 1024);
 		
 		for (Entry<Long,Long> entry : treeMap.entrySet() ) {
 			outBuff.putLong(entry.getKey());
 			outBuff.putLong(entry.getValue());
 			if ( outBuff.hasRemaining() == false ) {
-				channel.write(outBuff);
+				outBuff.flip();
+				while ( outBuff.hasRemaining() ) {
+					channel.write(outBuff);
+				}
 				outBuff.clear();
 			}
 		}
+		outBuff.flip();
+		while ( outBuff.hasRemaining() ) {
+			channel.write(outBuff);
+		}
 		
 		return rangeLen;
 	}
@@ -201,6 +221,19 @@ public class SlottedRangeStore implements RangeStore {
 		return treeMap.size();
 	}
 	
+	@Override
+	public boolean intersects(long low, long high) {
+		Entry<Long, Long> entry = treeMap.floorEntry(high);
+		return entry != null && entry.getValue() >= low;
+	}
+	
+	@Override
+	public RangeStore copy() {
+		SlottedRangeStore rs = new SlottedRangeStore();
+		rs.treeMap = new TreeMap<Long, Long>(treeMap);
+		return rs;
+	}
+	
 	public static void main(String args[]) {
 		SlottedRangeStore rs = new SlottedRangeStore();
 		rs.add(13L, 13L);
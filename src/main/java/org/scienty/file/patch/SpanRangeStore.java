@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.LongBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 public class SpanRangeStore implements RangeStore {
 	private static int sizeIdx = 0;
@@ -29,6 +31,13 @@ public class SpanRangeStore implements RangeStore {
 		return rangeBuff.get(lowIdx) + "-" +  rangeBuff.get(highIdx);
 	}
 
+	@Override
+	public List<Range> ranges() {
+		List<Range> list = new ArrayList<Range>(1);
+		if ( size() == 1 ) list.add(span());
+		return list;
+	}
+
 	@Override
 	public void add(long low, long high) {
 		if ( low > high ) {
@@ -96,4 +105,17 @@ public class SpanRangeStore implements RangeStore {
 		return 0;
 	}
 
+	@Override
+	public boolean intersects(long low, long high) {
+		return size() == 1 && rangeBuff.get(lowIdx) <= high && rangeBuff.get(highIdx) >= low;
+	}
+
+	@Override
+	public RangeStore copy() {
+		SpanRangeStore rs = new SpanRangeStore();
+		rs.rangeBuff.put(sizeIdx, rangeBuff.get(sizeIdx));
+		rs.rangeBuff.put(lowIdx, rangeBuff.get(lowIdx));
+		rs.rangeBuff.put(highIdx, rangeBuff.get(highIdx));
+		return rs;
+	}
 }
@@ -0,0 +1,84 @@
+package org.scienty.file.patch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.scienty.java.util.concurrent.VirtualThreads;
+
+/**
+ * Consume many blocking chunk streams into one assembler, one thread per stream.
+ * The threads are virtual on Java 21 and later, a stream blocked on the network then holds no
+ * platform thread and a node can ingest thousands of streams at once. The assembler state shared
+ * by the streams is guarded by locks, not monitors, so a blocked stream does not pin its carrier.
+ *
+ * @author prakasid
+ *
+ */
+public class StreamIngestor implements Closeable {
+	private final static Logger logger = LogManager.getLogger();
+
+	private final TrackingFileAssembler assembler;
+	private final ExecutorService executor;
+
+	/**
+	 * @param assembler initialized assembler
+	 */
+	public StreamIngestor(TrackingFileAssembler assembler) {
+		this(assembler, VirtualThreads.newPerTaskExecutor("ingest"));
+	}
+
+	/**
+	 * @param assembler initialized assembler
+	 * @param executor runs every stream on its own thread, shut down on close
+	 */
+	public StreamIngestor(TrackingFileAssembler assembler, ExecutorService executor) {
+		this.assembler = assembler;
+		this.executor = executor;
+	}
+
+	/**
+	 * Consume the stream in the background, the stream is closed once consumed
+	 * @param input
+	 * @param startPos first byte of the chunk
+	 * @param endPos last byte of the chunk
+	 * @return number of bytes consumed
+	 */
+	public Future<Long> submit(final InputStream input, final long startPos, final long endPos) {
+		return executor.submit(new Callable<Long>() {
+			@Override
+			public Long call() throws IOException {
+				try {
+					return assembler.consume(input, startPos, endPos);
+				} finally {
+					input.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait for the submitted streams and stop the executor
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		executor.shutdown();
+		try {
+			while ( !executor.awaitTermination(1, TimeUnit.MINUTES) ) {
+				logger.debug("Waiting for streams to complete");
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for streams");
+		}
+	}
+}
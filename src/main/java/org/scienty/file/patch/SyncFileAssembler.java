@@ -5,15 +5,20 @@ package org.scienty.file.patch;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.Flushable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.scienty.buffer.ByteBufferFactory;
+import org.scienty.metrics.AssemblerMetrics;
 
 /**
  * Assemble list of chunks into a file
@@ -33,6 +38,10 @@ public class SyncFileAssembler implements Closeable, FileAssembler {
 	protected AssemblyLog assemblyLog = null;
 	private ReentrantLock rangeLock = null;
 	private Exception lastEx;
+	private boolean checksums = false;
+	private final AssemblerMetrics metrics = new AssemblerMetrics();
+	private Preallocation preallocation = Preallocation.NONE;
+	private TreeDigest digest = null;
 
 	public SyncFileAssembler(File file, AssemblyLog assemblyLog) throws IOException {
 		this.file = file;
@@ -46,10 +55,26 @@ public class SyncFileAssembler implements Closeable, FileAssembler {
 	public void init() throws IOException {
 		logger.debug("Initializing...");
 		fileChannel = FileChannel.open(this.file.toPath(), 
-				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
 
 		rangeLock = new ReentrantLock();
+		assemblyLog.setDataSync(new Flushable() {
+			@Override
+			public void flush() throws IOException {
+				force();
+			}
+		});
 		assemblyLog.init(false);
+		checksums = assemblyLog.hasChecksums();
+		preallocation.apply(fileChannel, assemblyLog.header().span().high + 1);
+	}
+
+	/**
+	 * Reserve the part file for the span of the log on init, must be set before init
+	 * @param preallocation
+	 */
+	public void setPreallocation(Preallocation preallocation) {
+		this.preallocation = (preallocation != null) ? preallocation : Preallocation.NONE;
 	}
 
 	/* (non-Javadoc)
@@ -62,25 +87,125 @@ public class SyncFileAssembler implements Closeable, FileAssembler {
 		return result;
 	}
 
+	/* (non-Javadoc)
+	 * @see org.scienty.file.patch.FileAssembler#setDigest(org.scienty.file.patch.TreeDigest)
+	 */
+	@Override
+	public void setDigest(TreeDigest digest) {
+		this.digest = digest;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.scienty.file.patch.FileAssembler#write(java.nio.ByteBuffer, long)
 	 */
 	@Override
-	public void write(ByteBuffer chunk, long offset) {
-		logger.trace("Writing chunk at " + offset);
+	public boolean write(ByteBuffer chunk, long offset) {
+		return write(chunk, offset, null);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.scienty.file.patch.FileAssembler#write(java.nio.ByteBuffer, long, org.scienty.buffer.ByteBufferFactory)
+	 */
+	@Override
+	public boolean write(ByteBuffer chunk, long offset, ByteBufferFactory releaseTo) {
+		writeChunk(chunk, offset, releaseTo);
+		return true;
+	}
+
+	/**
+	 * The write is complete when this method returns, the future is already completed
+	 */
+	@Override
+	public CompletableFuture<Range> writeAsync(ByteBuffer chunk, long offset, ByteBufferFactory releaseTo) {
+		CompletableFuture<Range> future = new CompletableFuture<Range>();
+		long high = offset + chunk.remaining() - 1;
+		Exception ex = writeChunk(chunk, offset, releaseTo);
+		if ( ex == null ) {
+			future.complete(new Range(offset, high));
+		} else {
+			future.completeExceptionally(ex);
+		}
+		return future;
+	}
+
+	/**
+	 * @return failure of the write, null on success
+	 */
+	private Exception writeChunk(ByteBuffer chunk, long offset, ByteBufferFactory releaseTo) {
+		logger.trace("Writing chunk at {}", offset);
 		inCount.incrementAndGet();
+		metrics.submitted();
+		long start = System.nanoTime();
 		try {
 			int size = chunk.remaining();
+			ByteBuffer view = (digest != null) ? chunk.duplicate() : null;
+			long checksum = checksums ? AssemblyLog.checksum(chunk) : AssemblyLog.NO_CHECKSUM;
 			int wrCount = 0;
 			while( wrCount < size) {
 				wrCount += fileChannel.write(chunk, offset+wrCount);
 			}
-			assemblyLog.append(offset, offset + size - 1);
+			long written = System.nanoTime();
+			metrics.written(size, written - start);
+			assemblyLog.append(offset, offset + size - 1, checksum);
+			metrics.logAppend(System.nanoTime() - written);
+			if ( view != null ) {
+				updateDigest(view, offset, offset + size - 1);
+			}
 			outCount.incrementAndGet();
 		} catch (Exception ex) {
 			lastEx = ex;
 			logger.error("Failed to write chunk at " + offset);
 			inCount.decrementAndGet();
+			metrics.failed();
+			return ex;
+		} finally {
+			metrics.retired();
+			if ( releaseTo != null ) releaseTo.release(chunk);
+		}
+		return null;
+	}
+
+	/**
+	 * Writes complete in the calling thread, nothing is left in flight
+	 */
+	@Override
+	public long inFlightBytes() {
+		return 0;
+	}
+
+	@Override
+	public int inFlightWrites() {
+		return 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.scienty.file.patch.FileAssembler#transferFrom(java.nio.channels.ReadableByteChannel, long, long, long)
+	 */
+	@Override
+	public long transferFrom(ReadableByteChannel src, long offset, long count, long granularity) throws IOException {
+		logger.trace("Transferring {} bytes at {}", count, offset);
+		inCount.incrementAndGet();
+		long start = System.nanoTime();
+		try {
+			long transferred = ChannelTransfer.transferFrom(fileChannel, src, offset, count, granularity, assemblyLog, digest);
+			metrics.written(transferred, System.nanoTime() - start);
+			outCount.incrementAndGet();
+			return transferred;
+		} catch (IOException ex) {
+			lastEx = ex;
+			logger.error("Failed to transfer at " + offset);
+			inCount.decrementAndGet();
+			metrics.failed();
+			throw ex;
+		}
+	}
+
+	private void updateDigest(ByteBuffer view, long low, long high) {
+		try {
+			digest.update(view, low, high);
+		} catch (IOException e) {
+			//leaves are computed again on digest
+			logger.warn("Failed to update digest for " + low + "-" + high, e);
 		}
 	}
 
@@ -90,7 +215,19 @@ public class SyncFileAssembler implements Closeable, FileAssembler {
 	@Override
 	public void flush() throws IOException, InterruptedException {
 		logger.debug("Flushing channel");
+		force();
+		assemblyLog.flush();
+	}
+
+	private void force() throws IOException {
+		long start = System.nanoTime();
 		fileChannel.force(false);
+		metrics.fsync(System.nanoTime() - start);
+	}
+
+	@Override
+	public AssemblerMetrics metrics() {
+		return metrics;
 	}
 
 	/* (non-Javadoc)
@@ -100,7 +237,14 @@ public class SyncFileAssembler implements Closeable, FileAssembler {
 	public void close() throws IOException {
 		if ( this.fileChannel != null ) {
 			logger.info("Closing channel ");
-			this.fileChannel.close();
+			//drain the pending log entries while the data channel is still open
+			try {
+				assemblyLog.flush();
+			} finally {
+				//a shared journal may sync the data of other transfers after this one is closed
+				assemblyLog.setDataSync(null);
+				this.fileChannel.close();
+			}
 		}
 	}
 }
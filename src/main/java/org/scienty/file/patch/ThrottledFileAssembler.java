@@ -0,0 +1,191 @@
+package org.scienty.file.patch;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scienty.buffer.ByteBufferFactory;
+import org.scienty.java.util.concurrent.TokenBucket;
+import org.scienty.metrics.AssemblerMetrics;
+
+/**
+ * Limit the bytes and the writes per second of any {@link FileAssembler}.
+ * Every write takes its bytes and one write from the buckets of this assembler and from the
+ * global buckets shared with other assemblers, then waits for the slowest of them. A throttled
+ * write is delayed, never refused. Rates are changed at runtime on the buckets, or by setting
+ * other buckets, a null bucket is no limit. The waits are recorded in the metrics of the assembler,
+ * next to its write latency.
+ *
+ * @author prakasid
+ *
+ */
+public class ThrottledFileAssembler implements FileAssembler {
+	private final FileAssembler assembler;
+	private volatile TokenBucket bytes;
+	private volatile TokenBucket writes;
+	private volatile TokenBucket globalBytes = null;
+	private volatile TokenBucket globalWrites = null;
+	private final AtomicLong throttledNanos = new AtomicLong();
+	private final AtomicLong throttledWrites = new AtomicLong();
+
+	/**
+	 * @param assembler
+	 * @param bytes bytes per second of this assembler, null for no limit
+	 * @param writes writes per second of this assembler, null for no limit
+	 */
+	public ThrottledFileAssembler(FileAssembler assembler, TokenBucket bytes, TokenBucket writes) {
+		this.assembler = assembler;
+		this.bytes = bytes;
+		this.writes = writes;
+	}
+
+	public void setBytes(TokenBucket bytes) {
+		this.bytes = bytes;
+	}
+
+	public void setWrites(TokenBucket writes) {
+		this.writes = writes;
+	}
+
+	/**
+	 * Budgets shared with other assemblers, on top of the budgets of this one
+	 * @param globalBytes null for no limit
+	 * @param globalWrites null for no limit
+	 */
+	public void setGlobal(TokenBucket globalBytes, TokenBucket globalWrites) {
+		this.globalBytes = globalBytes;
+		this.globalWrites = globalWrites;
+	}
+
+	/**
+	 * Wait until all the buckets allow the write
+	 * @param count bytes of the write
+	 * @throws InterruptedException
+	 */
+	private void throttle(long count) throws InterruptedException {
+		long wait = 0;
+		wait = Math.max(wait, reserve(bytes, count));
+		wait = Math.max(wait, reserve(globalBytes, count));
+		wait = Math.max(wait, reserve(writes, 1));
+		wait = Math.max(wait, reserve(globalWrites, 1));
+		if ( wait > 0 ) {
+			throttledNanos.addAndGet(wait);
+			throttledWrites.incrementAndGet();
+			assembler.metrics().throttled(wait);
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	private static long reserve(TokenBucket bucket, long count) {
+		return (bucket != null) ? bucket.reserve(count) : 0;
+	}
+
+	/**
+	 * Writes have no checked exception, an interrupted wait lets the write through and keeps the interrupt
+	 */
+	private void throttleWrite(long count) {
+		try {
+			throttle(count);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void init() throws IOException {
+		assembler.init();
+	}
+
+	@Override
+	public AssemblyResult result() throws IOException {
+		return assembler.result();
+	}
+
+	@Override
+	public boolean write(ByteBuffer chunk, long offset) {
+		throttleWrite(chunk.remaining());
+		return assembler.write(chunk, offset);
+	}
+
+	@Override
+	public boolean write(ByteBuffer chunk, long offset, ByteBufferFactory releaseTo) {
+		throttleWrite(chunk.remaining());
+		return assembler.write(chunk, offset, releaseTo);
+	}
+
+	@Override
+	public CompletableFuture<Range> writeAsync(ByteBuffer chunk, long offset, ByteBufferFactory releaseTo) {
+		throttleWrite(chunk.remaining());
+		return assembler.writeAsync(chunk, offset, releaseTo);
+	}
+
+	@Override
+	public long inFlightBytes() {
+		return assembler.inFlightBytes();
+	}
+
+	@Override
+	public int inFlightWrites() {
+		return assembler.inFlightWrites();
+	}
+
+	/**
+	 * Transfers are throttled every granularity bytes
+	 */
+	@Override
+	public long transferFrom(ReadableByteChannel src, long offset, long count, long granularity) throws IOException {
+		if ( granularity <= 0 ) throw new IllegalArgumentException("Invalid granularity " + granularity);
+		long transferred = 0;
+		while ( transferred < count ) {
+			long step = Math.min(granularity, count - transferred);
+			try {
+				throttle(step);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while throttled at " + (offset + transferred));
+			}
+			long done = assembler.transferFrom(src, offset + transferred, step, granularity);
+			transferred += done;
+			if ( done < step ) break;
+		}
+		return transferred;
+	}
+
+	@Override
+	public void setDigest(TreeDigest digest) {
+		assembler.setDigest(digest);
+	}
+
+	@Override
+	public AssemblerMetrics metrics() {
+		return assembler.metrics();
+	}
+
+	@Override
+	public void flush() throws IOException, InterruptedException {
+		assembler.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		assembler.close();
+	}
+
+	/**
+	 * @return total nanoseconds writes were delayed
+	 */
+	public long getThrottledNanos() {
+		return throttledNanos.get();
+	}
+
+	/**
+	 * @return number of writes that were delayed
+	 */
+	public long getThrottledWrites() {
+		return throttledWrites.get();
+	}
+}
@@ -5,16 +5,37 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Checksum;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.scienty.buffer.ByteBufferFactory;
+import org.scienty.java.util.concurrent.TokenBucket;
+import org.scienty.java.util.zip.CRC32C;
+import org.scienty.metrics.AssemblerMetrics;
 
 public class TrackingFileAssembler {
+	private final static Logger logger = LogManager.getLogger();
 	public final static String PART_EXT = ".part";
 	public final static String LOG_EXT = ".binlog";
+	public final static String DIGEST_EXT = ".bindigest";
 	public final static int BUFFER_SIZE = 1024*1024;
+	private final static int SCRATCH_SIZE = 64*1024;
 	
 	private FileAssembler assembler = null;
 	private File file = null;
@@ -24,6 +45,25 @@ public class TrackingFileAssembler {
 	private AssemblyLog assemblyLog;
 	private boolean autoCleanupOnCompletion = true;
 	private ByteBufferFactory buffFactory = null;
+	private CommitPolicy commitPolicy = null;
+	private LogBackend logBackend = null;
+	private SharedJournal journal = null;
+	private boolean checksums = false;
+	private String digestAlgorithm = null;
+	private int digestBlockSize = TreeDigest.DEFAULT_BLOCK_SIZE;
+	private byte[] expectedDigest = null;
+	private TreeDigest treeDigest = null;
+	private byte[] fileDigest = null;
+	private long transferGranularity = BUFFER_SIZE;
+	private InFlightLimit inFlightLimit = null;
+	private Preallocation preallocation = Preallocation.NONE;
+	private boolean directIO = false;
+	private ExecutorService ioExecutor = null;
+	private TokenBucket throttleBytes = null;
+	private TokenBucket throttleWrites = null;
+	private TokenBucket globalBytes = null;
+	private TokenBucket globalWrites = null;
+	private volatile ThrottledFileAssembler throttled = null;
 
 	public TrackingFileAssembler(File file, boolean async) {
 		this(file, null, async);
@@ -42,12 +82,14 @@ public class TrackingFileAssembler {
 			throw new IllegalStateException("This method should be called only once for the object");
 		}
 		
+		boolean tracked = (journal != null) ? journal.contains(file.getAbsolutePath()) : logFile.exists();
+		String tracker = (journal != null) ? journal.getFile().getPath() : logFile.getPath();
 		if ( file.exists() ) {
 			throw new IllegalStateException("File already exist" + file.getPath());
-		} else if (logFile.exists() == false && partFile.exists()) {
-			throw new IllegalStateException("Missing tracker file" + logFile.getPath());
-		} else if ( logFile.exists() && partFile.exists() == false) {
-			throw new IllegalStateException("Dangling tracker file" + logFile.getPath());
+		} else if (tracked == false && partFile.exists()) {
+			throw new IllegalStateException("Missing tracker file" + tracker);
+		} else if ( tracked && partFile.exists() == false) {
+			throw new IllegalStateException("Dangling tracker file" + tracker);
 		}  else {
 			File folder = file.getParentFile();
 			if ( folder.exists() && folder.isDirectory() == false) {
@@ -57,8 +99,12 @@ public class TrackingFileAssembler {
 			}
 		}
 		
-		if ( assemblyLog == null ) {
-			assemblyLog = new AssemblyLog(logFile);
+		if ( assemblyLog == null && journal != null ) {
+			assemblyLog = journal.log(file.getAbsolutePath());
+			assemblyLog.setChecksums(checksums);
+		} else if ( assemblyLog == null ) {
+			assemblyLog = new AssemblyLog(logFile, commitPolicy, logBackend);
+			assemblyLog.setChecksums(checksums);
 		} 
 
 		assemblyLog.initFile(0L, targetSize-1, tag);
@@ -69,52 +115,308 @@ public class TrackingFileAssembler {
 			throw new SignatureException ("Tag/Size missmatch");
 		}
 		
-		if ( asyncAssembly )
-			assembler = new AsyncFileAssembler(partFile, assemblyLog);
-		else
-			assembler = new SyncFileAssembler(partFile, assemblyLog);
+		if ( assemblyLog.hasChecksums() ) {
+			verifyChecksums();
+		}
+		
+		if ( directIO ) {
+			DirectFileAssembler direct = new DirectFileAssembler(partFile, assemblyLog);
+			direct.setPreallocation(preallocation);
+			assembler = direct;
+		} else if ( asyncAssembly ) {
+			AsyncFileAssembler async = new AsyncFileAssembler(partFile, assemblyLog, inFlightLimit, ioExecutor);
+			async.setPreallocation(preallocation);
+			assembler = async;
+		} else {
+			SyncFileAssembler sync = new SyncFileAssembler(partFile, assemblyLog);
+			sync.setPreallocation(preallocation);
+			assembler = sync;
+		}
+		//no limit until buckets are set
+		throttled = new ThrottledFileAssembler(assembler, throttleBytes, throttleWrites);
+		throttled.setGlobal(globalBytes, globalWrites);
+		assembler = throttled;
+		
+		if ( digestAlgorithm != null ) {
+			treeDigest = new TreeDigest(new File(toDigestFile(file.getPath())), digestAlgorithm, digestBlockSize);
+			treeDigest.open(partFile, targetSize, assemblyLog);
+			assembler.setDigest(treeDigest);
+		}
 		
 		assembler.init();
-		buffFactory = new ByteBufferFactory(BUFFER_SIZE);
+		if ( buffFactory == null ) {
+			buffFactory = new ByteBufferFactory(BUFFER_SIZE);
+		}
+	}
+	
+	/**
+	 * Use group commit for the assembly log, must be set before init
+	 * @param commitPolicy null to write every log entry directly
+	 */
+	public void setCommitPolicy(CommitPolicy commitPolicy) {
+		if ( assembler != null ) {
+			throw new IllegalStateException("Commit policy should be set before init");
+		}
+		this.commitPolicy = commitPolicy;
+	}
+	
+	/**
+	 * Storage of the assembly log, must be set before init
+	 * @param logBackend null for {@link FileLogBackend}, {@link MappedLogBackend} for memory mapped log
+	 */
+	public void setLogBackend(LogBackend logBackend) {
+		if ( assembler != null ) {
+			throw new IllegalStateException("Log backend should be set before init");
+		}
+		this.logBackend = logBackend;
+	}
+	
+	/**
+	 * Keep the assembly log in a journal shared with other transfers instead of its own log file,
+	 * must be set before init. The commit policy and the log backend of this assembler are not used,
+	 * the journal commits the entries of all its transfers together.
+	 * @param journal open journal, null for a log file per transfer
+	 */
+	public void setJournal(SharedJournal journal) {
+		if ( assembler != null ) {
+			throw new IllegalStateException("Journal should be set before init");
+		}
+		this.journal = journal;
+	}
+	
+	/**
+	 * Record the checksum of every chunk in the assembly log, must be set before init.
+	 * On resume the checksummed chunks are verified against the part file and the corrupt
+	 * ones are returned to the missing ranges. Applies to new files, a resumed file keeps the
+	 * format of its log.
+	 * @param checksums
+	 */
+	public void setChecksums(boolean checksums) {
+		if ( assembler != null ) {
+			throw new IllegalStateException("Checksums should be set before init");
+		}
+		this.checksums = checksums;
+	}
+	
+	/**
+	 * Compute the {@link TreeDigest} of the file while assembling, must be set before init
+	 * @param algorithm MessageDigest algorithm, null to disable
+	 * @param blockSize size of the digest blocks, the sender must use the same
+	 */
+	public void setDigest(String algorithm, int blockSize) {
+		if ( assembler != null ) {
+			throw new IllegalStateException("Digest should be set before init");
+		}
+		this.digestAlgorithm = algorithm;
+		this.digestBlockSize = blockSize;
+	}
+	
+	/**
+	 * The completed file is kept as part file if its digest does not match
+	 * @param expectedDigest null to skip the check
+	 */
+	public void setExpectedDigest(byte[] expectedDigest) {
+		this.expectedDigest = expectedDigest;
+	}
+	
+	/**
+	 * @return digest of the completed file, null if it is not complete or digest is disabled
+	 */
+	public byte[] getDigest() {
+		return fileDigest;
+	}
+	
+	/**
+	 * Reserve the part file for the target size on init, must be set before init
+	 * @param preallocation {@link Preallocation#SPARSE} to size the file, {@link Preallocation#ALLOCATE}
+	 * to allocate its blocks in long extents and keep the file unfragmented
+	 */
+	public void setPreallocation(Preallocation preallocation) {
+		if ( assembler != null ) {
+			throw new IllegalStateException("Preallocation should be set before init");
+		}
+		this.preallocation = preallocation;
+	}
+	
+	/**
+	 * Write the part file with direct I/O, bypassing the page cache, must be set before init.
+	 * Writes complete in the calling thread, the async mode does not apply. Falls back to the page
+	 * cache where direct I/O is not available, see {@link DirectIO}
+	 * @param directIO
+	 */
+	public void setDirectIO(boolean directIO) {
+		if ( assembler != null ) {
+			throw new IllegalStateException("Direct I/O should be set before init");
+		}
+		this.directIO = directIO;
+	}
+	
+	/**
+	 * Cap the chunks in flight of async assembly, must be set before init
+	 * @param inFlightLimit null for no cap
+	 */
+	public void setInFlightLimit(InFlightLimit inFlightLimit) {
+		if ( assembler != null ) {
+			throw new IllegalStateException("In flight limit should be set before init");
+		}
+		this.inFlightLimit = inFlightLimit;
+	}
+	
+	/**
+	 * Executor of the I/O completions of async assembly, must be set before init.
+	 * A separate executor per volume keeps a slow disk from holding the completions of the others.
+	 * @param ioExecutor null for the default JVM pool, it is not shut down by close
+	 */
+	public void setExecutor(ExecutorService ioExecutor) {
+		if ( assembler != null ) {
+			throw new IllegalStateException("Executor should be set before init");
+		}
+		this.ioExecutor = ioExecutor;
+	}
+	
+	/**
+	 * @return bytes of the chunks accepted and not yet written, readers may throttle on it
+	 */
+	public long getInFlightBytes() {
+		return (assembler != null) ? assembler.inFlightBytes() : 0;
+	}
+	
+	public int getInFlightWrites() {
+		return (assembler != null) ? assembler.inFlightWrites() : 0;
+	}
+	
+	/**
+	 * Limit the bytes and the writes per second of this file, can be changed at any time
+	 * @param bytes null for no limit
+	 * @param writes null for no limit
+	 */
+	public void setThrottle(TokenBucket bytes, TokenBucket writes) {
+		this.throttleBytes = bytes;
+		this.throttleWrites = writes;
+		ThrottledFileAssembler current = throttled;
+		if ( current != null ) {
+			current.setBytes(bytes);
+			current.setWrites(writes);
+		}
+	}
+	
+	/**
+	 * Budgets shared with other files, can be changed at any time
+	 * @param bytes null for no limit
+	 * @param writes null for no limit
+	 */
+	public void setGlobalThrottle(TokenBucket bytes, TokenBucket writes) {
+		this.globalBytes = bytes;
+		this.globalWrites = writes;
+		ThrottledFileAssembler current = throttled;
+		if ( current != null ) {
+			current.setGlobal(bytes, writes);
+		}
+	}
+	
+	/**
+	 * @return total nanoseconds writes were delayed by the throttle
+	 */
+	public long getThrottledNanos() {
+		ThrottledFileAssembler current = throttled;
+		return (current != null) ? current.getThrottledNanos() : 0;
+	}
+	
+	/**
+	 * Bytes transferred by {@link #consume(ReadableByteChannel, long, long)} between two log entries,
+	 * a partial transfer resumes from the last complete step
+	 * @param transferGranularity
+	 */
+	public void setTransferGranularity(long transferGranularity) {
+		if ( transferGranularity <= 0 ) throw new IllegalArgumentException("Invalid granularity " + transferGranularity);
+		this.transferGranularity = transferGranularity;
+	}
+	
+	/**
+	 * Pool of chunk buffers, must be set before init
+	 * @param buffFactory null for a heap pool of {@link #BUFFER_SIZE} buffers
+	 */
+	public void setBufferFactory(ByteBufferFactory buffFactory) {
+		if ( assembler != null ) {
+			throw new IllegalStateException("Buffer factory should be set before init");
+		}
+		this.buffFactory = buffFactory;
+	}
+	
+	public ByteBufferFactory bufferFactory() {
+		return buffFactory;
 	}
 	
 	public ChunkOutputStream getOutputStream(long startOffset, long endOffset) {
 		return new ChunkOutputStream(assembler, startOffset, endOffset, buffFactory);
 	}
 	
-	public void write(ByteBuffer buff, long startPos) {
-		assembler.write(buff, startPos);
+	/**
+	 * Channel that writes the buffers of the caller into the range without copying them
+	 * @param startOffset
+	 * @param endOffset inclusive
+	 * @return
+	 */
+	public ChunkChannel getChannel(long startOffset, long endOffset) {
+		if ( assembler == null ) throw new IllegalStateException("Not initialized");
+		return new ChunkChannel(assembler, startOffset, endOffset);
+	}
+	
+	public boolean write(ByteBuffer buff, long startPos) {
+		return assembler.write(buff, startPos);
+	}
+	
+	/**
+	 * Write the chunk and release it to the factory once written
+	 * @see FileAssembler#write(ByteBuffer, long, ByteBufferFactory)
+	 */
+	public boolean write(ByteBuffer buff, long startPos, ByteBufferFactory releaseTo) {
+		return assembler.write(buff, startPos, releaseTo);
 	}
 	
 	public long consume(InputStream input, long startPos, long endPos) throws IOException {
-		//TODO: optimize this using buffer pool
-		
 		long totalToread = endPos - startPos + 1;
 		long remToread = totalToread;
+		//direct buffers are filled through a small heap array
+		byte[] scratch = null;
 		
 		while ( true ) {
-			int toread = (remToread > BUFFER_SIZE) ? BUFFER_SIZE : (int)remToread; 
-			byte[] bytes = new byte[BUFFER_SIZE];
-			ByteBuffer buff = ByteBuffer.wrap(bytes);
+			ByteBuffer buff = buffFactory.acquire();
+			int toread = (remToread > buff.capacity()) ? buff.capacity() : (int)remToread; 
 			
 			int index =0;
 			int read = 0;
-			while (index<toread) {
-				read = input.read(bytes,index,toread-index);
-				if ( read == -1 ) {
-					break;
+			try {
+				while (index<toread) {
+					if ( buff.hasArray() ) {
+						read = input.read(buff.array(), buff.arrayOffset() + index, toread-index);
+					} else {
+						if ( scratch == null ) scratch = new byte[SCRATCH_SIZE];
+						read = input.read(scratch, 0, Math.min(scratch.length, toread-index));
+						if ( read > 0 ) buff.put(scratch, 0, read);
+					}
+					if ( read == -1 ) {
+						break;
+					}
+					index+=read;
 				}
-				index+=read;
+			} catch (IOException ex) {
+				buffFactory.release(buff);
+				throw ex;
 			}
 			
 			if (index > 0) {
-				//something is there in buffer
-				//System.out.println("w " + startPos + "-" + (startPos+index-1));
+				//something is there in buffer, it is released once written
 				buff.clear(); buff.limit(index);
-				assembler.write(buff, startPos);
+				if ( assembler.write(buff, startPos, buffFactory) == false ) {
+					buffFactory.release(buff);
+					throw new WriteException("Chunk at " + startPos + " not accepted, in flight limit reached or write failed");
+				}
 				
 				startPos +=index;
 				remToread -= index;
+			} else {
+				buffFactory.release(buff);
 			}
 			if ( remToread <= 0 || read == -1) break;
 		}
@@ -122,30 +424,150 @@ public class TrackingFileAssembler {
 		return totalToread - remToread;
 	}
 	
+	/**
+	 * Write the chunk, the future completes once the chunk is written and logged
+	 * @see FileAssembler#writeAsync(ByteBuffer, long, ByteBufferFactory)
+	 */
+	public CompletableFuture<Range> writeAsync(ByteBuffer buff, long startPos, ByteBufferFactory releaseTo) {
+		return assembler.writeAsync(buff, startPos, releaseTo);
+	}
+	
+	/**
+	 * Transfer the range from the channel straight into the part file, the kernel copies the
+	 * bytes where the source allows it
+	 * @param input blocking channel
+	 * @param startPos
+	 * @param endPos inclusive
+	 * @return number of bytes transferred, less than the range if the input ended
+	 * @throws IOException
+	 */
+	public long consume(ReadableByteChannel input, long startPos, long endPos) throws IOException {
+		return assembler.transferFrom(input, startPos, endPos - startPos + 1, transferGranularity);
+	}
+	
+	/**
+	 * Verify the checksummed chunks of the part file in parallel, the corrupt chunks are
+	 * returned to the missing ranges of the log
+	 * @return number of corrupt chunks
+	 * @throws IOException
+	 */
+	private int verifyChecksums() throws IOException {
+		final List<ChunkChecksum> entries = assemblyLog.replayedChecksums();
+		if ( entries.isEmpty() ) return 0;
+		
+		int threads = Math.min(entries.size(), Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final FileChannel channel = FileChannel.open(partFile.toPath(), StandardOpenOption.READ);
+		List<Range> corrupt = new ArrayList<Range>();
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(entries.size());
+			for (final ChunkChecksum entry : entries) {
+				results.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws IOException {
+						return verify(channel, entry);
+					}
+				}));
+			}
+			for (int i = 0; i < entries.size(); i++) {
+				if ( results.get(i).get() == false ) {
+					ChunkChecksum entry = entries.get(i);
+					corrupt.add(new Range(entry.low, entry.high));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while verifying " + partFile);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to verify " + partFile, e.getCause());
+		} finally {
+			executor.shutdownNow();
+			channel.close();
+		}
+		
+		if ( corrupt.isEmpty() == false ) {
+			logger.warn("Refetching " + corrupt.size() + " of " + entries.size() + " verified chunks of " + partFile + " " + corrupt);
+			assemblyLog.reopen(corrupt);
+		}
+		return corrupt.size();
+	}
+	
+	private static boolean verify(FileChannel channel, ChunkChecksum entry) throws IOException {
+		Checksum checksum = CRC32C.create();
+		ByteBuffer buff = ByteBuffer.allocate((int)Math.min(SCRATCH_SIZE, entry.high - entry.low + 1));
+		long position = entry.low;
+		while ( position <= entry.high ) {
+			buff.clear();
+			buff.limit((int)Math.min(buff.capacity(), entry.high - position + 1));
+			int read = channel.read(buff, position);
+			if ( read < 0 ) {
+				//part file is shorter than the log claims
+				return false;
+			}
+			buff.flip();
+			CRC32C.update(checksum, buff);
+			position += read;
+		}
+		return checksum.getValue() == entry.checksum;
+	}
+	
 	public void close() throws IOException {
 		if ( assembler != null ) {
 			assembler.close();
 		}
 		
 		if ( assemblyLog != null ) {
-			if ( autoCleanupOnCompletion ) {
-				boolean complete = false;
-				if ( assemblyLog.read().size() == 0 ) {
-					complete = true;
+			boolean complete = assemblyLog.isComplete();
+			boolean mismatch = false;
+			try {
+				if ( complete && treeDigest != null ) {
+					fileDigest = treeDigest.digest();
+					mismatch = expectedDigest != null && Arrays.equals(expectedDigest, fileDigest) == false;
 				}
-				assemblyLog.close();
-				
-				if (complete) {
-					assemblyLog.delete();
-					partFile.renameTo(file);
+				if ( mismatch ) {
+					reopenMismatch();
 				}
-			} else {
+			} finally {
+				if ( treeDigest != null ) treeDigest.close();
 				assemblyLog.close();
 			}
 			
+			if ( mismatch ) {
+				throw new WriteException("Digest mismatch, expected " + TreeDigest.toHex(expectedDigest) 
+						+ " found " + TreeDigest.toHex(fileDigest) + " for " + partFile);
+			}
+			
+			if ( autoCleanupOnCompletion && complete ) {
+				assemblyLog.delete();
+				if ( treeDigest != null ) treeDigest.delete();
+				partFile.renameTo(file);
+			}
+			
 		}
 	}
 	
+	/**
+	 * The log must not claim a file of the wrong digest complete. The blocks that changed on the disk
+	 * since they were digested are returned to the missing ranges, if none changed the wrong bytes
+	 * were received as they are and the whole file is fetched again on resume.
+	 */
+	private void reopenMismatch() throws IOException {
+		List<Range> corrupt = treeDigest.changedBlocks();
+		if ( corrupt.isEmpty() ) {
+			corrupt = Collections.singletonList(assemblyLog.header().span());
+		}
+		logger.warn("Digest mismatch, refetching " + corrupt + " of " + partFile);
+		assemblyLog.reopen(corrupt);
+	}
+	
+	/**
+	 * @return counters and latencies of the assembler, register with {@link org.scienty.metrics.Metrics} to expose them over JMX
+	 */
+	public AssemblerMetrics metrics() {
+		if ( assembler == null ) throw new IllegalStateException("Not initialized");
+		return assembler.metrics();
+	}
+	
 	public AssemblyLog assemblyLog() {
 		if ( assemblyLog == null ) throw new IllegalStateException("Not initialized");
 		return assemblyLog;
@@ -158,6 +580,10 @@ public class TrackingFileAssembler {
 	public static String toLogFile(String path) {
 		return path + LOG_EXT;
 	}
+	
+	public static String toDigestFile(String path) {
+		return path + DIGEST_EXT;
+	}
 
 	public static void main (String args[]) throws IOException, SignatureException {
 		File file = new File("C:/temp1/cubparts.jpg");
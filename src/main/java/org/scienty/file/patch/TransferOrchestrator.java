@@ -0,0 +1,273 @@
+package org.scienty.file.patch;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Complete a file by fetching its remaining ranges in parallel.
+ * A fixed number of workers take work units from the remaining ranges of the assembly log, open
+ * them on the {@link ChunkSource} and transfer them into the assembler. Units are cut when a worker
+ * takes them, of a fixed size or of the size of an {@link AdaptiveChunkSizer}. A unit that fails goes back to the end of the queue, a unit that ends early goes
+ * back with the part that is missing. The transfer fails once a unit runs out of attempts.
+ *
+ * @author prakasid
+ *
+ */
+public class TransferOrchestrator {
+	private final static Logger logger = LogManager.getLogger();
+	public final static long DEFAULT_UNIT_SIZE = 4*1024*1024;
+	public final static int DEFAULT_CONCURRENCY = 4;
+	public final static int DEFAULT_MAX_ATTEMPTS = 3;
+
+	private final TrackingFileAssembler assembler;
+	private final ChunkSource source;
+	private long unitSize = DEFAULT_UNIT_SIZE;
+	private int concurrency = DEFAULT_CONCURRENCY;
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private AdaptiveChunkSizer chunkSizer = null;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	//signalled when a unit is queued or a worker is done with its unit
+	private final Condition workCond = lock.newCondition();
+	private final ArrayDeque<Unit> queue = new ArrayDeque<Unit>();
+	private int active = 0;
+	private IOException failure = null;
+	private final AtomicLong transferred = new AtomicLong();
+	private final AtomicInteger retries = new AtomicInteger();
+
+	/**
+	 * Range to fetch, both ends inclusive
+	 */
+	private static class Unit {
+		final long low;
+		final long high;
+		final int attempts;
+
+		Unit(long low, long high, int attempts) {
+			this.low = low;
+			this.high = high;
+			this.attempts = attempts;
+		}
+
+		@Override
+		public String toString() {
+			return low + "-" + high;
+		}
+	}
+
+	/**
+	 * @param assembler initialized assembler of the file
+	 * @param source
+	 */
+	public TransferOrchestrator(TrackingFileAssembler assembler, ChunkSource source) {
+		this.assembler = assembler;
+		this.source = source;
+	}
+
+	public void setUnitSize(long unitSize) {
+		if ( unitSize <= 0 ) throw new IllegalArgumentException("Invalid unit size " + unitSize);
+		this.unitSize = unitSize;
+	}
+
+	/**
+	 * @param chunkSizer sizes the units by the observed throughput and failures, null for units of the fixed size
+	 */
+	public void setChunkSizer(AdaptiveChunkSizer chunkSizer) {
+		this.chunkSizer = chunkSizer;
+	}
+
+	public AdaptiveChunkSizer getChunkSizer() {
+		return chunkSizer;
+	}
+
+	private long unitSize() {
+		AdaptiveChunkSizer sizer = chunkSizer;
+		return (sizer != null) ? sizer.chunkSize() : unitSize;
+	}
+
+	/**
+	 * @param concurrency number of units fetched at the same time
+	 */
+	public void setConcurrency(int concurrency) {
+		if ( concurrency <= 0 ) throw new IllegalArgumentException("Invalid concurrency " + concurrency);
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * @param maxAttempts attempts of a unit that fails or ends without progress
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		if ( maxAttempts <= 0 ) throw new IllegalArgumentException("Invalid attempts " + maxAttempts);
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Fetch all the remaining ranges, returns when the file is complete or a unit ran out of attempts
+	 * @return bytes transferred
+	 * @throws IOException failure of the unit that ran out of attempts
+	 */
+	public long run() throws IOException {
+		long units;
+		lock.lock();
+		try {
+			queue.clear();
+			active = 0;
+			failure = null;
+			long size = unitSize();
+			units = 0;
+			for (Range range : assembler.assemblyLog().read().ranges()) {
+				queue.add(new Unit(range.low, range.high, 0));
+				units += (range.high - range.low) / size + 1;
+			}
+		} finally {
+			lock.unlock();
+		}
+		if ( units == 0 ) return 0;
+
+		long start = transferred.get();
+		Thread[] workers = new Thread[(int)Math.min(concurrency, units)];
+		logger.debug("Fetching about " + units + " units with " + workers.length + " workers");
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(new Worker(), "TransferOrchestrator-" + i);
+			workers[i].start();
+		}
+
+		try {
+			for (Thread worker : workers) {
+				worker.join();
+			}
+		} catch (InterruptedException e) {
+			for (Thread worker : workers) {
+				worker.interrupt();
+			}
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while transferring");
+		}
+
+		if ( failure != null ) throw failure;
+		return transferred.get() - start;
+	}
+
+	private class Worker implements Runnable {
+		@Override
+		public void run() {
+			while ( true ) {
+				Unit unit;
+				lock.lock();
+				try {
+					//units in progress may come back to the queue
+					while ( queue.isEmpty() && active > 0 && failure == null ) {
+						workCond.await();
+					}
+					if ( failure != null || queue.isEmpty() ) {
+						workCond.signalAll();
+						return;
+					}
+					unit = queue.poll();
+					long size = unitSize();
+					if ( unit.high - unit.low + 1 > size ) {
+						queue.addFirst(new Unit(unit.low + size, unit.high, unit.attempts));
+						unit = new Unit(unit.low, unit.low + size - 1, unit.attempts);
+					}
+					active++;
+				} catch (InterruptedException e) {
+					fail(new InterruptedIOException("Interrupted while transferring"));
+					return;
+				} finally {
+					lock.unlock();
+				}
+
+				Unit retry = null;
+				IOException ex = null;
+				boolean done = false;
+				RuntimeException unexpected = null;
+				AdaptiveChunkSizer sizer = chunkSizer;
+				long start = System.nanoTime();
+				try {
+					long count = transfer(unit);
+					transferred.addAndGet(count);
+					if ( sizer != null ) {
+						if ( unit.low + count <= unit.high ) {
+							sizer.failure();
+						} else {
+							sizer.success(count, System.nanoTime() - start);
+						}
+					}
+					if ( unit.low + count <= unit.high ) {
+						//source ended early, an attempt is spent only if nothing came
+						retry = new Unit(unit.low + count, unit.high, (count > 0) ? unit.attempts : unit.attempts + 1);
+					}
+					done = true;
+				} catch (IOException e) {
+					logger.warn("Failed to transfer " + unit + ", attempt " + (unit.attempts + 1), e);
+					ex = e;
+					if ( sizer != null ) sizer.failure();
+					retry = new Unit(unit.low, unit.high, unit.attempts + 1);
+				} catch (RuntimeException e) {
+					logger.error("Unexpected failure of " + unit, e);
+					unexpected = e;
+				} finally {
+					lock.lock();
+					try {
+						active--;
+						if ( retry != null ) {
+							if ( retry.attempts >= maxAttempts ) {
+								if ( failure == null ) {
+									failure = new WriteException("Failed to transfer " + retry + " after " + retry.attempts + " attempts", ex);
+								}
+							} else {
+								retries.incrementAndGet();
+								queue.add(retry);
+							}
+						} else if ( done == false && failure == null ) {
+							//a bug in the source or the assembler, not worth a retry, the other workers stop
+							failure = new WriteException("Failed to transfer " + unit, unexpected);
+						}
+						workCond.signalAll();
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+		}
+
+		private void fail(IOException ex) {
+			lock.lock();
+			try {
+				if ( failure == null ) failure = ex;
+				workCond.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private long transfer(Unit unit) throws IOException {
+		ReadableByteChannel channel = source.open(new Range(unit.low, unit.high));
+		try {
+			return assembler.consume(channel, unit.low, unit.high);
+		} finally {
+			channel.close();
+		}
+	}
+
+	public long getTransferredBytes() {
+		return transferred.get();
+	}
+
+	/**
+	 * @return number of units put back to the queue
+	 */
+	public int getRetries() {
+		return retries.get();
+	}
+}
@@ -0,0 +1,379 @@
+package org.scienty.file.patch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Whole file digest computed while the chunks arrive, in any order.
+ * The file is split in fixed size blocks, the digest of a block (leaf) is computed as soon as the
+ * assembly log has the whole block, from the chunk being written if it covers the block, otherwise
+ * by reading the block back from the part file. The file digest is the digest of all the leaves in order,
+ * so only the blocks missed while assembling are read at the end.
+ * Leaves are kept in a leaf file next to the assembly log, a resumed transfer loads the leaves of
+ * the blocks that are still complete in the log.
+ *
+ * Leaf file: magic, block size (int), file size (long), algorithm slot (int size + 16 bytes), leaves
+ *
+ * @author prakasid
+ *
+ */
+public class TreeDigest implements Closeable {
+	private final static Logger logger = LogManager.getLogger();
+	private final static Charset charset = Charset.forName("US-ASCII");
+	public final static String DEFAULT_ALGORITHM = "SHA-256";
+	public final static int DEFAULT_BLOCK_SIZE = 4*1024*1024;
+	private final static int READ_BUFFER_SIZE = 64*1024;
+	private final static int ALGORITHM_MAX_BYTES = 16;
+	private static byte[] magic = "CFD".getBytes(charset);
+	private final static int HEADER_SIZE = magic.length + Integer.BYTES + Long.BYTES + Integer.BYTES + ALGORITHM_MAX_BYTES;
+
+	private final static int LEAF_MISSING = 0;
+	private final static int LEAF_COMPUTING = 1;
+	private final static int LEAF_DONE = 2;
+
+	private final File leafFile;
+	private final String algorithm;
+	private final int blockSize;
+	private final int digestLength;
+	private long fileSize;
+	private int leafCount;
+	private byte[] leaves;
+	private AtomicIntegerArray leafState;
+	private FileChannel leafChannel;
+	private FileChannel dataChannel;
+	private AssemblyLog assemblyLog;
+
+	/**
+	 * @param leafFile
+	 * @param algorithm MessageDigest algorithm of the leaves and the file digest
+	 * @param blockSize
+	 */
+	public TreeDigest(File leafFile, String algorithm, int blockSize) {
+		if ( blockSize <= 0 ) throw new IllegalArgumentException("Invalid block size " + blockSize);
+		if ( algorithm.getBytes(charset).length > ALGORITHM_MAX_BYTES ) throw new IllegalArgumentException("Algorithm name limit exceeded");
+		this.leafFile = leafFile;
+		this.algorithm = algorithm;
+		this.blockSize = blockSize;
+		this.digestLength = newDigest(algorithm).getDigestLength();
+	}
+
+	/**
+	 * Open the leaf file, create it if it does not exist or does not match the parameters
+	 * @param dataFile file being assembled
+	 * @param fileSize
+	 * @param assemblyLog initialized log of the data file
+	 * @throws IOException
+	 */
+	public void open(File dataFile, long fileSize, AssemblyLog assemblyLog) throws IOException {
+		if ( leafChannel != null ) throw new IllegalStateException("Already open");
+		this.fileSize = fileSize;
+		this.assemblyLog = assemblyLog;
+		long count = (fileSize + blockSize - 1) / blockSize;
+		if ( count * digestLength > Integer.MAX_VALUE ) throw new IllegalArgumentException("Too many blocks " + count);
+		leafCount = (int)count;
+		leaves = new byte[leafCount * digestLength];
+		leafState = new AtomicIntegerArray(leafCount);
+
+		leafChannel = FileChannel.open(leafFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		dataChannel = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if ( readHeader() ) {
+			loadLeaves();
+		} else {
+			leafChannel.truncate(0);
+			writeHeader();
+		}
+	}
+
+	private boolean readHeader() throws IOException {
+		if ( leafChannel.size() < HEADER_SIZE ) return false;
+		ByteBuffer buff = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(leafChannel, buff, 0);
+		buff.flip();
+		for (int i=0; i < magic.length; i++) {
+			if ( magic[i] != buff.get() ) return false;
+		}
+		int storedBlockSize = buff.getInt();
+		long storedFileSize = buff.getLong();
+		int nameSize = buff.getInt();
+		if ( nameSize > ALGORITHM_MAX_BYTES ) return false;
+		byte[] name = new byte[nameSize];
+		buff.get(name);
+		if ( storedBlockSize != blockSize || storedFileSize != fileSize || algorithm.equals(new String(name, charset)) == false ) {
+			logger.warn("Discarding leaf file " + leafFile + " of other parameters");
+			return false;
+		}
+		return true;
+	}
+
+	private void writeHeader() throws IOException {
+		ByteBuffer buff = ByteBuffer.allocate(HEADER_SIZE);
+		buff.put(magic);
+		buff.putInt(blockSize);
+		buff.putLong(fileSize);
+		byte[] name = algorithm.getBytes(charset);
+		buff.putInt(name.length);
+		buff.put(name);
+		buff.clear();
+		while ( buff.hasRemaining() ) {
+			leafChannel.write(buff, buff.position());
+		}
+	}
+
+	/**
+	 * Load the stored leaves of the blocks that are complete in the log, a block reopened
+	 * after the leaf was stored is computed again
+	 */
+	private void loadLeaves() throws IOException {
+		ByteBuffer buff = ByteBuffer.wrap(leaves);
+		buff.limit((int)Math.min(leaves.length, Math.max(0, leafChannel.size() - HEADER_SIZE)));
+		readFully(leafChannel, buff, HEADER_SIZE);
+		int loaded = 0;
+		for (int i = 0; i < leafCount; i++) {
+			if ( isStored(i) && assemblyLog.isComplete(blockLow(i), blockHigh(i)) ) {
+				leafState.set(i, LEAF_DONE);
+				loaded++;
+			} else {
+				//leaf of a partial block is not valid
+				for (int k = i * digestLength; k < (i + 1) * digestLength; k++) leaves[k] = 0;
+			}
+		}
+		logger.debug("Loaded " + loaded + " of " + leafCount + " leaves from " + leafFile);
+	}
+
+	private boolean isStored(int leaf) {
+		for (int k = leaf * digestLength; k < (leaf + 1) * digestLength; k++) {
+			if ( leaves[k] != 0 ) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Compute the leaves of the blocks completed by the chunk, must be called after the chunk
+	 * is written and appended to the log
+	 * @param chunk bytes from low to high, null to read the blocks from the part file
+	 * @param low
+	 * @param high inclusive
+	 * @throws IOException
+	 */
+	public void update(ByteBuffer chunk, long low, long high) throws IOException {
+		int first = (int)(low / blockSize);
+		int last = (int)Math.min(high / blockSize, leafCount - 1);
+		for (int i = first; i <= last; i++) {
+			if ( leafState.get(i) != LEAF_MISSING ) continue;
+			long blockLow = blockLow(i);
+			long blockHigh = blockHigh(i);
+			if ( assemblyLog.isComplete(blockLow, blockHigh) == false ) continue;
+			//the last chunk of the block computes it
+			if ( leafState.compareAndSet(i, LEAF_MISSING, LEAF_COMPUTING) == false ) continue;
+
+			try {
+				if ( chunk != null && low <= blockLow && high >= blockHigh ) {
+					ByteBuffer block = chunk.duplicate();
+					block.position(chunk.position() + (int)(blockLow - low));
+					block.limit(block.position() + (int)(blockHigh - blockLow + 1));
+					storeLeaf(i, hash(block));
+				} else {
+					storeLeaf(i, readBlock(i));
+				}
+				leafState.set(i, LEAF_DONE);
+			} catch (IOException e) {
+				leafState.set(i, LEAF_MISSING);
+				throw e;
+			} catch (RuntimeException e) {
+				leafState.set(i, LEAF_MISSING);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Return the digest of the complete file, computing the leaves missed while assembling
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] digest() throws IOException {
+		if ( leafChannel == null ) throw new IllegalStateException("Not open");
+		int missed = 0;
+		for (int i = 0; i < leafCount; i++) {
+			if ( leafState.get(i) != LEAF_DONE ) {
+				storeLeaf(i, readBlock(i));
+				leafState.set(i, LEAF_DONE);
+				missed++;
+			}
+		}
+		if ( missed > 0 ) {
+			logger.debug("Read " + missed + " of " + leafCount + " blocks to complete the digest");
+		}
+		MessageDigest root = newDigest(algorithm);
+		root.update(leaves);
+		return root.digest();
+	}
+
+	/**
+	 * Read the digested blocks back from the part file and compare them with their leaves, finds
+	 * the blocks that changed on the disk after they were digested
+	 * @return inclusive ranges of the blocks that do not match their leaf
+	 * @throws IOException
+	 */
+	public List<Range> changedBlocks() throws IOException {
+		if ( leafChannel == null ) throw new IllegalStateException("Not open");
+		List<Range> changed = new ArrayList<Range>();
+		for (int i = 0; i < leafCount; i++) {
+			if ( leafState.get(i) != LEAF_DONE ) continue;
+			byte[] digest = readBlock(i);
+			for (int k = 0; k < digestLength; k++) {
+				if ( digest[k] != leaves[i * digestLength + k] ) {
+					changed.add(new Range(blockLow(i), blockHigh(i)));
+					break;
+				}
+			}
+		}
+		return changed;
+	}
+
+	private byte[] readBlock(int leaf) throws IOException {
+		MessageDigest md = newDigest(algorithm);
+		ByteBuffer buff = ByteBuffer.allocate((int)Math.min(READ_BUFFER_SIZE, blockHigh(leaf) - blockLow(leaf) + 1));
+		long position = blockLow(leaf);
+		long high = blockHigh(leaf);
+		while ( position <= high ) {
+			buff.clear();
+			buff.limit((int)Math.min(buff.capacity(), high - position + 1));
+			int read = dataChannel.read(buff, position);
+			if ( read < 0 ) throw new IOException("Unexpected end of file at " + position);
+			buff.flip();
+			md.update(buff);
+			position += read;
+		}
+		return md.digest();
+	}
+
+	private byte[] hash(ByteBuffer block) {
+		MessageDigest md = newDigest(algorithm);
+		md.update(block);
+		return md.digest();
+	}
+
+	private void storeLeaf(int leaf, byte[] digest) throws IOException {
+		System.arraycopy(digest, 0, leaves, leaf * digestLength, digestLength);
+		ByteBuffer buff = ByteBuffer.wrap(digest);
+		long position = HEADER_SIZE + (long)leaf * digestLength;
+		while ( buff.hasRemaining() ) {
+			leafChannel.write(buff, position + buff.position());
+		}
+	}
+
+	private long blockLow(int leaf) {
+		return (long)leaf * blockSize;
+	}
+
+	private long blockHigh(int leaf) {
+		return Math.min(blockLow(leaf) + blockSize, fileSize) - 1;
+	}
+
+	public void flush() throws IOException {
+		if ( leafChannel != null ) leafChannel.force(false);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if ( leafChannel != null ) {
+				leafChannel.force(false);
+				leafChannel.close();
+			}
+		} finally {
+			leafChannel = null;
+			if ( dataChannel != null ) {
+				dataChannel.close();
+				dataChannel = null;
+			}
+		}
+	}
+
+	public boolean delete() {
+		if ( leafFile.exists() && leafFile.isFile() ) return leafFile.delete();
+		return false;
+	}
+
+	public String algorithm() {
+		return algorithm;
+	}
+
+	public int blockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Compute the digest of a complete file, as the sender does
+	 * @param file
+	 * @param algorithm
+	 * @param blockSize
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] compute(File file, String algorithm, int blockSize) throws IOException {
+		MessageDigest root = newDigest(algorithm);
+		MessageDigest md = newDigest(algorithm);
+		ByteBuffer buff = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			for (long blockLow = 0; blockLow < size; blockLow += blockSize) {
+				long blockEnd = Math.min(blockLow + blockSize, size);
+				long position = blockLow;
+				while ( position < blockEnd ) {
+					buff.clear();
+					buff.limit((int)Math.min(buff.capacity(), blockEnd - position));
+					int read = channel.read(buff, position);
+					if ( read < 0 ) throw new IOException("Unexpected end of file at " + position);
+					buff.flip();
+					md.update(buff);
+					position += read;
+				}
+				root.update(md.digest());
+			}
+		} finally {
+			channel.close();
+		}
+		return root.digest();
+	}
+
+	public static String toHex(byte[] digest) {
+		StringBuilder buff = new StringBuilder();
+		for (byte b : digest) {
+			buff.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return buff.toString();
+	}
+
+	private static MessageDigest newDigest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException("Unknown digest algorithm " + algorithm, e);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buff, long position) throws IOException {
+		long start = position - buff.position();
+		while ( buff.hasRemaining() ) {
+			if ( channel.read(buff, start + buff.position()) < 0 ) break;
+		}
+	}
+}
@@ -0,0 +1,347 @@
+package org.scienty.java.util.concurrent;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Unbounded blocking queue of tasks ordered by priority, lower priority values are taken first and
+ * equal priorities are taken in insertion order. The heap is indexed, every queued task knows its
+ * position so removing a task or changing its priority costs O(log n) instead of a scan of the queue.
+ * A task offered to the queue takes its priority from {@link Prioritized}, other tasks get
+ * {@link #DEFAULT_PRIORITY}. The same task instance can be queued only once at a time.
+ *
+ * @author prakasid
+ *
+ */
+public class IndexedPriorityBlockingQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+	public final static long DEFAULT_PRIORITY = 0;
+
+	/**
+	 * Task that carries its initial priority
+	 */
+	public interface Prioritized {
+		public long getPriority();
+	}
+
+	private final static class Node {
+		final Runnable task;
+		long priority;
+		long seq;
+		int index;
+
+		Node(Runnable task, long priority, long seq) {
+			this.task = task;
+			this.priority = priority;
+			this.seq = seq;
+		}
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final IdentityHashMap<Runnable, Node> nodes = new IdentityHashMap<Runnable, Node>();
+	private Node[] heap = new Node[16];
+	private int size = 0;
+	//insertion order of equal priorities
+	private long nextSeq = 0;
+	//moved to front tasks go before each other, the last moved first
+	private long frontSeq = 0;
+
+	@Override
+	public boolean offer(Runnable task) {
+		if ( task == null ) throw new NullPointerException();
+		long priority = (task instanceof Prioritized) ? ((Prioritized)task).getPriority() : DEFAULT_PRIORITY;
+		lock.lock();
+		try {
+			if ( nodes.containsKey(task) ) return false;
+			if ( size == heap.length ) {
+				Node[] grown = new Node[heap.length << 1];
+				System.arraycopy(heap, 0, grown, 0, size);
+				heap = grown;
+			}
+			Node node = new Node(task, priority, nextSeq++);
+			nodes.put(task, node);
+			node.index = size++;
+			heap[node.index] = node;
+			siftUp(node);
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(Runnable task) {
+		offer(task);
+	}
+
+	@Override
+	public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+		return offer(task);
+	}
+
+	@Override
+	public Runnable poll() {
+		lock.lock();
+		try {
+			return (size == 0) ? null : removeAt(0);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while ( size == 0 ) {
+				notEmpty.await();
+			}
+			return removeAt(0);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while ( size == 0 ) {
+				if ( nanos <= 0 ) return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return removeAt(0);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable peek() {
+		lock.lock();
+		try {
+			return (size == 0) ? null : heap[0].task;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Change the priority of a queued task
+	 * @param task
+	 * @param priority
+	 * @return false if the task is not queued
+	 */
+	public boolean reprioritize(Runnable task, long priority) {
+		lock.lock();
+		try {
+			Node node = nodes.get(task);
+			if ( node == null ) return false;
+			long old = node.priority;
+			node.priority = priority;
+			if ( priority < old ) {
+				siftUp(node);
+			} else if ( priority > old ) {
+				siftDown(node);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Make a queued task the next one taken
+	 * @param task
+	 * @return false if the task is not queued
+	 */
+	public boolean moveToFront(Runnable task) {
+		lock.lock();
+		try {
+			Node node = nodes.get(task);
+			if ( node == null ) return false;
+			node.priority = Long.MIN_VALUE;
+			node.seq = --frontSeq;
+			siftUp(node);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		lock.lock();
+		try {
+			Node node = nodes.get(o);
+			if ( node == null ) return false;
+			removeAt(node.index);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		lock.lock();
+		try {
+			return nodes.containsKey(o);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> c, int maxElements) {
+		if ( c == this ) throw new IllegalArgumentException();
+		lock.lock();
+		try {
+			int count = 0;
+			while ( size > 0 && count < maxElements ) {
+				c.add(removeAt(0));
+				count++;
+			}
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void clear() {
+		lock.lock();
+		try {
+			for (int i = 0; i < size; i++) {
+				heap[i] = null;
+			}
+			size = 0;
+			nodes.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Iterate over a snapshot of the queued tasks, not in priority order
+	 */
+	@Override
+	public Iterator<Runnable> iterator() {
+		final Runnable[] snapshot;
+		lock.lock();
+		try {
+			snapshot = new Runnable[size];
+			for (int i = 0; i < size; i++) {
+				snapshot[i] = heap[i].task;
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		return new Iterator<Runnable>() {
+			private int cursor = 0;
+			private Runnable last = null;
+
+			@Override
+			public boolean hasNext() {
+				return cursor < snapshot.length;
+			}
+
+			@Override
+			public Runnable next() {
+				if ( cursor >= snapshot.length ) throw new NoSuchElementException();
+				last = snapshot[cursor++];
+				return last;
+			}
+
+			@Override
+			public void remove() {
+				if ( last == null ) throw new IllegalStateException();
+				IndexedPriorityBlockingQueue.this.remove(last);
+				last = null;
+			}
+		};
+	}
+
+	private Runnable removeAt(int index) {
+		Node node = heap[index];
+		nodes.remove(node.task);
+		Node tail = heap[--size];
+		heap[size] = null;
+		if ( tail != node ) {
+			tail.index = index;
+			heap[index] = tail;
+			siftDown(tail);
+			if ( heap[index] == tail ) siftUp(tail);
+		}
+		node.index = -1;
+		return node.task;
+	}
+
+	private static boolean before(Node a, Node b) {
+		return a.priority < b.priority || (a.priority == b.priority && a.seq < b.seq);
+	}
+
+	private void siftUp(Node node) {
+		int index = node.index;
+		while ( index > 0 ) {
+			int parentIdx = (index - 1) >>> 1;
+			Node parent = heap[parentIdx];
+			if ( !before(node, parent) ) break;
+			parent.index = index;
+			heap[index] = parent;
+			index = parentIdx;
+		}
+		node.index = index;
+		heap[index] = node;
+	}
+
+	private void siftDown(Node node) {
+		int index = node.index;
+		int half = size >>> 1;
+		while ( index < half ) {
+			int childIdx = (index << 1) + 1;
+			Node child = heap[childIdx];
+			int rightIdx = childIdx + 1;
+			if ( rightIdx < size && before(heap[rightIdx], child) ) {
+				childIdx = rightIdx;
+				child = heap[childIdx];
+			}
+			if ( !before(child, node) ) break;
+			child.index = index;
+			heap[index] = child;
+			index = childIdx;
+		}
+		node.index = index;
+		heap[index] = node;
+	}
+}
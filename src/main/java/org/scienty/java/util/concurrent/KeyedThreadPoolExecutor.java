@@ -0,0 +1,161 @@
+package org.scienty.java.util.concurrent;
+
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Executor whose queued tasks are found by key, the layer shared by {@link ReorderingThreadPoolExecutor}
+ * and {@link PriorityThreadPoolExecutor}. Tasks submitted with a key are kept in a map till they run,
+ * the subclass moves a queued task to the front of its queue.
+ *
+ * @author prakasid
+ *
+ * @param <K> key of the tasks
+ * @param <Q> work queue
+ */
+public abstract class KeyedThreadPoolExecutor<K, Q extends BlockingQueue<Runnable>> extends ThreadPoolExecutor {
+	protected final Logger logger = LogManager.getLogger();
+
+	protected final Q mQueueRef;
+	private final ConcurrentHashMap<K, KeyHoldingFutureTask<K, ?>> mRunnablesMap;
+	private final ReentrantReadWriteLock mMapLock;
+
+	/**
+	 * @see {@link ThreadPoolExecutor#ThreadPoolExecutor(int, int, long, TimeUnit, BlockingQueue, ThreadFactory)}
+	 */
+	protected KeyedThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime,
+			TimeUnit unit, Q workQueue, ThreadFactory threadFactory) {
+		super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory);
+		mQueueRef = workQueue;
+		mRunnablesMap = new ConcurrentHashMap<K, KeyHoldingFutureTask<K, ?>>(maximumPoolSize,
+				0.75f, corePoolSize);
+		mMapLock = new ReentrantReadWriteLock();
+	}
+
+	/**
+	 * Register the task by its key and execute it
+	 */
+	protected <T> Future<T> submitTask(KeyHoldingFutureTask<K, T> runnable) {
+		mMapLock.readLock().lock(); // read lock
+		try {
+			mRunnablesMap.put(runnable.key, runnable); // O(1)
+		} finally {
+			mMapLock.readLock().unlock();
+		}
+		execute(runnable);
+		return runnable;
+	}
+
+	/**
+	 * @return the task submitted with the key, null if it ran or was never submitted
+	 */
+	protected Runnable task(K key) {
+		mMapLock.readLock().lock(); // read lock
+		try {
+			return mRunnablesMap.get(key); // O(1)
+		} finally {
+			mMapLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Move the task to the front of the queue
+	 * @return false if the task is not queued anymore
+	 */
+	protected abstract boolean promote(Runnable runnable);
+
+	public void moveToFront(K key) {
+		final Runnable runnable = task(key);
+		if ( runnable != null && promote(runnable) ) {
+			logger.debug("Set task highest priority: " + key);
+		}
+	}
+
+	/**
+	 * @return tasks waiting in the queue
+	 */
+	public int getQueueDepth() {
+		return mQueueRef.size();
+	}
+
+	public void clearKeysMap() {
+		logger.debug("Clearing runnables key map, contains " + mRunnablesMap.size() + " keys");
+
+		mMapLock.writeLock().lock();
+		try {
+			// we add a write lock here as we don't want other threads to add
+			// tasks here while the map is cleared
+			mRunnablesMap.clear();
+		} finally {
+			mMapLock.writeLock().unlock();
+		}
+	}
+
+	public void cancelAll(boolean tryToForce) {
+		for ( KeyHoldingFutureTask<K, ?> future : mRunnablesMap.values() ) {
+			future.cancel(tryToForce);
+		}
+	}
+
+	@Override
+	protected void afterExecute(Runnable r, Throwable t) {
+		super.afterExecute(r, t);
+		if (r instanceof KeyHoldingFutureTask) {
+			mMapLock.readLock().lock(); // read lock
+			try {
+				mRunnablesMap.remove(((KeyHoldingFutureTask<?, ?>) r).key, r);
+			} finally {
+				mMapLock.readLock().unlock();
+			}
+		}
+	}
+
+	@Override
+	public void purge() {
+		mMapLock.writeLock().lock(); // write lock
+		try {
+			// remove cancelled runnables from the keys map
+			final Collection<KeyHoldingFutureTask<K, ?>> runnables = mRunnablesMap.values();
+			for (KeyHoldingFutureTask<K, ?> r : runnables) {
+				if (r.isCancelled()) {
+					runnables.remove(r); // supposedly O(1)
+				}
+			}
+		} finally {
+			mMapLock.writeLock().unlock();
+		}
+		super.purge();
+	}
+
+	@Override
+	protected void terminated() {
+		clearKeysMap(); // clear keys map when terminated
+		super.terminated();
+	}
+
+	public boolean containsKey(K key) {
+		return mRunnablesMap.containsKey(key);
+	}
+
+	/**
+	 * Extension of {@link FutureTask} which just allows setting a key
+	 */
+	protected static class KeyHoldingFutureTask<K, V> extends FutureTask<V> {
+		public final K key;
+		public KeyHoldingFutureTask(K key, Callable<V> callable) {
+			super(callable);
+			this.key = key;
+		}
+	}
+}
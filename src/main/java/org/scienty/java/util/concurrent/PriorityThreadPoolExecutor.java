@@ -0,0 +1,85 @@
+package org.scienty.java.util.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Variant of {@link ReorderingThreadPoolExecutor} backed by an {@link IndexedPriorityBlockingQueue}.
+ * Tasks are taken by priority, lower values first, and a queued task is moved to the front or
+ * given a new priority in O(log n) by its key. Using deadlines as priorities gives earliest
+ * deadline first dispatch. Tasks submitted without a key run at {@link IndexedPriorityBlockingQueue#DEFAULT_PRIORITY}.
+ *
+ * @author prakasid
+ *
+ */
+public class PriorityThreadPoolExecutor<K> extends KeyedThreadPoolExecutor<K, IndexedPriorityBlockingQueue> {
+
+	/**
+	 * @see {@link ThreadPoolExecutor#ThreadPoolExecutor(int, int, long, TimeUnit, BlockingQueue, ThreadFactory)}
+	 */
+	public PriorityThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime,
+			TimeUnit unit, ThreadFactory threadFactory) {
+		super(corePoolSize, maximumPoolSize, keepAliveTime, unit, new IndexedPriorityBlockingQueue(), threadFactory);
+	}
+
+	public <T> Future<T> submitWithKey(K key, Callable<T> callable) {
+		return submitWithKey(key, IndexedPriorityBlockingQueue.DEFAULT_PRIORITY, callable);
+	}
+
+	/**
+	 * @param key
+	 * @param priority lower values run first
+	 * @param callable
+	 * @return
+	 */
+	public <T> Future<T> submitWithKey(K key, long priority, Callable<T> callable) {
+		return submitTask(new PrioritizedFutureTask<K, T>(key, priority, callable));
+	}
+
+	/**
+	 * Earliest deadline first, the deadlines of all tasks must use the same clock
+	 * @param key
+	 * @param deadline for example System.currentTimeMillis() based
+	 * @param callable
+	 * @return
+	 */
+	public <T> Future<T> submitWithDeadline(K key, long deadline, Callable<T> callable) {
+		return submitWithKey(key, deadline, callable);
+	}
+
+	@Override
+	protected boolean promote(Runnable runnable) {
+		return mQueueRef.moveToFront(runnable); // O(log n)
+	}
+
+	/**
+	 * Change priority, or deadline, of a queued task
+	 * @param key
+	 * @param priority
+	 * @return false if the task is not queued anymore
+	 */
+	public boolean reprioritize(K key, long priority) {
+		final Runnable runnable = task(key);
+		return runnable != null && mQueueRef.reprioritize(runnable, priority); // O(log n)
+	}
+
+	/**
+	 * Extension of {@link FutureTask} which holds a key and the initial priority
+	 */
+	private static class PrioritizedFutureTask<K, V> extends KeyHoldingFutureTask<K, V> implements IndexedPriorityBlockingQueue.Prioritized {
+		private final long priority;
+		public PrioritizedFutureTask(K key, long priority, Callable<V> callable) {
+			super(key, callable);
+			this.priority = priority;
+		}
+
+		@Override
+		public long getPriority() {
+			return priority;
+		}
+	}
+}
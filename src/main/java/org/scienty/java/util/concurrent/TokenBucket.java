@@ -0,0 +1,120 @@
+package org.scienty.java.util.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Rate limiter that refills tokens at a fixed rate up to a burst.
+ * A caller takes its tokens and then sleeps until the bucket would have held them, so a request
+ * larger than the burst is delayed but never fails. One bucket can be shared by many users as a
+ * global budget. The rate can be changed at any time, a rate of 0 or less removes the limit.
+ *
+ * @author prakasid
+ *
+ */
+public class TokenBucket {
+	private final ReentrantLock lock = new ReentrantLock();
+	private long rate;
+	private long burst;
+	//negative when callers are sleeping for tokens taken ahead
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+	private final AtomicLong waitedNanos = new AtomicLong();
+
+	/**
+	 * @param rate tokens per second, 0 for no limit
+	 * @param burst tokens that accumulate while idle
+	 */
+	public TokenBucket(long rate, long burst) {
+		setRate(rate, burst);
+		this.tokens = this.burst;
+	}
+
+	/**
+	 * Bucket with a burst of one second of tokens
+	 * @param rate tokens per second, 0 for no limit
+	 */
+	public TokenBucket(long rate) {
+		this(rate, rate);
+	}
+
+	/**
+	 * Change the rate, applies to the tokens taken from now on
+	 * @param rate tokens per second, 0 for no limit
+	 * @param burst
+	 */
+	public void setRate(long rate, long burst) {
+		lock.lock();
+		try {
+			refill(System.nanoTime());
+			this.rate = rate;
+			this.burst = Math.max(1, burst);
+			if ( tokens > this.burst ) tokens = this.burst;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getRate() {
+		lock.lock();
+		try {
+			return rate;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take the tokens, sleeping as long as the rate requires
+	 * @param count
+	 * @return nanoseconds slept
+	 * @throws InterruptedException
+	 */
+	public long acquire(long count) throws InterruptedException {
+		long wait = reserve(count);
+		if ( wait > 0 ) {
+			waitedNanos.addAndGet(wait);
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+		return wait;
+	}
+
+	/**
+	 * Take the tokens without sleeping
+	 * @param count
+	 * @return nanoseconds the caller must wait before using the tokens
+	 */
+	public long reserve(long count) {
+		lock.lock();
+		try {
+			if ( rate <= 0 ) return 0;
+			long now = System.nanoTime();
+			refill(now);
+			tokens -= count;
+			if ( tokens >= 0 ) return 0;
+			return (long)(-tokens * 1e9 / rate);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void refill(long now) {
+		if ( rate > 0 ) {
+			tokens = Math.min(burst, tokens + (now - lastRefill) * (double)rate / 1e9);
+		}
+		lastRefill = now;
+	}
+
+	/**
+	 * @return total nanoseconds callers slept in acquire
+	 */
+	public long getWaitedNanos() {
+		return waitedNanos.get();
+	}
+
+	@Override
+	public String toString() {
+		return "TokenBucket [rate=" + getRate() + ", waitedNanos=" + waitedNanos + "]";
+	}
+}
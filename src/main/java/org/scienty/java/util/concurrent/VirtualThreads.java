@@ -0,0 +1,114 @@
+package org.scienty.java.util.concurrent;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Virtual threads when the runtime has them, Java 21 and later.
+ * The library is built for Java 8 so the thread builder is looked up by reflection, on older
+ * runtimes the executors fall back to platform threads.
+ *
+ * @author prakasid
+ *
+ */
+public final class VirtualThreads {
+	private final static Logger logger = LogManager.getLogger();
+	private final static Method IS_VIRTUAL;
+	private final static Method OF_VIRTUAL;
+	private final static Method NAME;
+	private final static Method FACTORY;
+	private final static Method NEW_PER_TASK_EXECUTOR;
+
+	static {
+		Method isVirtual = null, ofVirtual = null, name = null, factory = null, perTask = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			isVirtual = Thread.class.getMethod("isVirtual");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class, long.class);
+			factory = builder.getMethod("factory");
+			perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			//preview releases have the methods but refuse to build virtual threads
+			ofVirtual.invoke(null);
+		} catch (Exception e) {
+			logger.debug("Virtual threads are not available, " + e);
+			isVirtual = ofVirtual = name = factory = perTask = null;
+		}
+		IS_VIRTUAL = isVirtual;
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		FACTORY = factory;
+		NEW_PER_TASK_EXECUTOR = perTask;
+	}
+
+	private VirtualThreads() {
+	}
+
+	public static boolean isSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	public static boolean isVirtual(Thread thread) {
+		if ( IS_VIRTUAL == null ) return false;
+		try {
+			return (Boolean)IS_VIRTUAL.invoke(thread);
+		} catch (IllegalAccessException e) {
+			return false;
+		} catch (InvocationTargetException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Factory of virtual threads named prefix-N, or of daemon platform threads when virtual threads are not supported
+	 * @param prefix
+	 * @return
+	 */
+	public static ThreadFactory newThreadFactory(final String prefix) {
+		if ( isSupported() ) {
+			try {
+				Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix + "-", 0L);
+				return (ThreadFactory)FACTORY.invoke(builder);
+			} catch (Exception e) {
+				logger.warn("Failed to build virtual thread factory, using platform threads", e);
+			}
+		}
+
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + "-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Executor that starts a new thread for every task, virtual when supported.
+	 * Without virtual threads this is a cached pool of platform threads, which does not scale to
+	 * thousands of blocked tasks.
+	 * @param prefix thread name prefix
+	 * @return
+	 */
+	public static ExecutorService newPerTaskExecutor(String prefix) {
+		ThreadFactory factory = newThreadFactory(prefix);
+		if ( isSupported() ) {
+			try {
+				return (ExecutorService)NEW_PER_TASK_EXECUTOR.invoke(null, factory);
+			} catch (Exception e) {
+				logger.warn("Failed to create virtual thread executor, using platform threads", e);
+			}
+		}
+		return Executors.newCachedThreadPool(factory);
+	}
+}
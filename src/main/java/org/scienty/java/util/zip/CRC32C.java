@@ -0,0 +1,156 @@
+package org.scienty.java.util.zip;
+
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum, same values as java.util.zip.CRC32C of Java 9.
+ * Table driven, eight bytes are folded per step. Use {@link #create()} to get the JDK
+ * implementation, which uses the CPU instructions, when it is available.
+ */
+public class CRC32C implements Checksum {
+	private final static Constructor<? extends Checksum> JDK_CRC32C = jdkConstructor();
+	//reflected Castagnoli polynomial
+	private final static int POLY = 0x82F63B78;
+	private final static int[][] TABLES = new int[8][256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int k = 0; k < 8; k++) {
+				crc = ((crc & 1) != 0) ? (crc >>> 1) ^ POLY : crc >>> 1;
+			}
+			TABLES[0][i] = crc;
+		}
+		for (int t = 1; t < 8; t++) {
+			for (int i = 0; i < 256; i++) {
+				int prev = TABLES[t - 1][i];
+				TABLES[t][i] = (prev >>> 8) ^ TABLES[0][prev & 0xff];
+			}
+		}
+	}
+
+	private int crc = 0xFFFFFFFF;
+
+	/**
+	 * @return java.util.zip.CRC32C on Java 9 and later, otherwise this implementation
+	 */
+	public static Checksum create() {
+		if ( JDK_CRC32C != null ) {
+			try {
+				return JDK_CRC32C.newInstance();
+			} catch (Exception e) {
+				//fall back to the table implementation
+			}
+		}
+		return new CRC32C();
+	}
+
+	/**
+	 * Update the checksum with the bytes between the buffer position and limit, the position is moved to the limit
+	 * @param checksum
+	 * @param buffer
+	 */
+	public static void update(Checksum checksum, ByteBuffer buffer) {
+		if ( checksum instanceof CRC32C ) {
+			((CRC32C)checksum).update(buffer);
+		} else if ( buffer.hasArray() ) {
+			checksum.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			buffer.position(buffer.limit());
+		} else {
+			//Checksum.update(ByteBuffer) is not available before Java 9
+			byte[] bytes = new byte[Math.min(buffer.remaining(), 8192)];
+			while ( buffer.hasRemaining() ) {
+				int count = Math.min(bytes.length, buffer.remaining());
+				buffer.get(bytes, 0, count);
+				checksum.update(bytes, 0, count);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Constructor<? extends Checksum> jdkConstructor() {
+		try {
+			return (Constructor<? extends Checksum>) Class.forName("java.util.zip.CRC32C").getConstructor();
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void update(int b) {
+		crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xff];
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len) {
+		if ( off < 0 || len < 0 || off > b.length - len ) {
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		int c = crc;
+		int end = off + len;
+		for (; off + Long.BYTES <= end; off += Long.BYTES) {
+			int lo = (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | b[off + 3] << 24;
+			int hi = (b[off + 4] & 0xff) | (b[off + 5] & 0xff) << 8 | (b[off + 6] & 0xff) << 16 | b[off + 7] << 24;
+			c = fold(c ^ lo, hi);
+		}
+		for (; off < end; off++) {
+			c = (c >>> 8) ^ TABLES[0][(c ^ b[off]) & 0xff];
+		}
+		crc = c;
+	}
+
+	public void update(byte[] b) {
+		update(b, 0, b.length);
+	}
+
+	/**
+	 * Update with the bytes between the buffer position and limit, the position is moved to the limit
+	 * @param buffer
+	 */
+	public void update(ByteBuffer buffer) {
+		if ( buffer.hasArray() ) {
+			update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			buffer.position(buffer.limit());
+			return;
+		}
+
+		ByteBuffer src = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int c = crc;
+		while ( src.remaining() >= Long.BYTES ) {
+			int lo = src.getInt();
+			int hi = src.getInt();
+			c = fold(c ^ lo, hi);
+		}
+		while ( src.hasRemaining() ) {
+			c = (c >>> 8) ^ TABLES[0][(c ^ src.get()) & 0xff];
+		}
+		crc = c;
+		buffer.position(buffer.limit());
+	}
+
+	private static int fold(int lo, int hi) {
+		return TABLES[7][lo & 0xff] ^ TABLES[6][(lo >>> 8) & 0xff]
+				^ TABLES[5][(lo >>> 16) & 0xff] ^ TABLES[4][lo >>> 24]
+				^ TABLES[3][hi & 0xff] ^ TABLES[2][(hi >>> 8) & 0xff]
+				^ TABLES[1][(hi >>> 16) & 0xff] ^ TABLES[0][hi >>> 24];
+	}
+
+	@Override
+	public long getValue() {
+		return (~crc) & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public void reset() {
+		crc = 0xFFFFFFFF;
+	}
+
+	public static void main(String args[]) {
+		CRC32C crc = new CRC32C();
+		crc.update("123456789".getBytes());
+		System.out.println(Long.toHexString(crc.getValue()) + " expected e3069283");
+	}
+}
@@ -0,0 +1,229 @@
+package org.scienty.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hot path counters of a file assembler: bytes and chunks written, writes in flight, latency of
+ * the chunk writes, of the data file forces and of the log appends, and the waits of throttled writes. Every assembler has its own
+ * metrics and records into {@link #GLOBAL} as well. Recording is allocation free, counters are
+ * striped {@link LongAdder} and latencies go to fixed bucket {@link Histogram}s.
+ *
+ * @author prakasid
+ *
+ */
+public class AssemblerMetrics implements AssemblerMetricsMBean {
+	/**
+	 * Totals of all the assemblers
+	 */
+	public final static AssemblerMetrics GLOBAL = new AssemblerMetrics(null);
+
+	private final AssemblerMetrics parent;
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder chunksWritten = new LongAdder();
+	private final LongAdder writeFailures = new LongAdder();
+	private final LongAdder inFlight = new LongAdder();
+	private final Histogram writeLatency = new Histogram();
+	private final Histogram fsyncLatency = new Histogram();
+	private final Histogram logAppendLatency = new Histogram();
+	private final Histogram throttleWait = new Histogram();
+
+	/**
+	 * Metrics that record into {@link #GLOBAL} too
+	 */
+	public AssemblerMetrics() {
+		this(GLOBAL);
+	}
+
+	/**
+	 * @param parent also records every value, null for none
+	 */
+	public AssemblerMetrics(AssemblerMetrics parent) {
+		this.parent = parent;
+	}
+
+	/**
+	 * A write is submitted and not complete yet
+	 */
+	public void submitted() {
+		inFlight.increment();
+		if ( parent != null ) parent.submitted();
+	}
+
+	/**
+	 * A submitted write completed, successful or not
+	 */
+	public void retired() {
+		inFlight.decrement();
+		if ( parent != null ) parent.retired();
+	}
+
+	/**
+	 * @param bytes written
+	 * @param nanos from the submit of the chunk to the end of its write
+	 */
+	public void written(long bytes, long nanos) {
+		bytesWritten.add(bytes);
+		chunksWritten.increment();
+		writeLatency.record(nanos);
+		if ( parent != null ) parent.written(bytes, nanos);
+	}
+
+	public void failed() {
+		writeFailures.increment();
+		if ( parent != null ) parent.failed();
+	}
+
+	public void fsync(long nanos) {
+		fsyncLatency.record(nanos);
+		if ( parent != null ) parent.fsync(nanos);
+	}
+
+	public void logAppend(long nanos) {
+		logAppendLatency.record(nanos);
+		if ( parent != null ) parent.logAppend(nanos);
+	}
+
+	/**
+	 * @param nanos a write was delayed by the throttle before its submit
+	 */
+	public void throttled(long nanos) {
+		throttleWait.record(nanos);
+		if ( parent != null ) parent.throttled(nanos);
+	}
+
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Values of the metrics at one point, for polling without JMX
+	 */
+	public static class Snapshot {
+		public final long bytesWritten;
+		public final long chunksWritten;
+		public final long writeFailures;
+		public final long inFlightWrites;
+		public final Histogram.Snapshot writeLatency;
+		public final Histogram.Snapshot fsyncLatency;
+		public final Histogram.Snapshot logAppendLatency;
+		public final Histogram.Snapshot throttleWait;
+
+		Snapshot(AssemblerMetrics metrics) {
+			bytesWritten = metrics.bytesWritten.sum();
+			chunksWritten = metrics.chunksWritten.sum();
+			writeFailures = metrics.writeFailures.sum();
+			inFlightWrites = metrics.inFlight.sum();
+			writeLatency = metrics.writeLatency.snapshot();
+			fsyncLatency = metrics.fsyncLatency.snapshot();
+			logAppendLatency = metrics.logAppendLatency.snapshot();
+			throttleWait = metrics.throttleWait.snapshot();
+		}
+
+		@Override
+		public String toString() {
+			return "AssemblerMetrics [bytes=" + bytesWritten + ", chunks=" + chunksWritten + ", failures=" + writeFailures
+					+ ", inFlight=" + inFlightWrites + ", write={" + writeLatency + "}, fsync={" + fsyncLatency
+					+ "}, logAppend={" + logAppendLatency + "}, throttle={" + throttleWait + "}]";
+		}
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	@Override
+	public long getChunksWritten() {
+		return chunksWritten.sum();
+	}
+
+	@Override
+	public long getWriteFailures() {
+		return writeFailures.sum();
+	}
+
+	@Override
+	public long getInFlightWrites() {
+		return inFlight.sum();
+	}
+
+	@Override
+	public double getWriteLatencyMean() {
+		return writeLatency.snapshot().getMean();
+	}
+
+	@Override
+	public long getWriteLatencyP50() {
+		return writeLatency.snapshot().percentile(0.5);
+	}
+
+	@Override
+	public long getWriteLatencyP99() {
+		return writeLatency.snapshot().percentile(0.99);
+	}
+
+	@Override
+	public long getWriteLatencyMax() {
+		return writeLatency.snapshot().getMax();
+	}
+
+	@Override
+	public long getFsyncCount() {
+		return fsyncLatency.count();
+	}
+
+	@Override
+	public double getFsyncLatencyMean() {
+		return fsyncLatency.snapshot().getMean();
+	}
+
+	@Override
+	public long getFsyncLatencyP99() {
+		return fsyncLatency.snapshot().percentile(0.99);
+	}
+
+	@Override
+	public long getFsyncLatencyMax() {
+		return fsyncLatency.snapshot().getMax();
+	}
+
+	@Override
+	public double getLogAppendLatencyMean() {
+		return logAppendLatency.snapshot().getMean();
+	}
+
+	@Override
+	public long getLogAppendLatencyP99() {
+		return logAppendLatency.snapshot().percentile(0.99);
+	}
+
+	@Override
+	public long getLogAppendLatencyMax() {
+		return logAppendLatency.snapshot().getMax();
+	}
+
+	@Override
+	public long getThrottledWrites() {
+		return throttleWait.count();
+	}
+
+	@Override
+	public long getThrottleWaitTotal() {
+		return throttleWait.snapshot().getSum();
+	}
+
+	@Override
+	public long getThrottleWaitP99() {
+		return throttleWait.snapshot().percentile(0.99);
+	}
+
+	@Override
+	public long getThrottleWaitMax() {
+		return throttleWait.snapshot().getMax();
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+}
@@ -0,0 +1,33 @@
+package org.scienty.metrics;
+
+/**
+ * JMX view of {@link AssemblerMetrics}, latencies are in nanoseconds
+ *
+ * @author prakasid
+ *
+ */
+public interface AssemblerMetricsMBean {
+	public long getBytesWritten();
+	public long getChunksWritten();
+	public long getWriteFailures();
+	public long getInFlightWrites();
+
+	public double getWriteLatencyMean();
+	public long getWriteLatencyP50();
+	public long getWriteLatencyP99();
+	public long getWriteLatencyMax();
+
+	public long getFsyncCount();
+	public double getFsyncLatencyMean();
+	public long getFsyncLatencyP99();
+	public long getFsyncLatencyMax();
+
+	public double getLogAppendLatencyMean();
+	public long getLogAppendLatencyP99();
+	public long getLogAppendLatencyMax();
+
+	public long getThrottledWrites();
+	public long getThrottleWaitTotal();
+	public long getThrottleWaitP99();
+	public long getThrottleWaitMax();
+}
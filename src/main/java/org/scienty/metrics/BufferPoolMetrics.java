@@ -0,0 +1,48 @@
+package org.scienty.metrics;
+
+import org.scienty.buffer.ByteBufferFactory;
+
+/**
+ * Bytes of a buffer pool held in the pool and handed out, read from the pool counters on demand
+ *
+ * @author prakasid
+ *
+ */
+public class BufferPoolMetrics implements BufferPoolMetricsMBean {
+	private final ByteBufferFactory factory;
+
+	public BufferPoolMetrics(ByteBufferFactory factory) {
+		this.factory = factory;
+	}
+
+	@Override
+	public int getBufferSize() {
+		return factory.getBufferSize();
+	}
+
+	@Override
+	public long getPooledBytes() {
+		return factory.getPooledBytes();
+	}
+
+	@Override
+	public long getOutstandingBytes() {
+		return factory.getOutstandingBytes();
+	}
+
+	@Override
+	public long getHits() {
+		return factory.getHits();
+	}
+
+	@Override
+	public long getMisses() {
+		return factory.getMisses();
+	}
+
+	@Override
+	public String toString() {
+		return "BufferPoolMetrics [pooled=" + getPooledBytes() + ", outstanding=" + getOutstandingBytes()
+				+ ", hits=" + getHits() + ", misses=" + getMisses() + "]";
+	}
+}
@@ -0,0 +1,15 @@
+package org.scienty.metrics;
+
+/**
+ * JMX view of a {@link org.scienty.buffer.ByteBufferFactory}
+ *
+ * @author prakasid
+ *
+ */
+public interface BufferPoolMetricsMBean {
+	public int getBufferSize();
+	public long getPooledBytes();
+	public long getOutstandingBytes();
+	public long getHits();
+	public long getMisses();
+}
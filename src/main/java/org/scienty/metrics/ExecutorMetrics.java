@@ -0,0 +1,49 @@
+package org.scienty.metrics;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Queue depth and task counts of an executor, such as
+ * {@link org.scienty.java.util.concurrent.ReorderingThreadPoolExecutor}, read on demand
+ *
+ * @author prakasid
+ *
+ */
+public class ExecutorMetrics implements ExecutorMetricsMBean {
+	private final ThreadPoolExecutor executor;
+
+	public ExecutorMetrics(ThreadPoolExecutor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	@Override
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	@Override
+	public int getPoolSize() {
+		return executor.getPoolSize();
+	}
+
+	@Override
+	public long getTaskCount() {
+		return executor.getTaskCount();
+	}
+
+	@Override
+	public long getCompletedTaskCount() {
+		return executor.getCompletedTaskCount();
+	}
+
+	@Override
+	public String toString() {
+		return "ExecutorMetrics [queue=" + getQueueDepth() + ", active=" + getActiveCount()
+				+ ", completed=" + getCompletedTaskCount() + "]";
+	}
+}
@@ -0,0 +1,15 @@
+package org.scienty.metrics;
+
+/**
+ * JMX view of a {@link java.util.concurrent.ThreadPoolExecutor}
+ *
+ * @author prakasid
+ *
+ */
+public interface ExecutorMetricsMBean {
+	public int getQueueDepth();
+	public int getActiveCount();
+	public int getPoolSize();
+	public long getTaskCount();
+	public long getCompletedTaskCount();
+}
@@ -0,0 +1,136 @@
+package org.scienty.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with fixed power of two buckets, bucket b holds values below 2^b.
+ * Recording touches two cells of the stripe of the calling thread and allocates nothing,
+ * stripes keep concurrent recorders off each other's cache lines. Reading sums the stripes,
+ * so a snapshot taken while values are recorded is not exact across buckets.
+ *
+ * @author prakasid
+ *
+ */
+public class Histogram {
+	public final static int BUCKETS = 64;
+	private final static int STRIPES = 8;
+	//buckets, sum and padding to the next cache line
+	private final static int STRIDE = 72;
+	private final static int SUM = BUCKETS;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * STRIDE);
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param value negative values are recorded as 0
+	 */
+	public void record(long value) {
+		if ( value < 0 ) value = 0;
+		int base = stripe() * STRIDE;
+		cells.incrementAndGet(base + bucket(value));
+		cells.addAndGet(base + SUM, value);
+		long current = max.get();
+		while ( value > current && max.compareAndSet(current, value) == false ) {
+			current = max.get();
+		}
+	}
+
+	private static int stripe() {
+		long id = Thread.currentThread().getId();
+		return (int)(id ^ (id >>> 8)) & (STRIPES - 1);
+	}
+
+	static int bucket(long value) {
+		return (value == 0) ? 0 : BUCKETS - Long.numberOfLeadingZeros(value);
+	}
+
+	public long count() {
+		long count = 0;
+		for (int stripe = 0; stripe < STRIPES; stripe++) {
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				count += cells.get(stripe * STRIDE + bucket);
+			}
+		}
+		return count;
+	}
+
+	public Snapshot snapshot() {
+		long[] buckets = new long[BUCKETS];
+		long sum = 0;
+		for (int stripe = 0; stripe < STRIPES; stripe++) {
+			int base = stripe * STRIDE;
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				buckets[bucket] += cells.get(base + bucket);
+			}
+			sum += cells.get(base + SUM);
+		}
+		return new Snapshot(buckets, sum, max.get());
+	}
+
+	/**
+	 * Values recorded till the snapshot
+	 */
+	public static class Snapshot {
+		private final long[] buckets;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		Snapshot(long[] buckets, long sum, long max) {
+			this.buckets = buckets;
+			long count = 0;
+			for (long bucket : buckets) count += bucket;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getSum() {
+			return sum;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		public double getMean() {
+			return (count == 0) ? 0 : (double)sum / count;
+		}
+
+		/**
+		 * @param quantile between 0 and 1
+		 * @return upper bound of the bucket holding the quantile, capped by the max
+		 */
+		public long percentile(double quantile) {
+			if ( count == 0 ) return 0;
+			long rank = (long)Math.ceil(quantile * count);
+			long seen = 0;
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				seen += buckets[bucket];
+				if ( seen >= rank && buckets[bucket] > 0 ) {
+					long upper = (bucket == 0) ? 0 : (bucket >= 63) ? Long.MAX_VALUE : (1L << bucket) - 1;
+					return Math.min(upper, max);
+				}
+			}
+			return max;
+		}
+
+		/**
+		 * @return values in each bucket, bucket b holds values below 2^b
+		 */
+		public long[] getBuckets() {
+			return buckets.clone();
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count + ", mean=" + (long)getMean() + ", p50=" + percentile(0.5)
+					+ ", p99=" + percentile(0.99) + ", max=" + max;
+		}
+	}
+}
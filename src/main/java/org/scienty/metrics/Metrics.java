@@ -0,0 +1,68 @@
+package org.scienty.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Registration of the metrics MBeans with the platform MBean server, under
+ * <code>org.scienty.chunkstream:type=&lt;type&gt;,name=&lt;name&gt;</code>.
+ * A failed registration is logged, metrics never fail the I/O they measure.
+ *
+ * @author prakasid
+ *
+ */
+public class Metrics {
+	private final static Logger logger = LogManager.getLogger();
+	public final static String DOMAIN = "org.scienty.chunkstream";
+
+	/**
+	 * Register the totals of all the assemblers as type Assembler, name global
+	 * @return name of the MBean, null if it is not registered
+	 */
+	public static ObjectName registerGlobal() {
+		return register("Assembler", "global", AssemblerMetrics.GLOBAL);
+	}
+
+	/**
+	 * @param type such as Assembler, BufferPool or Executor
+	 * @param name unique within the type, quoted if it has special characters
+	 * @param mbean standard MBean, such as {@link AssemblerMetrics}
+	 * @return name of the MBean, null if it is not registered
+	 */
+	public static ObjectName register(String type, String name, Object mbean) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName objectName = objectName(type, name);
+			if ( server.isRegistered(objectName) ) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(mbean, objectName);
+			return objectName;
+		} catch (JMException e) {
+			logger.warn("Failed to register metrics " + type + "/" + name, e);
+			return null;
+		}
+	}
+
+	public static void unregister(ObjectName objectName) {
+		if ( objectName == null ) return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if ( server.isRegistered(objectName) ) {
+				server.unregisterMBean(objectName);
+			}
+		} catch (JMException e) {
+			logger.warn("Failed to unregister metrics " + objectName, e);
+		}
+	}
+
+	static ObjectName objectName(String type, String name) throws JMException {
+		return new ObjectName(DOMAIN + ":type=" + ObjectName.quote(type) + ",name=" + ObjectName.quote(name));
+	}
+}
@@ -0,0 +1,39 @@
+package org.scienty.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The pooled memory of a burst is given back after the burst, without further calls to the pool
+ *
+ * @author prakasid
+ *
+ */
+public class SimpleByteBufferPoolTest {
+
+	public static void main(String[] args) throws Exception {
+		long interval = 100;
+		SimpleByteBufferPool pool = new SimpleByteBufferPool(false, interval);
+		List<ByteBuffer> burst = new ArrayList<ByteBuffer>();
+		for (int i = 0; i < 64; i++) {
+			burst.add(pool.aquire(64*1024));
+			burst.add(pool.aquire(4*1024*1024));
+		}
+		for (ByteBuffer buffer : burst) {
+			pool.release(buffer);
+		}
+		burst.clear();
+		long pooled = pool.getPooledBytes();
+		System.out.println("Pooled after the burst " + pooled + " bytes");
+
+		//idle for two intervals at least, the first trim marks the buffers idle and the second drops them
+		long deadline = System.currentTimeMillis() + 20 * interval;
+		while ( pool.getPooledBytes() > 0 && System.currentTimeMillis() < deadline ) {
+			Thread.sleep(interval);
+		}
+		long idle = pool.getPooledBytes();
+		System.out.println("Pooled when idle " + idle + " bytes");
+		System.out.println((pooled > 0 && idle == 0) ? "Idle pool is trimmed" : "Idle pool is NOT trimmed");
+	}
+}
@@ -0,0 +1,112 @@
+package org.scienty.file.patch;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.scienty.file.patch.BenchmarkHarness.Trial;
+
+/**
+ * Write throughput of {@link SyncFileAssembler} and {@link AsyncFileAssembler} across chunk sizes
+ * and writer threads. Writers take chunks in random order from a shared counter, the log uses
+ * group commit and every iteration ends with a flush, so the data and the log are on the disk.
+ *
+ * @author prakasid
+ *
+ */
+public class AssemblerBenchmark {
+	private final static int[] CHUNK_SIZES = {4*1024, 64*1024, 1024*1024};
+	private final static int[] THREADS = {1, 4, 16};
+
+	/**
+	 * @param args megabytes written per iteration, default 64
+	 */
+	public static void main(String[] args) throws Exception {
+		long total = ((args.length > 0) ? Long.parseLong(args[0]) : 64) * 1024 * 1024;
+		File dir = BenchmarkHarness.dir();
+		File partFile = new File(dir, "bench" + TrackingFileAssembler.PART_EXT);
+		File logFile = new File(dir, "bench" + TrackingFileAssembler.LOG_EXT);
+		ExecutorService writers = Executors.newFixedThreadPool(THREADS[THREADS.length - 1]);
+
+		BenchmarkHarness.header("AssemblerBenchmark " + (total / (1024 * 1024)) + " MB per iteration");
+		try {
+			for (int chunkSize : CHUNK_SIZES) {
+				for (int threads : THREADS) {
+					for (boolean async : new boolean[] {false, true}) {
+						String name = (async ? "async" : "sync") + " chunk=" + (chunkSize / 1024) + "k threads=" + threads;
+						BenchmarkHarness.measure(name, chunkSize,
+								write(partFile, logFile, async, (int)(total / chunkSize), chunkSize, threads, writers));
+					}
+				}
+			}
+		} finally {
+			writers.shutdown();
+			BenchmarkHarness.delete(partFile);
+			BenchmarkHarness.delete(logFile);
+		}
+	}
+
+	private static Trial write(final File partFile, final File logFile, final boolean async, final int chunks,
+			final int chunkSize, final int threads, final ExecutorService writers) {
+		final int[] order = RangeStoreBenchmark.random(chunks);
+		final ByteBuffer data = ByteBuffer.allocateDirect(chunkSize);
+		for (int i = 0; i < chunkSize; i++) data.put((byte)i);
+		data.flip();
+
+		return new Trial() {
+			private AssemblyLog log;
+			private FileAssembler assembler;
+
+			@Override
+			public void setUp() throws Exception {
+				BenchmarkHarness.delete(partFile);
+				BenchmarkHarness.delete(logFile);
+				log = new AssemblyLog(logFile, CommitPolicy.perBatch());
+				log.initFile(0L, (long)chunks * chunkSize - 1, "bench");
+				if ( async ) {
+					assembler = new AsyncFileAssembler(partFile, log, InFlightLimit.block(64L*1024*1024, 256));
+				} else {
+					assembler = new SyncFileAssembler(partFile, log);
+				}
+				assembler.init();
+			}
+
+			@Override
+			public long run() throws Exception {
+				final AtomicInteger next = new AtomicInteger();
+				List<Future<Void>> results = new ArrayList<Future<Void>>();
+				for (int t = 0; t < threads; t++) {
+					results.add(writers.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							for (int i = next.getAndIncrement(); i < chunks; i = next.getAndIncrement()) {
+								if ( assembler.write(data.duplicate(), (long)order[i] * chunkSize) == false ) {
+									throw new IllegalStateException("Chunk " + order[i] + " not written");
+								}
+							}
+							return null;
+						}
+					}));
+				}
+				for (Future<Void> result : results) {
+					result.get();
+				}
+				assembler.flush();
+				if ( log.isComplete() == false ) throw new IllegalStateException("Incomplete " + partFile);
+				return chunks;
+			}
+
+			@Override
+			public void tearDown() throws Exception {
+				assembler.close();
+				log.close();
+			}
+		};
+	}
+}
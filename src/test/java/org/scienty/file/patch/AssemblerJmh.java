@@ -0,0 +1,91 @@
+package org.scienty.file.patch;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH version of {@link AssemblerBenchmark}, throughput of chunk writes from 4 threads into
+ * a 256 MB part file, the chunks wrap around the file. Files are created in bench.dir, see
+ * {@link BenchmarkHarness}. Needs the bench profile, see the pom.
+ *
+ * @author prakasid
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class AssemblerJmh {
+	private final static long FILE_SIZE = 256L*1024*1024;
+
+	@Param({"sync", "async"})
+	public String mode;
+
+	@Param({"4096", "65536", "1048576"})
+	public int chunkSize;
+
+	private File partFile;
+	private File logFile;
+	private AssemblyLog log;
+	private FileAssembler assembler;
+	private ByteBuffer data;
+	private long chunks;
+	private final AtomicLong next = new AtomicLong();
+
+	@Setup(Level.Trial)
+	public void open() throws Exception {
+		File dir = BenchmarkHarness.dir();
+		partFile = new File(dir, "jmh" + TrackingFileAssembler.PART_EXT);
+		logFile = new File(dir, "jmh" + TrackingFileAssembler.LOG_EXT);
+		BenchmarkHarness.delete(partFile);
+		BenchmarkHarness.delete(logFile);
+		chunks = FILE_SIZE / chunkSize;
+		log = new AssemblyLog(logFile, CommitPolicy.perBatch());
+		log.setCompactThreshold(0);
+		log.initFile(0L, FILE_SIZE - 1, "jmh");
+		if ( "async".equals(mode) ) {
+			assembler = new AsyncFileAssembler(partFile, log, InFlightLimit.block(64L*1024*1024, 256));
+		} else {
+			assembler = new SyncFileAssembler(partFile, log);
+		}
+		assembler.init();
+		data = ByteBuffer.allocateDirect(chunkSize);
+		for (int i = 0; i < chunkSize; i++) data.put((byte)i);
+		data.flip();
+	}
+
+	@Benchmark
+	public boolean write() {
+		long chunk = next.getAndIncrement() % chunks;
+		return assembler.write(data.duplicate(), chunk * chunkSize);
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws Exception {
+		assembler.flush();
+		assembler.close();
+		log.close();
+		BenchmarkHarness.delete(partFile);
+		BenchmarkHarness.delete(logFile);
+	}
+}
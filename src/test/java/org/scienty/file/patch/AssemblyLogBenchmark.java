@@ -0,0 +1,136 @@
+package org.scienty.file.patch;
+
+import java.io.File;
+
+import org.scienty.file.patch.BenchmarkHarness.Trial;
+
+/**
+ * Measure {@link AssemblyLog} append, read and replay from 10^3 entries up to 10^7.
+ * Appends go directly to the log and through group commit, in sequential and random chunk order.
+ * Read takes the snapshot of a log with every other chunk complete, the most fragmented state.
+ * Replay opens a log of random entries. Automatic compaction is off so every entry stays in the log.
+ *
+ * @author prakasid
+ *
+ */
+public class AssemblyLogBenchmark {
+	private final static int CHUNK_SIZE = RangeStoreBenchmark.CHUNK_SIZE;
+	private final static int READS = 20;
+
+	/**
+	 * @param args largest power of ten of entries, default 6, direct appends up to 10^5
+	 */
+	public static void main(String[] args) throws Exception {
+		int maxPower = (args.length > 0) ? Integer.parseInt(args[0]) : 6;
+		File file = new File(BenchmarkHarness.dir(), "bench" + TrackingFileAssembler.LOG_EXT);
+
+		BenchmarkHarness.header("AssemblyLogBenchmark up to 10^" + maxPower + " entries");
+		for (int power = 3; power <= maxPower; power++) {
+			int entries = (int)Math.pow(10, power);
+			int[] sequential = RangeStoreBenchmark.sequential(entries);
+			int[] random = RangeStoreBenchmark.random(entries);
+
+			//one write per entry, too slow for the larger logs
+			if ( power <= 5 ) {
+				BenchmarkHarness.measure("append direct sequential 10^" + power, 0, append(file, null, sequential));
+				BenchmarkHarness.measure("append direct random 10^" + power, 0, append(file, null, random));
+			}
+			BenchmarkHarness.measure("append group sequential 10^" + power, 0, append(file, CommitPolicy.perBatch(), sequential));
+			BenchmarkHarness.measure("append group random 10^" + power, 0, append(file, CommitPolicy.perBatch(), random));
+			BenchmarkHarness.measure("read fragmented 10^" + power, 0, read(file, entries));
+			BenchmarkHarness.measure("replay random 10^" + power, 0, replay(file, random));
+		}
+		BenchmarkHarness.delete(file);
+	}
+
+	private static AssemblyLog create(File file, CommitPolicy policy, int chunks) throws Exception {
+		BenchmarkHarness.delete(file);
+		AssemblyLog log = new AssemblyLog(file, policy);
+		log.setCompactThreshold(0);
+		log.initFile(0L, (long)chunks * CHUNK_SIZE - 1, "bench");
+		return log;
+	}
+
+	private static void fill(AssemblyLog log, int[] order, int step) throws Exception {
+		for (int i = 0; i < order.length; i += step) {
+			long low = (long)order[i] * CHUNK_SIZE;
+			log.append(low, low + CHUNK_SIZE - 1);
+		}
+		log.flush();
+	}
+
+	private static Trial append(final File file, final CommitPolicy policy, final int[] order) {
+		return new Trial() {
+			private AssemblyLog log;
+
+			@Override
+			public void setUp() throws Exception {
+				log = create(file, policy, order.length);
+			}
+
+			@Override
+			public long run() throws Exception {
+				fill(log, order, 1);
+				if ( log.isComplete() == false ) throw new IllegalStateException("Incomplete log " + file);
+				return order.length;
+			}
+
+			@Override
+			public void tearDown() throws Exception {
+				log.close();
+			}
+		};
+	}
+
+	private static Trial read(final File file, final int entries) {
+		return new Trial() {
+			private AssemblyLog log;
+
+			@Override
+			public void setUp() throws Exception {
+				log = create(file, CommitPolicy.perBatch(), entries);
+				fill(log, RangeStoreBenchmark.sequential(entries), 2);
+			}
+
+			@Override
+			public long run() throws Exception {
+				for (int i = 0; i < READS; i++) {
+					BenchmarkHarness.consume(log.read().size());
+				}
+				return READS;
+			}
+
+			@Override
+			public void tearDown() throws Exception {
+				log.close();
+			}
+		};
+	}
+
+	private static Trial replay(final File file, final int[] order) {
+		return new Trial() {
+			private AssemblyLog log;
+
+			@Override
+			public void setUp() throws Exception {
+				AssemblyLog writer = create(file, CommitPolicy.perBatch(), order.length);
+				//half the entries so the replay rebuilds a fragmented store
+				fill(writer, order, 2);
+				writer.close();
+				log = new AssemblyLog(file);
+			}
+
+			@Override
+			public long run() throws Exception {
+				log.init(true);
+				BenchmarkHarness.consume(log.read().size());
+				return (order.length + 1) / 2;
+			}
+
+			@Override
+			public void tearDown() throws Exception {
+				log.close();
+			}
+		};
+	}
+}
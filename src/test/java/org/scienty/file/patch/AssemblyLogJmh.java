@@ -0,0 +1,69 @@
+package org.scienty.file.patch;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH version of the append benchmark of {@link AssemblyLogBenchmark}, time per appended entry,
+ * one write per entry or group committed. The log is created in bench.dir, see {@link BenchmarkHarness}.
+ * Needs the bench profile, see the pom.
+ *
+ * @author prakasid
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AssemblyLogJmh {
+	private final static int CHUNK_SIZE = 4096;
+	//span of the log, appends wrap around it
+	private final static long CHUNKS = 1L << 30;
+
+	@Param({"direct", "group"})
+	public String commit;
+
+	private File file;
+	private AssemblyLog log;
+	private long next = 0;
+
+	@Setup(Level.Iteration)
+	public void open() throws Exception {
+		file = new File(BenchmarkHarness.dir(), "jmh" + TrackingFileAssembler.LOG_EXT);
+		BenchmarkHarness.delete(file);
+		log = new AssemblyLog(file, "group".equals(commit) ? CommitPolicy.perBatch() : null);
+		log.setCompactThreshold(0);
+		log.initFile(0L, CHUNKS * CHUNK_SIZE - 1, "jmh");
+		next = 0;
+	}
+
+	@Benchmark
+	public long append() throws Exception {
+		long low = (next++ % CHUNKS) * CHUNK_SIZE;
+		log.append(low, low + CHUNK_SIZE - 1);
+		return low;
+	}
+
+	@TearDown(Level.Iteration)
+	public void close() throws Exception {
+		log.flush();
+		log.close();
+		BenchmarkHarness.delete(file);
+	}
+}
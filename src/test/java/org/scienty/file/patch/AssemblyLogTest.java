@@ -0,0 +1,164 @@
+package org.scienty.file.patch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Checkpoints of the assembly log survive reopen, with the file and the mapped backends, and keep
+ * the checksums of the completed chunks for the verification on resume
+ *
+ * @author prakasid
+ *
+ */
+public class AssemblyLogTest {
+	private final static long SIZE = 1024*1024;
+	private final static int CHUNK_SIZE = 64*1024;
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		File file = File.createTempFile("assembly", ".log");
+		File dir = File.createTempFile("assembly", "");
+		dir.delete();
+		dir.mkdirs();
+		try {
+			for (boolean mapped : new boolean[] { false, true }) {
+				String name = mapped ? "mapped" : "file";
+				file.delete();
+				completeCheckpoint(file, name, mapped);
+				file.delete();
+				partialCheckpoint(file, name, mapped);
+				corruptBeforeCheckpoint(dir, name, mapped);
+			}
+			file.delete();
+			smallRegions(file);
+		} finally {
+			file.delete();
+			for (File child : dir.listFiles()) child.delete();
+			dir.delete();
+		}
+		System.out.println(failures == 0 ? "All checks passed" : failures + " checks FAILED");
+	}
+
+	/**
+	 * A log compacted after the last chunk holds a checkpoint without ranges, the file stays complete
+	 */
+	private static void completeCheckpoint(File file, String name, boolean mapped) throws IOException {
+		AssemblyLog log = open(file, mapped);
+		log.append(0, SIZE / 2 - 1);
+		log.append(SIZE / 2, SIZE - 1);
+		log.compact();
+		log.close();
+
+		for (int i = 1; i <= 2; i++) {
+			log = open(file, mapped);
+			check(name + " complete after reopen " + i, log.isComplete());
+			log.close();
+		}
+	}
+
+	/**
+	 * Entries appended after a checkpoint are applied on top of it
+	 */
+	private static void partialCheckpoint(File file, String name, boolean mapped) throws IOException {
+		AssemblyLog log = open(file, mapped);
+		log.append(0, 1023);
+		log.compact();
+		log.append(SIZE - 1024, SIZE - 1);
+		log.close();
+
+		for (int i = 1; i <= 2; i++) {
+			log = open(file, mapped);
+			RangeStore remaining = log.read();
+			check(name + " partial after reopen " + i, remaining.size() == 1
+					&& remaining.span().low == 1024 && remaining.span().high == SIZE - 1025);
+			log.close();
+		}
+	}
+
+	/**
+	 * Entries spread over many regions of the mapped log, filled regions are released on flush and
+	 * a late entry maps its region again
+	 */
+	private static void smallRegions(File file) throws IOException {
+		AssemblyLog log = new AssemblyLog(file, null, new MappedLogBackend(4096));
+		log.initFile(0L, SIZE - 1, "test");
+		for (long low = 0; low < SIZE; low += 512) {
+			log.append(low, low + 511);
+			if ( low % (64*512) == 0 ) log.flush();
+		}
+		log.close();
+		
+		log = new AssemblyLog(file, null, new MappedLogBackend(4096));
+		log.initFile(0L, SIZE - 1, "test");
+		check("small regions complete after reopen", log.isComplete());
+		log.close();
+	}
+	
+	/**
+	 * A chunk recorded before a checkpoint is corrupt on resume, the checkpoint carries its checksum
+	 * so it is verified and returned to the missing ranges
+	 */
+	private static void corruptBeforeCheckpoint(File dir, String name, boolean mapped) throws Exception {
+		File target = new File(dir, name + ".bin");
+		TrackingFileAssembler assembler = assembler(target, mapped);
+		Random random = new Random(8);
+		byte[] data = new byte[CHUNK_SIZE];
+		for (int chunk = 0; chunk < 8; chunk++) {
+			random.nextBytes(data);
+			assembler.write(ByteBuffer.wrap(data), (long)chunk * CHUNK_SIZE);
+		}
+		assembler.assemblyLog().compact();
+		for (int chunk = 8; chunk < 12; chunk++) {
+			random.nextBytes(data);
+			assembler.write(ByteBuffer.wrap(data), (long)chunk * CHUNK_SIZE);
+		}
+		assembler.close();
+		
+		//flip a byte of a chunk in the checkpoint and of a chunk after it
+		RandomAccessFile part = new RandomAccessFile(TrackingFileAssembler.toPartFile(target.getPath()), "rw");
+		try {
+			for (long offset : new long[] { 2L * CHUNK_SIZE + 100, 9L * CHUNK_SIZE + 100 }) {
+				part.seek(offset);
+				int value = part.read();
+				part.seek(offset);
+				part.write(value ^ 0xff);
+			}
+		} finally {
+			part.close();
+		}
+		
+		for (int i = 1; i <= 2; i++) {
+			assembler = assembler(target, mapped);
+			RangeStore remaining = assembler.assemblyLog().read();
+			check(name + " checkpointed chunks verified on resume " + i, assembler.assemblyLog().replayedChecksums().size() == 10);
+			check(name + " corrupt chunk before checkpoint refetched " + i, 
+					remaining.intersects(2L * CHUNK_SIZE, 3L * CHUNK_SIZE - 1)
+					&& remaining.intersects(CHUNK_SIZE, 2L * CHUNK_SIZE - 1) == false);
+			check(name + " corrupt chunk after checkpoint refetched " + i, remaining.intersects(9L * CHUNK_SIZE, 10L * CHUNK_SIZE - 1));
+			assembler.close();
+		}
+	}
+	
+	private static TrackingFileAssembler assembler(File target, boolean mapped) throws Exception {
+		TrackingFileAssembler assembler = new TrackingFileAssembler(target, false);
+		assembler.setChecksums(true);
+		if ( mapped ) assembler.setLogBackend(new MappedLogBackend());
+		assembler.init(SIZE, "test");
+		return assembler;
+	}
+	
+	private static AssemblyLog open(File file, boolean mapped) throws IOException {
+		AssemblyLog log = new AssemblyLog(file, null, mapped ? new MappedLogBackend() : null);
+		log.initFile(0L, SIZE - 1, "test");
+		return log;
+	}
+
+	private static void check(String name, boolean passed) {
+		if ( !passed ) failures++;
+		System.out.println((passed ? "ok     " : "FAILED ") + name);
+	}
+}
@@ -0,0 +1,147 @@
+package org.scienty.file.patch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Warm up and measurement iterations shared by the benchmarks, so results are comparable
+ * between runs and machines. Every trial is set up fresh for each iteration, only run is timed,
+ * the mean and the standard deviation of the iterations are reported.
+ * <p>
+ * Configured with system properties:
+ * <pre>
+ * bench.warmup     warm up iterations, default 2
+ * bench.iterations measured iterations, default 5
+ * bench.dir        folder of the benchmark files, default java.io.tmpdir. Point it at a tmpfs
+ *                  to measure the code without the disk, or at a local disk for the full path
+ * </pre>
+ *
+ * @author prakasid
+ *
+ */
+public class BenchmarkHarness {
+	private final static int WARMUP = Integer.getInteger("bench.warmup", 2);
+	private final static int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+	//keeps results alive so the JIT does not drop the measured code
+	private static volatile long sink;
+
+	/**
+	 * One measured operation of a benchmark
+	 */
+	public static abstract class Trial {
+		/**
+		 * Prepare the iteration, not timed
+		 */
+		public void setUp() throws Exception {
+		}
+
+		/**
+		 * @return operations done
+		 */
+		public abstract long run() throws Exception;
+
+		/**
+		 * Release the iteration, not timed
+		 */
+		public void tearDown() throws Exception {
+		}
+	}
+
+	/**
+	 * Mean and standard deviation of the measured iterations
+	 */
+	public static class Result {
+		public final double nanosPerOp;
+		public final double error;
+		public final double opsPerSecond;
+
+		Result(double nanosPerOp, double error) {
+			this.nanosPerOp = nanosPerOp;
+			this.error = error;
+			this.opsPerSecond = 1e9 / nanosPerOp;
+		}
+	}
+
+	/**
+	 * Run the trial and print one line with its result
+	 * @param name
+	 * @param bytesPerOp bytes each operation moves, 0 to skip the throughput
+	 * @param trial
+	 * @return
+	 * @throws Exception
+	 */
+	public static Result measure(String name, long bytesPerOp, Trial trial) throws Exception {
+		for (int i = 0; i < WARMUP; i++) {
+			iteration(trial);
+		}
+		double[] samples = new double[ITERATIONS];
+		double sum = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			samples[i] = iteration(trial);
+			sum += samples[i];
+		}
+		double mean = sum / ITERATIONS;
+		double variance = 0;
+		for (double sample : samples) {
+			variance += (sample - mean) * (sample - mean);
+		}
+		double error = (ITERATIONS > 1) ? Math.sqrt(variance / (ITERATIONS - 1)) : 0;
+		Result result = new Result(mean, error);
+
+		if ( bytesPerOp > 0 ) {
+			System.out.printf("%-48s %12.1f +- %8.1f ns/op %10.1f MB/s%n", name, mean, error,
+					bytesPerOp * result.opsPerSecond / (1024 * 1024));
+		} else {
+			System.out.printf("%-48s %12.1f +- %8.1f ns/op %12.0f ops/s%n", name, mean, error, result.opsPerSecond);
+		}
+		return result;
+	}
+
+	private static double iteration(Trial trial) throws Exception {
+		trial.setUp();
+		try {
+			long start = System.nanoTime();
+			long ops = trial.run();
+			long nanos = System.nanoTime() - start;
+			if ( ops <= 0 ) throw new IllegalStateException("Trial did no operation");
+			return (double)nanos / ops;
+		} finally {
+			trial.tearDown();
+		}
+	}
+
+	public static void consume(long value) {
+		sink ^= value;
+	}
+
+	/**
+	 * @return folder of the benchmark files, created if missing
+	 * @throws IOException
+	 */
+	public static File dir() throws IOException {
+		File dir = new File(System.getProperty("bench.dir", System.getProperty("java.io.tmpdir")), "chunkstream-bench");
+		if ( dir.exists() == false && dir.mkdirs() == false ) {
+			throw new IOException("Failed to create " + dir);
+		}
+		return dir;
+	}
+
+	/**
+	 * Print the settings that decide whether two runs are comparable
+	 * @param benchmark
+	 * @throws IOException
+	 */
+	public static void header(String benchmark) throws IOException {
+		File dir = dir();
+		System.out.println("# " + benchmark + " java " + System.getProperty("java.version") + " "
+				+ Runtime.getRuntime().availableProcessors() + " cpus, warmup " + WARMUP + ", iterations " + ITERATIONS);
+		System.out.println("# dir " + dir + " on " + Files.getFileStore(dir.toPath()).type());
+	}
+
+	public static void delete(File file) {
+		if ( file.exists() && file.delete() == false ) {
+			throw new IllegalStateException("Failed to delete " + file);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package org.scienty.file.patch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Assemble a file of unaligned size with direct I/O: unaligned chunks written in random order by
+ * several threads, so neighbours share the blocks at their edges, and the tail consumed from a
+ * channel that gives a few bytes at a time and sometimes none
+ *
+ * @author prakasid
+ *
+ */
+public class DirectFileAssemblerTest {
+	private final static int SIZE = 3*1024*1024 + 777;
+	//bytes at the end of the file consumed from the channel
+	private final static int TAIL = 512*1024 + 333;
+	private final static int THREADS = 8;
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		final byte[] data = new byte[SIZE];
+		new Random(25).nextBytes(data);
+		File target = File.createTempFile("direct", ".bin");
+		target.delete();
+		final TrackingFileAssembler assembler = new TrackingFileAssembler(target, false);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			assembler.setDirectIO(true);
+			assembler.init(SIZE, "direct");
+
+			//chunks of 1 to 40000 bytes, none of them aligned
+			List<Range> chunks = new ArrayList<Range>();
+			Random random = new Random(2);
+			for (long low = 0; low < SIZE - TAIL; ) {
+				long high = Math.min(low + 1 + random.nextInt(40000), SIZE - TAIL) - 1;
+				chunks.add(new Range(low, high));
+				low = high + 1;
+			}
+			Collections.shuffle(chunks, random);
+
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(chunks.size());
+			for (final Range chunk : chunks) {
+				results.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						ByteBuffer buff = ByteBuffer.wrap(data, (int)chunk.low, (int)(chunk.high - chunk.low + 1));
+						return assembler.write(buff.slice(), chunk.low);
+					}
+				}));
+			}
+			boolean accepted = true;
+			for (Future<Boolean> result : results) {
+				accepted &= result.get();
+			}
+			check(chunks.size() + " unaligned chunks written by " + THREADS + " threads", accepted);
+
+			long consumed = assembler.consume(trickle(ByteBuffer.wrap(data, SIZE - TAIL, TAIL)), SIZE - TAIL, SIZE - 1);
+			check("tail consumed from a trickling channel", consumed == TAIL);
+		} finally {
+			executor.shutdown();
+			assembler.close();
+		}
+
+		try {
+			check("final size is the file size", target.length() == SIZE);
+			check("content matches", Arrays.equals(data, Files.readAllBytes(target.toPath())));
+		} finally {
+			target.delete();
+		}
+		System.out.println(failures == 0 ? "All checks passed" : failures + " checks FAILED");
+	}
+
+	/**
+	 * Gives up to 1000 bytes per read and nothing on every third read, like a slow non-blocking socket
+	 */
+	private static ReadableByteChannel trickle(final ByteBuffer src) {
+		return new ReadableByteChannel() {
+			private int reads = 0;
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() throws IOException {
+			}
+
+			@Override
+			public int read(ByteBuffer dst) throws IOException {
+				if ( src.hasRemaining() == false ) return -1;
+				if ( ++reads % 3 == 0 ) return 0;
+				ByteBuffer part = src.duplicate();
+				part.limit(part.position() + Math.min(Math.min(part.remaining(), dst.remaining()), 1000));
+				int count = part.remaining();
+				dst.put(part);
+				src.position(src.position() + count);
+				return count;
+			}
+		};
+	}
+
+	private static void check(String name, boolean passed) {
+		if ( !passed ) failures++;
+		System.out.println((passed ? "ok     " : "FAILED ") + name);
+	}
+}
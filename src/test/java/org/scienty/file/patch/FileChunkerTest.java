@@ -0,0 +1,113 @@
+package org.scienty.file.patch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.scienty.buffer.ByteBufferFactory;
+
+/**
+ * Chunk a temporary file and assemble it again, by reads in parallel and by transferTo,
+ * including a target that takes a few bytes at a time and then none, as a full non-blocking channel
+ *
+ * @author prakasid
+ *
+ */
+public class FileChunkerTest {
+
+	public static void main(String args[]) throws Exception {
+		byte[] data = new byte[3*1024*1024 + 777];
+		new Random(3).nextBytes(data);
+		File source = File.createTempFile("chunker", ".bin");
+		File target = File.createTempFile("chunker", ".out");
+		target.delete();
+		try {
+			Files.write(source.toPath(), data);
+			readAll(source, target);
+			System.out.println(Arrays.equals(data, Files.readAllBytes(target.toPath())) ? "Read content matches" : "Read content MISMATCH");
+			transferAll(source, target);
+			System.out.println(Arrays.equals(data, Files.readAllBytes(target.toPath())) ? "Transfer content matches" : "Transfer content MISMATCH");
+		} finally {
+			source.delete();
+			target.delete();
+		}
+	}
+
+	private static void readAll(File source, File target) throws Exception {
+		final ByteBufferFactory buffFactory = new ByteBufferFactory(256*1024, true, 16*256*1024);
+		FileChunker chunker = new FileChunker(source, ChunkingPolicy.fixedSize(buffFactory.getBufferSize()));
+		final TrackingFileAssembler assembler = new TrackingFileAssembler(target, true);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			chunker.open();
+			assembler.setBufferFactory(buffFactory);
+			assembler.init(chunker.fileSize(), "chunker");
+			chunker.readAll(executor, buffFactory, new ChunkHandler() {
+				@Override
+				public void handle(FileChunk chunk, ByteBuffer data) {
+					assembler.write(data, chunk.offset, buffFactory);
+				}
+			});
+		} finally {
+			executor.shutdown();
+			chunker.close();
+			assembler.close();
+		}
+		System.out.println(buffFactory);
+	}
+
+	private static void transferAll(File source, File target) throws IOException {
+		target.delete();
+		FileChunker chunker = new FileChunker(source, ChunkingPolicy.count(7));
+		final FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		//takes up to 64k per write and refuses every other write, like a congested socket
+		WritableByteChannel congested = new WritableByteChannel() {
+			private boolean full = false;
+
+			@Override
+			public boolean isOpen() {
+				return out.isOpen();
+			}
+
+			@Override
+			public void close() throws IOException {
+				out.close();
+			}
+
+			@Override
+			public int write(ByteBuffer src) throws IOException {
+				full = !full;
+				if ( full ) return 0;
+				ByteBuffer part = src.duplicate();
+				part.limit(part.position() + Math.min(part.remaining(), 64*1024));
+				int count = out.write(part);
+				src.position(src.position() + count);
+				return count;
+			}
+		};
+		int stalls = 0;
+		try {
+			chunker.open();
+			for (FileChunk chunk : chunker.chunks()) {
+				long done = 0;
+				while ( done < chunk.length ) {
+					long count = chunker.transferTo(chunk, done, congested);
+					if ( count == 0 ) stalls++;
+					done += count;
+				}
+			}
+		} finally {
+			chunker.close();
+			out.close();
+		}
+		System.out.println("Transferred with " + stalls + " stalls of the target");
+	}
+}
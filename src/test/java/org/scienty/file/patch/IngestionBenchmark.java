@@ -0,0 +1,116 @@
+package org.scienty.file.patch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.scienty.buffer.ByteBufferFactory;
+import org.scienty.java.util.concurrent.VirtualThreads;
+
+/**
+ * Ingest many simulated network streams at once, every stream delivers its chunk in small pieces
+ * with a delay between them. Compares a fixed pool of platform threads with one thread per stream,
+ * virtual on Java 21 and later.
+ *
+ * @author prakasid
+ *
+ */
+public class IngestionBenchmark {
+	private final static int POOL_THREADS = 200;
+
+	/**
+	 * Stream of a chunk that blocks before every piece, like a slow connection
+	 */
+	static class SlowInputStream extends InputStream {
+		private final long length;
+		private final int piece;
+		private final long delayMillis;
+		private long position = 0;
+		private int pieceLeft = 0;
+
+		SlowInputStream(long length, int piece, long delayMillis) {
+			this.length = length;
+			this.piece = piece;
+			this.delayMillis = delayMillis;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if ( position >= length ) return -1;
+			if ( pieceLeft == 0 ) {
+				try {
+					Thread.sleep(delayMillis);
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted", e);
+				}
+				pieceLeft = (int)Math.min(piece, length - position);
+			}
+			int count = Math.min(len, pieceLeft);
+			for (int i = 0; i < count; i++) {
+				b[off + i] = (byte)(position + i);
+			}
+			position += count;
+			pieceLeft -= count;
+			return count;
+		}
+	}
+
+	/**
+	 * @param args number of streams, default 10000, chunk size, default 16384, piece delay in ms, default 10
+	 */
+	public static void main(String[] args) throws Exception {
+		int streams = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+		int chunkSize = (args.length > 1) ? Integer.parseInt(args[1]) : 16*1024;
+		long delay = (args.length > 2) ? Long.parseLong(args[2]) : 10;
+
+		System.out.println("Virtual threads " + (VirtualThreads.isSupported() ? "supported" : "not supported, per stream threads are platform threads"));
+		long pooled = run(Executors.newFixedThreadPool(POOL_THREADS), streams, chunkSize, delay);
+		System.out.printf("platform pool of %d  streams=%d %d ms %.0f streams/s%n", POOL_THREADS, streams, pooled, streams * 1000.0 / pooled);
+		long perStream = run(VirtualThreads.newPerTaskExecutor("ingest"), streams, chunkSize, delay);
+		System.out.printf("thread per stream    streams=%d %d ms %.0f streams/s%n", streams, perStream, streams * 1000.0 / perStream);
+	}
+
+	private static long run(ExecutorService executor, int streams, int chunkSize, long delay) throws Exception {
+		File target = File.createTempFile("ingest", ".bin");
+		target.delete();
+		TrackingFileAssembler assembler = new TrackingFileAssembler(target, false);
+		//one buffer per stream in flight, sized to the chunk
+		assembler.setBufferFactory(new ByteBufferFactory(chunkSize, false, (long)chunkSize * 1024));
+		assembler.init((long)streams * chunkSize, "ingest");
+
+		long start = System.nanoTime();
+		StreamIngestor ingestor = new StreamIngestor(assembler, executor);
+		List<Future<Long>> results = new ArrayList<Future<Long>>(streams);
+		try {
+			for (int i = 0; i < streams; i++) {
+				long low = (long)i * chunkSize;
+				//four pieces per chunk
+				results.add(ingestor.submit(new SlowInputStream(chunkSize, chunkSize / 4, delay), low, low + chunkSize - 1));
+			}
+			for (Future<Long> result : results) {
+				result.get();
+			}
+		} finally {
+			ingestor.close();
+			assembler.close();
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+
+		if ( !target.exists() || target.length() != (long)streams * chunkSize ) {
+			throw new IllegalStateException("Ingestion did not complete " + target);
+		}
+		target.delete();
+		return millis;
+	}
+}
@@ -0,0 +1,126 @@
+package org.scienty.file.patch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Assemble a file from chunks in random order with every {@link Preallocation} mode, then report
+ * the extents of the part file, as counted by filefrag, and the speed of a sequential read back.
+ * Run as root to drop the page cache before the read back, otherwise the read is served from memory.
+ * The folder is set with bench.dir, see {@link BenchmarkHarness}.
+ *
+ * @author prakasid
+ *
+ */
+public class PreallocationBenchmark {
+	private final static int READ_BLOCK_SIZE = 1024*1024;
+
+	/**
+	 * @param args file size in MB, default 1024, chunk size in KB, default 64
+	 */
+	public static void main(String[] args) throws Exception {
+		long size = ((args.length > 0) ? Long.parseLong(args[0]) : 1024) * 1024 * 1024;
+		int chunkSize = ((args.length > 1) ? Integer.parseInt(args[1]) : 64) * 1024;
+		int chunks = (int)(size / chunkSize);
+		int[] order = RangeStoreBenchmark.random(chunks);
+
+		BenchmarkHarness.header("PreallocationBenchmark " + (size / (1024 * 1024)) + " MB in " + (chunkSize / 1024) + "k chunks");
+		File dir = BenchmarkHarness.dir();
+		for (Preallocation preallocation : Preallocation.values()) {
+			File target = new File(dir, "prealloc.bin");
+			File partFile = new File(TrackingFileAssembler.toPartFile(target.getPath()));
+			BenchmarkHarness.delete(target);
+			BenchmarkHarness.delete(partFile);
+			BenchmarkHarness.delete(new File(TrackingFileAssembler.toLogFile(target.getPath())));
+
+			TrackingFileAssembler assembler = new TrackingFileAssembler(target, false);
+			assembler.setPreallocation(preallocation);
+			assembler.setCommitPolicy(CommitPolicy.perBatch());
+			long start = System.nanoTime();
+			assembler.init((long)chunks * chunkSize, "prealloc");
+			long initMillis = (System.nanoTime() - start) / 1000000;
+
+			ByteBuffer data = ByteBuffer.allocateDirect(chunkSize);
+			while ( data.hasRemaining() ) data.put((byte)data.position());
+			for (int chunk : order) {
+				data.clear();
+				assembler.write(data, (long)chunk * chunkSize);
+			}
+			assembler.assemblyLog().flush();
+			long writeMillis = (System.nanoTime() - start) / 1000000;
+			assembler.close();
+
+			String extents = extents(target);
+			boolean dropped = dropCaches();
+			long readNanos = readBack(target);
+			System.out.printf("%-9s init %6d ms, write %6d ms, %s, read back %8.1f MB/s%s%n", preallocation, initMillis, writeMillis,
+					extents, size / (1024.0 * 1024) / (readNanos / 1e9), dropped ? "" : " (page cache)");
+			BenchmarkHarness.delete(target);
+		}
+	}
+
+	private static long readBack(File file) throws IOException {
+		ByteBuffer buff = ByteBuffer.allocateDirect(READ_BLOCK_SIZE);
+		long start = System.nanoTime();
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			while ( channel.read(buff) >= 0 ) {
+				BenchmarkHarness.consume(buff.get(0));
+				buff.clear();
+			}
+		} finally {
+			channel.close();
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * @return output of filefrag, such as "12 extents found"
+	 */
+	private static String extents(File file) {
+		try {
+			Process process = new ProcessBuilder("filefrag", file.getPath()).redirectErrorStream(true).start();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+			try {
+				String line = reader.readLine();
+				process.waitFor();
+				if ( line == null ) return "extents unknown";
+				int colon = line.lastIndexOf(": ");
+				return (colon >= 0) ? line.substring(colon + 2) : line;
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			return "extents unknown, filefrag not found";
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return "extents unknown";
+		}
+	}
+
+	private static boolean dropCaches() {
+		File control = new File("/proc/sys/vm/drop_caches");
+		if ( control.canWrite() == false ) return false;
+		try {
+			new ProcessBuilder("sync").inheritIO().start().waitFor();
+			FileWriter writer = new FileWriter(control);
+			try {
+				writer.write("1");
+			} finally {
+				writer.close();
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/**
+ *
+ */
+package org.scienty.file.patch;
+
+import java.util.Random;
+
+import org.scienty.file.patch.BenchmarkHarness.Trial;
+
+/**
+ * Compare {@link SlottedRangeStore} and {@link ArrayRangeStore} the way the assembly log uses them,
+ * the full span is added and completed chunks are subtracted in sequential, random and
+ * adversarial (every other chunk first) order. The add benchmark returns every other chunk to a
+ * store of the full span, as a reopen of corrupt chunks does.
+ *
+ * @author prakasid
+ *
+ */
+public class RangeStoreBenchmark {
+	final static int CHUNK_SIZE = 4096;
+
+	interface StoreFactory {
+		RangeStore create();
+	}
+
+	/**
+	 * @param args number of chunks, default 500000
+	 */
+	public static void main(String[] args) throws Exception {
+		int chunks = (args.length > 0) ? Integer.parseInt(args[0]) : 500000;
+		StoreFactory slotted = new StoreFactory() {
+			@Override
+			public RangeStore create() {
+				return new SlottedRangeStore();
+			}
+		};
+		StoreFactory array = new StoreFactory() {
+			@Override
+			public RangeStore create() {
+				return new ArrayRangeStore();
+			}
+		};
+
+		BenchmarkHarness.header("RangeStoreBenchmark chunks=" + chunks);
+		String[] names = {"sequential", "random", "adversarial"};
+		int[][] orders = {sequential(chunks), random(chunks), adversarial(chunks)};
+		for (int i = 0; i < orders.length; i++) {
+			BenchmarkHarness.measure("sub " + names[i] + " slotted", 0, sub(slotted, orders[i]));
+			BenchmarkHarness.measure("sub " + names[i] + " array", 0, sub(array, orders[i]));
+		}
+		BenchmarkHarness.measure("add adversarial slotted", 0, add(slotted, chunks));
+		BenchmarkHarness.measure("add adversarial array", 0, add(array, chunks));
+	}
+
+	private static Trial sub(final StoreFactory factory, final int[] order) {
+		return new Trial() {
+			private RangeStore store;
+
+			@Override
+			public void setUp() {
+				store = factory.create();
+				store.add(0, (long)order.length * CHUNK_SIZE - 1);
+			}
+
+			@Override
+			public long run() {
+				long maxSize = 0;
+				for (int chunk : order) {
+					long low = (long)chunk * CHUNK_SIZE;
+					store.sub(low, low + CHUNK_SIZE - 1);
+					if ( store.size() > maxSize ) maxSize = store.size();
+				}
+				if ( store.size() != 0 || maxSize == 0 ) {
+					throw new IllegalStateException("Unexpected ranges " + store.getRanges());
+				}
+				return order.length;
+			}
+		};
+	}
+
+	/**
+	 * Empty store, every other chunk is added then the chunks between them
+	 */
+	private static Trial add(final StoreFactory factory, final int chunks) {
+		final int[] order = adversarial(chunks);
+		return new Trial() {
+			private RangeStore store;
+
+			@Override
+			public void setUp() {
+				store = factory.create();
+			}
+
+			@Override
+			public long run() {
+				for (int chunk : order) {
+					long low = (long)chunk * CHUNK_SIZE;
+					store.add(low, low + CHUNK_SIZE - 1);
+				}
+				if ( store.size() != 1 ) {
+					throw new IllegalStateException("Unexpected ranges " + store.size());
+				}
+				return order.length;
+			}
+		};
+	}
+
+	static int[] sequential(int chunks) {
+		int[] order = new int[chunks];
+		for (int i = 0; i < chunks; i++) order[i] = i;
+		return order;
+	}
+
+	static int[] random(int chunks) {
+		int[] order = sequential(chunks);
+		Random random = new Random(chunks);
+		for (int i = chunks - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int tmp = order[i];
+			order[i] = order[j];
+			order[j] = tmp;
+		}
+		return order;
+	}
+
+	static int[] adversarial(int chunks) {
+		int[] order = new int[chunks];
+		int index = 0;
+		for (int i = 0; i < chunks; i += 2) order[index++] = i;
+		for (int i = 1; i < chunks; i += 2) order[index++] = i;
+		return order;
+	}
+}
@@ -0,0 +1,70 @@
+package org.scienty.file.patch;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH version of {@link RangeStoreBenchmark}, time per subtracted chunk of a store of the full span.
+ * Needs the bench profile, see the pom.
+ *
+ * @author prakasid
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RangeStoreJmh {
+	private final static int CHUNKS = 100000;
+
+	@Param({"slotted", "array"})
+	public String store;
+
+	@Param({"sequential", "random", "adversarial"})
+	public String order;
+
+	private int[] chunks;
+	private RangeStore rangeStore;
+
+	@Setup(Level.Trial)
+	public void order() {
+		if ( "random".equals(order) ) {
+			chunks = RangeStoreBenchmark.random(CHUNKS);
+		} else if ( "adversarial".equals(order) ) {
+			chunks = RangeStoreBenchmark.adversarial(CHUNKS);
+		} else {
+			chunks = RangeStoreBenchmark.sequential(CHUNKS);
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void fill() {
+		rangeStore = "array".equals(store) ? new ArrayRangeStore() : new SlottedRangeStore();
+		rangeStore.add(0, (long)CHUNKS * RangeStoreBenchmark.CHUNK_SIZE - 1);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CHUNKS)
+	public int sub() {
+		for (int chunk : chunks) {
+			long low = (long)chunk * RangeStoreBenchmark.CHUNK_SIZE;
+			rangeStore.sub(low, low + RangeStoreBenchmark.CHUNK_SIZE - 1);
+		}
+		return rangeStore.size();
+	}
+}
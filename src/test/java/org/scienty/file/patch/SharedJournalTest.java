@@ -0,0 +1,283 @@
+package org.scienty.file.patch;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Crash recovery of the shared journal: replay on reopen, a torn tail, compaction while a transfer
+ * is closing, a transfer whose data sync fails and a corrupt chunk recorded before a checkpoint
+ *
+ * @author prakasid
+ *
+ */
+public class SharedJournalTest {
+	private final static int CHUNK_SIZE = 512;
+	private final static int CHUNKS = 1000;
+	private final static long SIZE = (long)CHUNK_SIZE * CHUNKS;
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		File dir = File.createTempFile("journal", "");
+		dir.delete();
+		dir.mkdirs();
+		File journalFile = new File(dir, "transfers.journal");
+		try {
+			reopen(dir, journalFile);
+			tornTail(dir, journalFile);
+			compactWhileClosing(dir);
+			failedDataSync(dir, journalFile);
+			corruptBeforeCheckpoint(dir, new File(dir, "checksums.journal"));
+		} finally {
+			for (File file : dir.listFiles()) file.delete();
+			dir.delete();
+		}
+		System.out.println(failures == 0 ? "All checks passed" : failures + " checks FAILED");
+	}
+
+	/**
+	 * Entries and checkpoints of two transfers survive close and reopen
+	 */
+	private static void reopen(File dir, File journalFile) throws IOException {
+		SharedJournal journal = new SharedJournal(journalFile, CommitPolicy.perBatch());
+		journal.setCheckpointThreshold(50);
+		journal.open();
+		SyncFileAssembler a = assembler(dir, "a", journal);
+		SyncFileAssembler b = assembler(dir, "b", journal);
+		for (int chunk = 0; chunk < CHUNKS; chunk += 2) {
+			a.write(chunk(chunk), (long)chunk * CHUNK_SIZE);
+			b.write(chunk(chunk), (long)(CHUNKS - 1 - chunk) * CHUNK_SIZE);
+		}
+		close(a);
+		close(b);
+		journal.close();
+
+		journal = new SharedJournal(journalFile, null);
+		journal.open();
+		check("reopen keeps both transfers", journal.keys().size() == 2);
+		check("reopen replays a", remaining(journal, dir, "a") == SIZE / 2);
+		check("reopen replays b", remaining(journal, dir, "b") == SIZE / 2);
+		journal.close();
+	}
+
+	/**
+	 * A partial record at the end of the journal is dropped, the records before it are kept
+	 */
+	private static void tornTail(File dir, File journalFile) throws IOException {
+		long size = journalFile.length();
+		RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+		try {
+			raf.seek(size);
+			//length of a full entry, but only part of its body
+			raf.write(new byte[] { 0, 0, 0, 33, 1, 2, 3, 4, 5, 6, 7 });
+		} finally {
+			raf.close();
+		}
+
+		SharedJournal journal = new SharedJournal(journalFile, null);
+		journal.open();
+		check("torn tail is truncated", journalFile.length() == size);
+		check("torn tail keeps a", remaining(journal, dir, "a") == SIZE / 2);
+		journal.close();
+	}
+
+	/**
+	 * A transfer closes its assembler before its log, another transfer compacts the journal meanwhile
+	 */
+	private static void compactWhileClosing(File dir) throws IOException {
+		File journalFile = new File(dir, "compact.journal");
+		SharedJournal journal = new SharedJournal(journalFile, CommitPolicy.perBatch());
+		journal.setCompactSize(4096);
+		journal.open();
+		SyncFileAssembler d = assembler(dir, "d", journal);
+		d.write(chunk(1), CHUNK_SIZE);
+		//data channel closed, log still attached, as when TrackingFileAssembler computes the digest
+		d.close();
+
+		SyncFileAssembler e = assembler(dir, "e", journal);
+		int compactions = 0;
+		boolean failed = false;
+		try {
+			long size = journalFile.length();
+			for (int chunk = 0; chunk < CHUNKS; chunk++) {
+				e.write(chunk(chunk), (long)chunk * CHUNK_SIZE);
+				e.assemblyLog.flush();
+				if ( journalFile.length() < size ) compactions++;
+				size = journalFile.length();
+			}
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			failed = true;
+		}
+		check("writes succeed while another transfer is closing", failed == false);
+		check("journal is compacted", compactions > 0);
+		d.assemblyLog.close();
+		close(e);
+		journal.close();
+
+		journal = new SharedJournal(journalFile, null);
+		journal.open();
+		check("compaction keeps the closed transfer", remaining(journal, dir, "d") == SIZE - CHUNK_SIZE);
+		check("compaction keeps the complete transfer", remaining(journal, dir, "e") == 0);
+		journal.close();
+	}
+
+	/**
+	 * A transfer whose data can not be synced fails alone, its entries are not written
+	 */
+	private static void failedDataSync(File dir, File journalFile) throws IOException {
+		SharedJournal journal = new SharedJournal(journalFile, CommitPolicy.perBatch());
+		journal.open();
+		SyncFileAssembler c = assembler(dir, "c", journal);
+		c.assemblyLog.setDataSync(new Flushable() {
+			@Override
+			public void flush() throws IOException {
+				throw new IOException("Device lost");
+			}
+		});
+		c.write(chunk(0), 0);
+		boolean failed = false;
+		try {
+			c.assemblyLog.flush();
+		} catch (IOException e) {
+			failed = true;
+		}
+		check("failed data sync fails its transfer", failed);
+
+		SyncFileAssembler a = assembler(dir, "a", journal);
+		a.write(chunk(3), 3 * CHUNK_SIZE);
+		failed = false;
+		try {
+			a.assemblyLog.flush();
+		} catch (IOException e) {
+			failed = true;
+		}
+		check("failed data sync leaves other transfers", failed == false);
+		close(a);
+		try {
+			close(c);
+		} catch (IOException e) {
+			//expected, the journal refuses the entries of c
+		}
+		journal.close();
+
+		journal = new SharedJournal(journalFile, null);
+		journal.open();
+		check("entries of a failed sync are dropped", remaining(journal, dir, "c") == SIZE);
+		check("entries of other transfers are kept", remaining(journal, dir, "a") == SIZE / 2 - CHUNK_SIZE);
+		journal.close();
+	}
+
+	/**
+	 * A chunk recorded before a checkpoint is corrupt on resume, the checkpoint carries its checksum
+	 * so it is verified and returned to the missing ranges
+	 */
+	private static void corruptBeforeCheckpoint(File dir, File journalFile) throws Exception {
+		File target = new File(dir, "f.bin");
+		SharedJournal journal = new SharedJournal(journalFile, CommitPolicy.perBatch());
+		journal.open();
+		TrackingFileAssembler assembler = checksummed(target, journal);
+		Random random = new Random(20);
+		byte[] data = new byte[CHUNK_SIZE];
+		for (int chunk = 0; chunk < 8; chunk++) {
+			random.nextBytes(data);
+			assembler.write(ByteBuffer.wrap(data), (long)chunk * CHUNK_SIZE);
+		}
+		assembler.assemblyLog().compact();
+		for (int chunk = 8; chunk < 12; chunk++) {
+			random.nextBytes(data);
+			assembler.write(ByteBuffer.wrap(data), (long)chunk * CHUNK_SIZE);
+		}
+		assembler.close();
+		journal.close();
+
+		//flip a byte of a chunk in the checkpoint and of a chunk after it
+		RandomAccessFile part = new RandomAccessFile(TrackingFileAssembler.toPartFile(target.getPath()), "rw");
+		try {
+			for (long offset : new long[] { 2L * CHUNK_SIZE + 100, 9L * CHUNK_SIZE + 100 }) {
+				part.seek(offset);
+				int value = part.read();
+				part.seek(offset);
+				part.write(value ^ 0xff);
+			}
+		} finally {
+			part.close();
+		}
+
+		for (int i = 1; i <= 2; i++) {
+			journal = new SharedJournal(journalFile, CommitPolicy.perBatch());
+			journal.open();
+			assembler = checksummed(target, journal);
+			RangeStore remaining = assembler.assemblyLog().read();
+			check("checkpointed chunks verified on resume " + i, assembler.assemblyLog().replayedChecksums().size() == 10);
+			check("corrupt chunk before checkpoint refetched " + i,
+					remaining.intersects(2L * CHUNK_SIZE, 3L * CHUNK_SIZE - 1)
+					&& remaining.intersects(CHUNK_SIZE, 2L * CHUNK_SIZE - 1) == false);
+			check("corrupt chunk after checkpoint refetched " + i, remaining.intersects(9L * CHUNK_SIZE, 10L * CHUNK_SIZE - 1));
+			assembler.close();
+			journal.close();
+		}
+	}
+
+	private static TrackingFileAssembler checksummed(File target, SharedJournal journal) throws Exception {
+		TrackingFileAssembler assembler = new TrackingFileAssembler(target, false);
+		assembler.setJournal(journal);
+		assembler.setChecksums(true);
+		assembler.init(SIZE, "f");
+		return assembler;
+	}
+
+	private static SyncFileAssembler assembler(File dir, String name, SharedJournal journal) throws IOException {
+		AssemblyLog log = journal.log(file(dir, name));
+		log.initFile(0L, SIZE - 1, name);
+		SyncFileAssembler assembler = new SyncFileAssembler(new File(dir, name + ".part"), log);
+		assembler.init();
+		return assembler;
+	}
+
+	private static void close(SyncFileAssembler assembler) throws IOException {
+		try {
+			assembler.close();
+		} finally {
+			assembler.assemblyLog.close();
+		}
+	}
+
+	private static long remaining(SharedJournal journal, File dir, String name) throws IOException {
+		AssemblyLog log = journal.log(file(dir, name));
+		log.init(false);
+		try {
+			return missing(log.read());
+		} finally {
+			log.close();
+		}
+	}
+
+	private static String file(File dir, String name) {
+		return new File(dir, name).getAbsolutePath();
+	}
+
+	private static ByteBuffer chunk(int value) {
+		ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+		while ( chunk.hasRemaining() ) chunk.put((byte)value);
+		chunk.flip();
+		return chunk;
+	}
+
+	private static long missing(RangeStore store) {
+		long missing = 0;
+		for (Range range : store.ranges()) {
+			missing += range.high - range.low + 1;
+		}
+		return missing;
+	}
+
+	private static void check(String name, boolean passed) {
+		if ( !passed ) failures++;
+		System.out.println((passed ? "ok     " : "FAILED ") + name);
+	}
+}
@@ -0,0 +1,163 @@
+package org.scienty.file.patch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetch a file from an in process source that fails and ends early at random,
+ * then check the assembled file against the source bytes
+ *
+ * @author prakasid
+ *
+ */
+public class TransferOrchestratorTest {
+
+	/**
+	 * Serves ranges of a byte array, fails to open one in failRate and ends a channel early one in shortRate
+	 */
+	static class FakeSource implements ChunkSource {
+		private final byte[] data;
+		private final int failRate;
+		private final int shortRate;
+		private final Random random = new Random(7);
+		final AtomicInteger opened = new AtomicInteger();
+
+		FakeSource(byte[] data, int failRate, int shortRate) {
+			this.data = data;
+			this.failRate = failRate;
+			this.shortRate = shortRate;
+		}
+
+		@Override
+		public ReadableByteChannel open(Range range) throws IOException {
+			opened.incrementAndGet();
+			int fail, cut;
+			synchronized ( random ) {
+				fail = random.nextInt(failRate);
+				cut = random.nextInt(shortRate);
+			}
+			if ( fail == 0 ) throw new IOException("Connection refused for " + range);
+
+			long end = range.high + 1;
+			if ( cut == 0 ) end = range.low + (range.high - range.low + 1) / 2;
+			final ByteBuffer src = ByteBuffer.wrap(data, (int)range.low, (int)(end - range.low));
+			return new ReadableByteChannel() {
+				private boolean open = true;
+
+				@Override
+				public boolean isOpen() {
+					return open;
+				}
+
+				@Override
+				public void close() {
+					open = false;
+				}
+
+				@Override
+				public int read(ByteBuffer dst) {
+					if ( !src.hasRemaining() ) return -1;
+					//small reads, like a network connection
+					int count = Math.min(Math.min(dst.remaining(), src.remaining()), 8*1024);
+					ByteBuffer slice = src.duplicate();
+					slice.limit(slice.position() + count);
+					dst.put(slice);
+					src.position(src.position() + count);
+					return count;
+				}
+			};
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		byte[] data = new byte[3*1024*1024 + 1234];
+		new Random(1).nextBytes(data);
+		File target = File.createTempFile("orchestrator", ".bin");
+		target.delete();
+
+		FakeSource source = new FakeSource(data, 5, 4);
+		TrackingFileAssembler assembler = new TrackingFileAssembler(target, true);
+		TransferOrchestrator orchestrator = new TransferOrchestrator(assembler, source);
+		orchestrator.setUnitSize(256*1024);
+		orchestrator.setConcurrency(6);
+		orchestrator.setMaxAttempts(20);
+		long transferred;
+		try {
+			assembler.init(data.length, "orchestrator");
+			transferred = orchestrator.run();
+			if ( !assembler.assemblyLog().isComplete() ) throw new IllegalStateException("Transfer is not complete");
+		} finally {
+			assembler.close();
+		}
+
+		byte[] result = java.nio.file.Files.readAllBytes(target.toPath());
+		System.out.println("Transferred " + transferred + " bytes, opened " + source.opened.get()
+				+ " channels, " + orchestrator.getRetries() + " retries");
+		System.out.println(Arrays.equals(data, result) ? "Content matches" : "Content MISMATCH");
+
+		//units sized by the observed failures
+		target.delete();
+		assembler = new TrackingFileAssembler(target, true);
+		orchestrator = new TransferOrchestrator(assembler, new FakeSource(data, 10, 8));
+		AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(16*1024, 1024*1024);
+		orchestrator.setChunkSizer(sizer);
+		orchestrator.setMaxAttempts(20);
+		try {
+			assembler.init(data.length, "orchestrator");
+			orchestrator.run();
+		} finally {
+			assembler.close();
+		}
+		result = java.nio.file.Files.readAllBytes(target.toPath());
+		System.out.println(sizer);
+		System.out.println(Arrays.equals(data, result) ? "Adaptive content matches" : "Adaptive content MISMATCH");
+
+		//a source that always fails must exhaust the attempts
+		target.delete();
+		assembler = new TrackingFileAssembler(target, true);
+		orchestrator = new TransferOrchestrator(assembler, new FakeSource(data, 1, 1));
+		orchestrator.setMaxAttempts(3);
+		try {
+			assembler.init(data.length, "orchestrator");
+			orchestrator.run();
+			System.out.println("Failing source did NOT fail");
+		} catch (IOException e) {
+			System.out.println("Failing source failed: " + e.getMessage());
+		} finally {
+			assembler.close();
+			new File(TrackingFileAssembler.toPartFile(target.getPath())).delete();
+			new File(TrackingFileAssembler.toLogFile(target.getPath())).delete();
+		}
+
+		//a source that throws an unchecked exception must fail the transfer, not hang the workers
+		target.delete();
+		assembler = new TrackingFileAssembler(target, true);
+		final FakeSource healthy = new FakeSource(data, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		final AtomicInteger opens = new AtomicInteger();
+		orchestrator = new TransferOrchestrator(assembler, new ChunkSource() {
+			@Override
+			public ReadableByteChannel open(Range range) throws IOException {
+				if ( opens.incrementAndGet() == 3 ) throw new IllegalStateException("Broken source");
+				return healthy.open(range);
+			}
+		});
+		orchestrator.setUnitSize(64*1024);
+		orchestrator.setConcurrency(4);
+		try {
+			assembler.init(data.length, "orchestrator");
+			orchestrator.run();
+			System.out.println("Broken source did NOT fail");
+		} catch (IOException e) {
+			System.out.println("Broken source failed: " + e.getMessage());
+		} finally {
+			assembler.close();
+			new File(TrackingFileAssembler.toPartFile(target.getPath())).delete();
+			new File(TrackingFileAssembler.toLogFile(target.getPath())).delete();
+		}
+	}
+}
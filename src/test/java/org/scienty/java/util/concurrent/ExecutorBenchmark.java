@@ -0,0 +1,186 @@
+package org.scienty.java.util.concurrent;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.scienty.file.patch.BenchmarkHarness;
+import org.scienty.file.patch.BenchmarkHarness.Trial;
+
+/**
+ * Cost of submit and moveToFront of {@link ReorderingThreadPoolExecutor} and
+ * {@link PriorityThreadPoolExecutor} at growing queue depths. The single worker is held by a gate
+ * task so every submitted task stays in the queue while it is measured.
+ *
+ * @author prakasid
+ *
+ */
+public class ExecutorBenchmark {
+	private final static int MOVES = 1000;
+
+	/**
+	 * Common operations of the executors
+	 */
+	static abstract class Keyed {
+		final ThreadPoolExecutor executor;
+		private CountDownLatch gate;
+
+		Keyed(ThreadPoolExecutor executor) {
+			this.executor = executor;
+		}
+
+		abstract void submit(Integer key, Callable<Void> task);
+		abstract void moveToFront(Integer key);
+
+		/**
+		 * Hold the single worker with a gate task, the tasks submitted after it stay queued
+		 */
+		void hold() throws InterruptedException {
+			gate = new CountDownLatch(1);
+			final CountDownLatch started = new CountDownLatch(1);
+			final CountDownLatch held = gate;
+			submit(-1, new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					started.countDown();
+					held.await();
+					return null;
+				}
+			});
+			started.await();
+		}
+
+		void shutdown() throws InterruptedException {
+			executor.shutdownNow();
+			gate.countDown();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	interface KeyedFactory {
+		Keyed create();
+	}
+
+	final static KeyedFactory REORDERING = new KeyedFactory() {
+		@Override
+		public Keyed create() {
+			final ReorderingThreadPoolExecutor<Integer> pool = new ReorderingThreadPoolExecutor<Integer>(1, 1, 0,
+					TimeUnit.SECONDS, ReorderingThreadPoolExecutor.createBlockingQueue(), Executors.defaultThreadFactory());
+			return new Keyed(pool) {
+				@Override
+				void submit(Integer key, Callable<Void> task) {
+					pool.submitWithKey(key, task);
+				}
+
+				@Override
+				void moveToFront(Integer key) {
+					pool.moveToFront(key);
+				}
+			};
+		}
+	};
+
+	final static KeyedFactory PRIORITY = new KeyedFactory() {
+		@Override
+		public Keyed create() {
+			final PriorityThreadPoolExecutor<Integer> pool = new PriorityThreadPoolExecutor<Integer>(1, 1, 0,
+					TimeUnit.SECONDS, Executors.defaultThreadFactory());
+			return new Keyed(pool) {
+				@Override
+				void submit(Integer key, Callable<Void> task) {
+					pool.submitWithKey(key, task);
+				}
+
+				@Override
+				void moveToFront(Integer key) {
+					pool.moveToFront(key);
+				}
+			};
+		}
+	};
+
+	/**
+	 * @param args largest power of ten of queued tasks, default 5
+	 */
+	public static void main(String[] args) throws Exception {
+		int maxPower = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+
+		BenchmarkHarness.header("ExecutorBenchmark up to 10^" + maxPower + " queued tasks");
+		for (int power = 3; power <= maxPower; power++) {
+			int depth = (int)Math.pow(10, power);
+			BenchmarkHarness.measure("submit reordering 10^" + power, 0, submit(REORDERING, depth));
+			BenchmarkHarness.measure("submit priority 10^" + power, 0, submit(PRIORITY, depth));
+			BenchmarkHarness.measure("moveToFront reordering 10^" + power, 0, moveToFront(REORDERING, depth));
+			BenchmarkHarness.measure("moveToFront priority 10^" + power, 0, moveToFront(PRIORITY, depth));
+		}
+	}
+
+	/**
+	 * Executor with its worker held by the gate
+	 */
+	static abstract class GatedTrial extends Trial {
+		private final KeyedFactory factory;
+		Keyed keyed;
+
+		GatedTrial(KeyedFactory factory) {
+			this.factory = factory;
+		}
+
+		@Override
+		public void setUp() throws Exception {
+			keyed = factory.create();
+			keyed.hold();
+		}
+
+		@Override
+		public void tearDown() throws Exception {
+			keyed.shutdown();
+		}
+	}
+
+	final static Callable<Void> NOOP = new Callable<Void>() {
+		@Override
+		public Void call() {
+			return null;
+		}
+	};
+
+	private static Trial submit(final KeyedFactory factory, final int depth) {
+		return new GatedTrial(factory) {
+			@Override
+			public long run() {
+				for (int i = 0; i < depth; i++) {
+					keyed.submit(i, NOOP);
+				}
+				return depth;
+			}
+		};
+	}
+
+	private static Trial moveToFront(final KeyedFactory factory, final int depth) {
+		final int[] keys = new int[MOVES];
+		Random random = new Random(depth);
+		for (int i = 0; i < MOVES; i++) keys[i] = random.nextInt(depth);
+
+		return new GatedTrial(factory) {
+			@Override
+			public void setUp() throws Exception {
+				super.setUp();
+				for (int i = 0; i < depth; i++) {
+					keyed.submit(i, NOOP);
+				}
+			}
+
+			@Override
+			public long run() {
+				for (int key : keys) {
+					keyed.moveToFront(key);
+				}
+				return MOVES;
+			}
+		};
+	}
+}
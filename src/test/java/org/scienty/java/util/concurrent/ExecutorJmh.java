@@ -0,0 +1,90 @@
+package org.scienty.java.util.concurrent;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH version of {@link ExecutorBenchmark}, time per submit into a queue of the given depth and per
+ * moveToFront of a random task of that queue. Needs the bench profile, see the pom.
+ *
+ * @author prakasid
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ExecutorJmh {
+	private final static int OPERATIONS = 1000;
+
+	/**
+	 * Executor with its worker held by the gate and depth tasks queued behind it
+	 */
+	@State(Scope.Thread)
+	public static class Queued {
+		@Param({"reordering", "priority"})
+		public String executor;
+
+		@Param({"1000", "10000", "100000"})
+		public int depth;
+
+		ExecutorBenchmark.Keyed keyed;
+		int[] keys;
+
+		@Setup(Level.Trial)
+		public void keys() {
+			keys = new int[OPERATIONS];
+			Random random = new Random(depth);
+			for (int i = 0; i < OPERATIONS; i++) keys[i] = random.nextInt(depth);
+		}
+
+		@Setup(Level.Invocation)
+		public void fill() throws InterruptedException {
+			keyed = ("priority".equals(executor) ? ExecutorBenchmark.PRIORITY : ExecutorBenchmark.REORDERING).create();
+			keyed.hold();
+			for (int i = 0; i < depth; i++) {
+				keyed.submit(i, ExecutorBenchmark.NOOP);
+			}
+		}
+
+		@TearDown(Level.Invocation)
+		public void shutdown() throws InterruptedException {
+			keyed.shutdown();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(OPERATIONS)
+	public int submit(Queued queued) {
+		int key = queued.depth;
+		for (int i = 0; i < OPERATIONS; i++) {
+			queued.keyed.submit(key++, ExecutorBenchmark.NOOP);
+		}
+		return queued.keyed.executor.getQueue().size();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(OPERATIONS)
+	public int moveToFront(Queued queued) {
+		for (int key : queued.keys) {
+			queued.keyed.moveToFront(key);
+		}
+		return queued.keyed.executor.getQueue().size();
+	}
+}